@@ -0,0 +1,132 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils.docker;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Stops calls to an endpoint after a number of consecutive failed calls. Once the open duration passed, a single attempt
+ * is let through to probe the endpoint, which closes the breaker again if it succeeds and opens it if it fails. A probe
+ * that doesn't report back within the open duration is given up on, so another one can be let through.
+ */
+class CircuitBreaker {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final Duration openDuration;
+    private final Clock clock;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private Instant openedAt = Instant.MIN;
+    private Instant probeStartedAt = Instant.MIN;
+    private int trips = 0;
+
+    CircuitBreaker(int failureThreshold, Duration openDuration, Clock clock) {
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns true if the call may go ahead.
+     */
+    synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (clock.instant().isBefore(openedAt.plus(openDuration))) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probeStartedAt = clock.instant();
+                return true;
+            default:
+                // Only one probe at a time
+                if (clock.instant().isBefore(probeStartedAt.plus(openDuration))) {
+                    return false;
+                }
+                probeStartedAt = clock.instant();
+                return true;
+        }
+    }
+
+    synchronized void onSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Called when an attempt failed, a failed probe opens the breaker again right away.
+     *
+     * @return true if this failure opened the breaker
+     */
+    synchronized boolean onAttemptFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called when a call failed for good, after all of its retries. Attempts of a single call don't count separately,
+     * so one call retrying more times than the threshold can't open the breaker by itself.
+     *
+     * @return true if this failure opened the breaker
+     */
+    synchronized boolean onFailure() {
+        consecutiveFailures++;
+        if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            open();
+            return true;
+        }
+        return false;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = clock.instant();
+        trips++;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized Duration remainingOpenTime() {
+        if (state != State.OPEN) {
+            return Duration.ZERO;
+        }
+        final Duration remaining = Duration.between(clock.instant(), openedAt.plus(openDuration));
+        return remaining.isNegative() ? Duration.ZERO : remaining;
+    }
+
+    synchronized int getTrips() {
+        return trips;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils.docker;
+
+import co.elastic.gradle.utils.RegularFileUtils;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.Project;
+import org.gradle.api.file.FileTree;
+import org.gradle.api.file.FileVisitDetails;
+import org.gradle.api.file.ProjectLayout;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.internal.file.copy.DefaultCopySpec;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fingerprints the sources of a single copy spec once, so image tasks can depend on the (small) manifest instead of
+ * walking the same source trees for every up-to-date check.
+ */
+@CacheableTask
+public abstract class CopySpecContentManifestTask extends DefaultTask {
+
+    public static final String ENABLED_PROPERTY = "co.elastic.docker.contentManifest";
+
+    private static final int MAX_PARALLEL_HASHES = 8;
+
+    private final DefaultCopySpec rootCopySpec;
+
+    public CopySpecContentManifestTask() {
+        rootCopySpec = getProject().getObjects().newInstance(DefaultCopySpec.class);
+        getInputs().files((Callable<FileTree>) () -> rootCopySpec.buildRootResolver().getAllSource())
+                .withPropertyName("sources")
+                // Paths relative to the source roots end up in the manifest, where they are roots doesn't matter
+                .withPathSensitivity(PathSensitivity.RELATIVE);
+        getManifest().convention(
+                getProjectLayout().getBuildDirectory().file("docker/content-manifest/" + getName() + ".txt")
+        );
+    }
+
+    public static boolean isEnabled(Project project) {
+        return project.getProviders().gradleProperty(ENABLED_PROPERTY)
+                .map(Boolean::parseBoolean)
+                .getOrElse(false);
+    }
+
+    @Internal
+    public DefaultCopySpec getRootCopySpec() {
+        return rootCopySpec;
+    }
+
+    @OutputFile
+    public abstract RegularFileProperty getManifest();
+
+    @Inject
+    protected abstract ProjectLayout getProjectLayout();
+
+    @TaskAction
+    public void writeManifest() throws IOException {
+        final List<Source> sources = new ArrayList<>();
+        rootCopySpec.buildRootResolver().walk(resolver ->
+                resolver.getSource().visit(details -> {
+                    if (!details.isDirectory()) {
+                        sources.add(new Source(details));
+                    }
+                })
+        );
+        Files.write(RegularFileUtils.toPath(getManifest()), manifestLines(sources));
+    }
+
+    record Source(String path, File file) {
+        Source(FileVisitDetails details) {
+            this(details.getRelativePath().getPathString(), details.getFile());
+        }
+    }
+
+    /**
+     * One {@code <sha256> <size> <path>} line per source, sorted by path. Hashes are computed in parallel.
+     */
+    static List<String> manifestLines(List<Source> sources) {
+        if (sources.isEmpty()) {
+            return List.of();
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(sources.size(), MAX_PARALLEL_HASHES));
+        try {
+            final List<Source> sorted = sources.stream()
+                    .sorted(Comparator.comparing(Source::path).thenComparing(Source::file))
+                    .toList();
+            final List<Future<String>> lines = new ArrayList<>(sorted.size());
+            for (Source source : sorted) {
+                lines.add(executor.submit(() -> manifestLine(source)));
+            }
+            final List<String> result = new ArrayList<>(sorted.size());
+            for (Future<String> line : lines) {
+                result.add(line.get());
+            }
+            return result;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException ioException) {
+                throw ioException;
+            }
+            throw new GradleException("Failed to compute content manifest", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while computing content manifest", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String manifestLine(Source source) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long size = 0;
+        final byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(source.file().toPath())) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                size += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return HexFormat.of().formatHex(digest.digest()) + " " + size + " " + source.path();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils.docker;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits how much work is sent to the local docker daemon at the same time across all projects of a build.
+ * <p>
+ * Operations are weighted, the configured concurrency is the number of image builds that can run at the same time, and
+ * lighter operations take a fraction of that. It's configured per machine with the {@value #MAX_CONCURRENCY_PROPERTY}
+ * Gradle property.
+ */
+public abstract class DockerDaemonLimiter implements BuildService<DockerDaemonLimiter.Params>, AutoCloseable {
+
+    public static final String NAME = "co.elastic.dockerDaemonLimiter";
+    public static final String MAX_CONCURRENCY_PROPERTY = "co.elastic.docker.maxConcurrency";
+
+    private static final Logger logger = Logging.getLogger(DockerDaemonLimiter.class);
+    private static final Duration REPORT_WAIT_THRESHOLD = Duration.ofSeconds(1);
+
+    public enum Operation {
+        BUILD(4),
+        RUN(2),
+        LOAD(2),
+        TAG(1);
+
+        private final int weight;
+
+        Operation(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    public interface Params extends BuildServiceParameters {
+        Property<Integer> getMaxConcurrency();
+    }
+
+    @FunctionalInterface
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final int capacity;
+    private final Semaphore semaphore;
+    private final Map<Operation, LongAdder> waitNanos = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> count = new EnumMap<>(Operation.class);
+
+    public DockerDaemonLimiter() {
+        final int maxConcurrency = getParameters().getMaxConcurrency().get();
+        if (maxConcurrency < 1) {
+            throw new GradleException(MAX_CONCURRENCY_PROPERTY + " must be at least 1 but was " + maxConcurrency);
+        }
+        capacity = maxConcurrency * Operation.BUILD.weight;
+        semaphore = new Semaphore(capacity, true);
+        for (Operation operation : Operation.values()) {
+            waitNanos.put(operation, new LongAdder());
+            count.put(operation, new LongAdder());
+        }
+    }
+
+    public static Provider<DockerDaemonLimiter> register(Project project) {
+        final Provider<Integer> maxConcurrency = project.getProviders()
+                .gradleProperty(MAX_CONCURRENCY_PROPERTY)
+                .map(Integer::parseInt)
+                .orElse(Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+        final Provider<DockerDaemonLimiter> limiter = project.getGradle().getSharedServices().registerIfAbsent(
+                NAME,
+                DockerDaemonLimiter.class,
+                spec -> spec.getParameters().getMaxConcurrency().set(maxConcurrency)
+        );
+        project.getTasks().withType(DockerDaemonUsingTask.class).configureEach(task -> {
+            task.getDockerDaemonLimiter().set(limiter);
+            task.usesService(limiter);
+        });
+        return limiter;
+    }
+
+    /**
+     * Blocks until the daemon has capacity for the operation, the returned permit needs to be closed when done.
+     */
+    public Permit acquire(Operation operation, String owner) {
+        final int permits = Math.min(operation.weight, capacity);
+        final long start = System.nanoTime();
+        try {
+            semaphore.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while waiting for the docker daemon", e);
+        }
+        final Duration waited = Duration.ofNanos(System.nanoTime() - start);
+        waitNanos.get(operation).add(waited.toNanos());
+        count.get(operation).increment();
+        if (waited.compareTo(REPORT_WAIT_THRESHOLD) > 0) {
+            logger.lifecycle("{} waited {}s for the docker daemon ({})", owner, waited.toSeconds(), operation);
+        }
+        return () -> semaphore.release(permits);
+    }
+
+    @Override
+    public void close() {
+        final long totalWait = waitNanos.values().stream().mapToLong(LongAdder::sum).sum();
+        if (Duration.ofNanos(totalWait).compareTo(REPORT_WAIT_THRESHOLD) > 0) {
+            logger.lifecycle("Time spent waiting for the docker daemon:");
+            for (Operation operation : Operation.values()) {
+                if (count.get(operation).sum() > 0) {
+                    logger.lifecycle(
+                            "  {}: {} operations, {}s waiting",
+                            operation, count.get(operation).sum(),
+                            Duration.ofNanos(waitNanos.get(operation).sum()).toSeconds()
+                    );
+                }
+            }
+        }
+    }
+}
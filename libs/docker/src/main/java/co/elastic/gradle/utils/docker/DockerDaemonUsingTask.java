@@ -0,0 +1,57 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils.docker;
+
+import org.gradle.api.Task;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Internal;
+
+/**
+ * Tasks that talk to the local docker daemon, these share the {@link DockerDaemonLimiter} of the build and record the
+ * images they create in the {@link DockerImageRegistry}.
+ */
+public interface DockerDaemonUsingTask extends Task {
+
+    @Internal
+    Property<DockerDaemonLimiter> getDockerDaemonLimiter();
+
+    default DockerDaemonLimiter.Permit acquireDockerDaemon(DockerDaemonLimiter.Operation operation) {
+        if (!getDockerDaemonLimiter().isPresent()) {
+            return () -> {
+            };
+        }
+        return getDockerDaemonLimiter().get().acquire(operation, getPath());
+    }
+
+    @Internal
+    Property<DockerImageRegistry> getDockerImageRegistry();
+
+    /**
+     * The path of the project the images are tracked for, set at configuration time as the project is not available
+     * to task actions.
+     */
+    @Internal
+    Property<String> getDockerImageOwner();
+
+    default void trackDockerImage(String reference) {
+        if (getDockerImageRegistry().isPresent()) {
+            getDockerImageRegistry().get().track(reference, getDockerImageOwner().get());
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils.docker;
+
+import org.gradle.api.Project;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.gradle.process.ExecOperations;
+import org.gradle.process.ExecResult;
+
+import javax.inject.Inject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps track of the images and tags created in the local docker daemon by the plugins, so these can be garbage
+ * collected without touching images created by anything else.
+ * <p>
+ * The registry is a file in the Gradle user home shared by all builds on the machine. Each line has a reference, the
+ * project that created it and when it was last used.
+ */
+public abstract class DockerImageRegistry implements BuildService<DockerImageRegistry.Params>, AutoCloseable {
+
+    public static final String NAME = "co.elastic.dockerImageRegistry";
+    public static final String BUDGET_PROPERTY = "co.elastic.docker.prune.budgetMB";
+    public static final String AUTO_PRUNE_PROPERTY = "co.elastic.docker.prune.auto";
+    public static final long DEFAULT_BUDGET_MB = 20 * 1024;
+
+    private static final Logger logger = Logging.getLogger(DockerImageRegistry.class);
+
+    public interface Params extends BuildServiceParameters {
+        RegularFileProperty getRegistryFile();
+
+        Property<Long> getBudgetMB();
+
+        Property<Boolean> getAutoPrune();
+    }
+
+    public record Entry(String reference, String owner, Instant lastUsed) {
+        String toLine() {
+            return reference + "\t" + owner + "\t" + lastUsed.toEpochMilli();
+        }
+
+        static Entry fromLine(String line) {
+            final String[] parts = line.split("\t");
+            if (parts.length != 3) {
+                return null;
+            }
+            try {
+                return new Entry(parts[0], parts[1], Instant.ofEpochMilli(Long.parseLong(parts[2])));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    public record PruneResult(int removed, long freedBytes, long remainingBytes) {
+    }
+
+    private record Image(String id, long size) {
+    }
+
+    @Inject
+    protected abstract ExecOperations getExecOperations();
+
+    public static Provider<DockerImageRegistry> register(Project project) {
+        final Provider<DockerImageRegistry> registry = project.getGradle().getSharedServices().registerIfAbsent(
+                NAME,
+                DockerImageRegistry.class,
+                spec -> {
+                    spec.getParameters().getRegistryFile().set(
+                            project.getGradle().getGradleUserHomeDir().toPath()
+                                    .resolve("caches/co.elastic.docker/images.tsv")
+                                    .toFile()
+                    );
+                    spec.getParameters().getBudgetMB().set(
+                            project.getProviders().gradleProperty(BUDGET_PROPERTY).map(Long::parseLong)
+                                    .orElse(DEFAULT_BUDGET_MB)
+                    );
+                    spec.getParameters().getAutoPrune().set(
+                            project.getProviders().gradleProperty(AUTO_PRUNE_PROPERTY).map(Boolean::parseBoolean)
+                                    .orElse(false)
+                    );
+                }
+        );
+        project.getTasks().withType(DockerDaemonUsingTask.class).configureEach(task -> {
+            task.getDockerImageRegistry().set(registry);
+            task.getDockerImageOwner().convention(project.getPath());
+            task.usesService(registry);
+        });
+        return registry;
+    }
+
+    /**
+     * Record that the image reference was created or used by the owner.
+     */
+    public synchronized void track(String reference, String owner) {
+        update(entries -> {
+            entries.put(reference, new Entry(reference, owner, Instant.now()));
+            return null;
+        });
+    }
+
+    public synchronized List<Entry> entries() {
+        return update(entries -> List.copyOf(entries.values()));
+    }
+
+    /**
+     * Removes the least recently used tracked images until the tracked images fit in the budget. References that no
+     * longer exist in the daemon are dropped from the registry.
+     */
+    public synchronized PruneResult prune(long budgetBytes) {
+        final List<Entry> tracked = entries();
+        final Map<String, Image> images = inspect(tracked.stream().map(Entry::reference).toList());
+        // Several tags can point to the same image, it only counts once
+        final Map<String, Long> sizeById = images.values().stream()
+                .collect(Collectors.toMap(Image::id, Image::size, (a, b) -> a));
+        long total = sizeById.values().stream().mapToLong(Long::longValue).sum();
+        final List<Entry> byLastUse = tracked.stream()
+                .filter(each -> images.containsKey(each.reference()))
+                .sorted(Comparator.comparing(Entry::lastUsed))
+                .toList();
+
+        final Set<String> gone = tracked.stream()
+                .map(Entry::reference)
+                .filter(each -> !images.containsKey(each))
+                .collect(Collectors.toSet());
+        final Map<String, Long> remainingTagsById = byLastUse.stream()
+                .collect(Collectors.groupingBy(each -> images.get(each.reference()).id(), Collectors.counting()));
+        int removed = 0;
+        long freed = 0;
+        for (Entry entry : byLastUse) {
+            if (total <= budgetBytes) {
+                break;
+            }
+            if (!remove(entry.reference())) {
+                continue;
+            }
+            gone.add(entry.reference());
+            removed++;
+            final Image image = images.get(entry.reference());
+            if (remainingTagsById.merge(image.id(), -1L, Long::sum) == 0) {
+                total -= image.size();
+                freed += image.size();
+            }
+        }
+        update(entries -> {
+            gone.forEach(entries::remove);
+            return null;
+        });
+        return new PruneResult(removed, freed, total);
+    }
+
+    @Override
+    public void close() {
+        if (getParameters().getAutoPrune().get()) {
+            final PruneResult result = prune(getParameters().getBudgetMB().get() * 1024 * 1024);
+            if (result.removed() > 0) {
+                logger.lifecycle(
+                        "Removed {} docker images created by the build to free {} MB",
+                        result.removed(), result.freedBytes() / (1024 * 1024)
+                );
+            }
+        }
+    }
+
+    private Map<String, Image> inspect(List<String> references) {
+        final Map<String, Image> result = new HashMap<>();
+        // Inspect fails if any of the references is missing, so inspect them one by one
+        for (String reference : references) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final ExecResult exec = new DockerUtils(getExecOperations()).exec(spec -> {
+                spec.commandLine("docker", "image", "inspect", "--format", "{{.Id}} {{.Size}}", reference);
+                spec.setStandardOutput(out);
+                spec.setErrorOutput(new ByteArrayOutputStream());
+                spec.setIgnoreExitValue(true);
+            });
+            if (exec.getExitValue() != 0) {
+                continue;
+            }
+            final String[] parts = out.toString(StandardCharsets.UTF_8).trim().split(" ");
+            if (parts.length == 2) {
+                result.put(reference, new Image(parts[0], Long.parseLong(parts[1])));
+            }
+        }
+        return result;
+    }
+
+    private boolean remove(String reference) {
+        final ExecResult exec = new DockerUtils(getExecOperations()).exec(spec -> {
+            spec.commandLine("docker", "image", "rm", reference);
+            spec.setErrorOutput(new ByteArrayOutputStream());
+            spec.setStandardOutput(new ByteArrayOutputStream());
+            spec.setIgnoreExitValue(true);
+        });
+        if (exec.getExitValue() != 0) {
+            // Most likely still used by a container
+            logger.info("Failed to remove docker image {}", reference);
+            return false;
+        }
+        return true;
+    }
+
+    private <T> T update(Function<Map<String, Entry>, T> action) {
+        final Path registryFile = getParameters().getRegistryFile().get().getAsFile().toPath();
+        try {
+            Files.createDirectories(registryFile.getParent());
+            // Lock the file as other builds on the same machine share it
+            try (
+                    FileChannel channel = FileChannel.open(
+                            registryFile,
+                            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+                    );
+                    FileLock ignored = channel.lock()
+            ) {
+                final String content = new String(Channels.newInputStream(channel).readAllBytes(), StandardCharsets.UTF_8);
+                final Map<String, Entry> entries = content.lines()
+                        .map(Entry::fromLine)
+                        .filter(Objects::nonNull)
+                        .collect(Collectors.toMap(Entry::reference, Function.identity(), (a, b) -> b, LinkedHashMap::new));
+                final T result = action.apply(entries);
+                final byte[] updated = entries.values().stream()
+                        .map(Entry::toLine)
+                        .flatMap(line -> Stream.of(line, "\n"))
+                        .collect(Collectors.joining())
+                        .getBytes(StandardCharsets.UTF_8);
+                if (!Arrays.equals(updated, content.getBytes(StandardCharsets.UTF_8))) {
+                    channel.truncate(0);
+                    channel.write(ByteBuffer.wrap(updated), 0);
+                }
+                return result;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to update docker image registry " + registryFile, e);
+        }
+    }
+}
@@ -55,11 +55,14 @@ public class DockerPluginConventions {
         CopySpecResolver resolver = spec.buildResolverRelativeToParent(parentResolver);
         String specPropertyName = specPropertyNameBuilder.toString();
 
-        task.getInputs().files((Callable<FileTree>) resolver::getSource)
-                .withPropertyName(specPropertyName)
-                // This is the source path of the file, it's being relocated in the image, so we don't care where
-                // it's coming form, we just care about the file contents.
-                .withPathSensitivity(PathSensitivity.NONE);
+        // With content manifests the sources are fingerprinted by CopySpecContentManifestTask instead
+        if (!CopySpecContentManifestTask.isEnabled(task.getProject())) {
+            task.getInputs().files((Callable<FileTree>) resolver::getSource)
+                    .withPropertyName(specPropertyName)
+                    // This is the source path of the file, it's being relocated in the image, so we don't care where
+                    // it's coming form, we just care about the file contents.
+                    .withPathSensitivity(PathSensitivity.NONE);
+        }
 
         task.getInputs().property(specPropertyName + ".destPath", (Callable<String>) () -> resolver.getDestPath().getPathString());
         task.getInputs().property(specPropertyName + ".caseSensitive", (Callable<Boolean>) spec::isCaseSensitive);
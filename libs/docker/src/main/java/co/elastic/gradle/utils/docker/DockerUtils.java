@@ -18,8 +18,9 @@
  */
 package co.elastic.gradle.utils.docker;
 
-import co.elastic.gradle.utils.PrefixingOutputStream;
+import co.elastic.gradle.utils.AsyncProcess;
 import co.elastic.gradle.utils.RetryUtils;
+import co.elastic.gradle.utils.TaskOutputStream;
 import org.gradle.api.Action;
 import org.gradle.api.GradleException;
 import org.gradle.api.logging.Logger;
@@ -30,7 +31,11 @@ import org.gradle.process.ExecOperations;
 import org.gradle.process.ExecResult;
 import org.gradle.process.ExecSpec;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -38,6 +43,8 @@ import java.util.Map;
 public class DockerUtils {
 
     private static final Logger logger = Logging.getLogger(DockerUtils.class);
+    // The progress of pulls is very chatty without a terminal
+    private static final int PULL_OUTPUT_LINES_PER_SECOND = 10;
 
     private final ExecOperations execOperations;
 
@@ -46,8 +53,16 @@ public class DockerUtils {
     }
 
     public void pull(String tag) {
+        pull(tag, RetryUtils.RetryGuard.NONE);
+    }
+
+    public void pull(String tag, RetryUtils.RetryGuard retryGuard) {
         RetryUtils.retry(() -> {
-                    try {
+                    try (
+                            TaskOutputStream out = new TaskOutputStream("[docker cli] ", System.out)
+                                    .limitLinesPerSecond(PULL_OUTPUT_LINES_PER_SECOND);
+                            TaskOutputStream err = new TaskOutputStream("[docker err] ", System.out)
+                    ) {
                         return exec(spec -> {
                                     spec.commandLine(
                                             "docker",
@@ -55,29 +70,25 @@ public class DockerUtils {
                                             "pull",
                                             tag
                                     );
-                                    spec.setStandardOutput(new PrefixingOutputStream("[docker cli] ", System.out));
-                                    spec.setErrorOutput(new PrefixingOutputStream("[docker err] ", System.out));
+                                    spec.setStandardOutput(out);
+                                    spec.setErrorOutput(err);
                                 }
                         );
                     } catch (TaskExecutionException e) {
                         throw new GradleException("Error pulling " + tag + " through Docker daemon", e);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
                     }
                 })
                 .maxAttempt(3)
                 .onRetryError(e -> logger.lifecycle("failed to pull image, retrying"))
-                .exponentialBackoff(1000, 30000)
+                .exponentialBackoffWithJitter(1000, 30000)
+                .guard(retryGuard)
                 .execute();
     }
 
     public ExecResult exec(Action<? super ExecSpec> action, boolean applyMacWorkaround) {
-        Map<String, Object> environment = new HashMap<>();
-        // Only pass specific env vars for more reproducible builds
-        if (applyMacWorkaround) {
-            dockerForMacWorkaround(environment);
-        }
-        environment.put("LANG", System.getenv("LANG"));
-        environment.put("LC_ALL", System.getenv("LC_ALL"));
-        environment.put("DOCKER_BUILDKIT", "1");
+        final Map<String, Object> environment = dockerEnvironment(applyMacWorkaround);
         return execOperations.exec(spec -> {
             action.execute(spec);
             environment.putAll(spec.getEnvironment());
@@ -89,6 +100,61 @@ public class DockerUtils {
         return exec(action, OperatingSystem.current().isMacOsX());
     }
 
+    /**
+     * Prepares a process with the same environment as {@link #exec(Action)} that doesn't block the calling thread
+     * once started. Use this to run independent docker commands of a task at the same time.
+     */
+    /**
+     * Checks that the tag exists in the daemon and still points to the image, it might have been removed since it was
+     * created, e.g. by pruning the images of the build.
+     */
+    public boolean isTagOf(String tag, String imageId) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ExecResult result = exec(spec -> {
+            spec.commandLine("docker", "image", "inspect", "--format", "{{.Id}}", tag);
+            spec.setStandardOutput(out);
+            spec.setErrorOutput(new ByteArrayOutputStream());
+            spec.setIgnoreExitValue(true);
+        });
+        if (result.getExitValue() != 0) {
+            return false;
+        }
+        final String taggedId = out.toString(StandardCharsets.UTF_8).trim();
+        return withoutDigestAlgorithm(taggedId).equals(withoutDigestAlgorithm(imageId.trim()));
+    }
+
+    private static String withoutDigestAlgorithm(String imageId) {
+        return imageId.startsWith("sha256:") ? imageId.substring("sha256:".length()) : imageId;
+    }
+
+    public AsyncProcess execAsync(String... commandLine) {
+        // Like exec, start from the environment of the Gradle process so e.g. DOCKER_HOST and HOME are still there
+        final Map<String, Object> environment = new HashMap<>(System.getenv());
+        dockerEnvironment(false).forEach((key, value) -> {
+            if (value != null) {
+                environment.put(key, value);
+            }
+        });
+        if (OperatingSystem.current().isMacOsX()) {
+            dockerForMacWorkaround(environment);
+        }
+        final Map<String, String> processEnvironment = new HashMap<>();
+        environment.forEach((key, value) -> processEnvironment.put(key, value.toString()));
+        return AsyncProcess.of(commandLine).environment(processEnvironment);
+    }
+
+    private static Map<String, Object> dockerEnvironment(boolean applyMacWorkaround) {
+        Map<String, Object> environment = new HashMap<>();
+        // Only pass specific env vars for more reproducible builds
+        if (applyMacWorkaround) {
+            dockerForMacWorkaround(environment);
+        }
+        environment.put("LANG", System.getenv("LANG"));
+        environment.put("LC_ALL", System.getenv("LC_ALL"));
+        environment.put("DOCKER_BUILDKIT", "1");
+        return environment;
+    }
+
     /**
      * Adds or updates the PATH environment variable to work around a Docker Desktop for Mac issue.
      * See https://github.com/elastic/cloud/issues/79374 for more context
@@ -20,22 +20,71 @@ package co.elastic.gradle.utils.docker;
 
 import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
 import co.elastic.gradle.utils.docker.instruction.Copy;
+import org.gradle.api.Project;
+import org.gradle.api.Task;
 import org.gradle.api.internal.file.copy.CopySpecInternal;
 import org.gradle.api.internal.file.copy.DefaultCopySpec;
+import org.gradle.api.tasks.PathSensitivity;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 public abstract  class InstructionCopySpecMapper {
     public static void assignCopySpecs(List<ContainerImageBuildInstruction> instructions, DefaultCopySpec rootCopySpec) {
-        instructions.stream()
+        copies(instructions).forEach(copy -> {
+            final CopySpecInternal childCopySpec = rootCopySpec.addChild();
+            childCopySpec.into(copy.getLayer());
+            // We need another copy spec here, so the `into` from the builds script is to be interpreted as a sub-path
+            // of the layer directory
+            copy.getSpec().execute(childCopySpec.addChild());
+        });
+    }
+
+    /**
+     * Same as {@link #assignCopySpecs(List, DefaultCopySpec)}, but when content manifests are enabled the task takes
+     * the manifests registered by {@link #registerContentManifests(Project, List)} as input instead of the sources.
+     */
+    public static void assignCopySpecs(List<ContainerImageBuildInstruction> instructions, DefaultCopySpec rootCopySpec, Task task) {
+        assignCopySpecs(instructions, rootCopySpec);
+        if (!CopySpecContentManifestTask.isEnabled(task.getProject())) {
+            return;
+        }
+        copies(instructions).forEach(copy ->
+                task.getInputs().files(
+                                task.getProject().getTasks()
+                                        .named(contentManifestTaskName(copy), CopySpecContentManifestTask.class)
+                                        .flatMap(CopySpecContentManifestTask::getManifest)
+                        )
+                        .withPropertyName("contentManifest." + copy.getLayer())
+                        .withPathSensitivity(PathSensitivity.NONE)
+        );
+    }
+
+    /**
+     * Registers one content manifest task per copy instruction, if enabled. Tasks sharing instructions share the
+     * manifest, so the sources are only fingerprinted once.
+     */
+    public static void registerContentManifests(Project project, List<ContainerImageBuildInstruction> instructions) {
+        if (!CopySpecContentManifestTask.isEnabled(project)) {
+            return;
+        }
+        copies(instructions)
+                .filter(copy -> !project.getTasks().getNames().contains(contentManifestTaskName(copy)))
+                .forEach(copy -> project.getTasks().register(
+                        contentManifestTaskName(copy),
+                        CopySpecContentManifestTask.class,
+                        task -> copy.getSpec().execute(task.getRootCopySpec().addChild())
+                ));
+    }
+
+    private static String contentManifestTaskName(Copy copy) {
+        final String layer = copy.getLayer();
+        return "dockerContentManifest" + Character.toUpperCase(layer.charAt(0)) + layer.substring(1);
+    }
+
+    private static Stream<Copy> copies(List<ContainerImageBuildInstruction> instructions) {
+        return instructions.stream()
                 .filter(each -> each instanceof Copy)
-                .map(each -> (Copy) each)
-                .forEach(copy -> {
-                    final CopySpecInternal childCopySpec = rootCopySpec.addChild();
-                    childCopySpec.into(copy.getLayer());
-                    // We need another copy spec here, so the `into` from the builds script is to be interpreted as a sub-path
-                    // of the layer directory
-                    copy.getSpec().execute(childCopySpec.addChild());
-                });
+                .map(each -> (Copy) each);
     }
 }
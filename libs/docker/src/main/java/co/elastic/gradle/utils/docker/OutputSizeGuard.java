@@ -0,0 +1,165 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils.docker;
+
+import org.gradle.api.GradleException;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Supplier;
+
+/**
+ * Enforces the maximum output size of a task while the output is being written, instead of after it was written.
+ * <p>
+ * The size is counted by the stream returned from {@link #counting(OutputStream)}, which should be the one closest to
+ * the output file, e.g. below compression. Streams further up the pipeline can be wrapped with
+ * {@link #gate(OutputStream)} to stop doing any work once the limit is reached. Nothing is thrown from these streams
+ * as they are often written to by an external process that we can't stop, callers use {@link #check} once writing is
+ * done. Callers that produce the output themselves, e.g. by reading the output of a process, use
+ * {@link #stopping(OutputStream)} instead to find out when to stop.
+ */
+public class OutputSizeGuard {
+
+    /**
+     * Thrown by the streams of {@link #stopping(OutputStream)} once the limit is exceeded.
+     */
+    public static class LimitExceededException extends IOException {
+        public LimitExceededException(String message) {
+            super(message);
+        }
+    }
+
+    private final String taskPath;
+    private final long maxSizeMB;
+    private final long maxSize;
+    private volatile long size = 0;
+
+    public OutputSizeGuard(String taskPath, long maxSizeMB) {
+        this.taskPath = taskPath;
+        this.maxSizeMB = maxSizeMB;
+        this.maxSize = maxSizeMB > 0 ? maxSizeMB * 1024 * 1024 : Long.MAX_VALUE;
+    }
+
+    public boolean isExceeded() {
+        return size > maxSize;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Counts the bytes written to out and drops everything written after the limit is exceeded.
+     */
+    public OutputStream counting(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                if (!isExceeded()) {
+                    size++;
+                    out.write(b);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (!isExceeded()) {
+                    size += len;
+                    out.write(b, off, len);
+                }
+            }
+        };
+    }
+
+    /**
+     * Forwards to out until the limit is exceeded, anything written after that is dropped.
+     */
+    public OutputStream gate(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                if (!isExceeded()) {
+                    out.write(b);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (!isExceeded()) {
+                    out.write(b, off, len);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (!isExceeded()) {
+                    out.flush();
+                }
+            }
+        };
+    }
+
+    /**
+     * Forwards to out until the limit is exceeded, writing after that throws a {@link LimitExceededException}.
+     */
+    public OutputStream stopping(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                checkNotExceeded();
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                checkNotExceeded();
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (!isExceeded()) {
+                    out.flush();
+                }
+            }
+        };
+    }
+
+    private void checkNotExceeded() throws LimitExceededException {
+        if (isExceeded()) {
+            throw new LimitExceededException(
+                    "Output of " + taskPath + " is greater than the current limit of " + maxSizeMB + "Mb"
+            );
+        }
+    }
+
+    /**
+     * Fails the task if the limit was exceeded.
+     *
+     * @param report details to help find out what makes the output so large, only computed if the check fails
+     */
+    public void check(Supplier<String> report) {
+        if (isExceeded()) {
+            throw new GradleException("Task " + taskPath + " output is greater than the current limit of " +
+                                      maxSizeMB + "Mb, writing was stopped after " + (size / (1024 * 1024)) + "Mb.\n" +
+                                      report.get());
+        }
+    }
+}
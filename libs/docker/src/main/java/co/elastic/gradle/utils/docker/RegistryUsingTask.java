@@ -0,0 +1,40 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils.docker;
+
+import co.elastic.gradle.utils.RetryUtils;
+import org.gradle.api.Task;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Internal;
+
+/**
+ * Tasks that call registries, these share the {@link RetryService} of the build for their retries.
+ */
+public interface RegistryUsingTask extends Task {
+
+    @Internal
+    Property<RetryService> getRetryService();
+
+    default RetryUtils.RetryGuard retryGuard(String endpoint) {
+        if (!getRetryService().isPresent()) {
+            return RetryUtils.RetryGuard.NONE;
+        }
+        return getRetryService().get().guard(endpoint);
+    }
+}
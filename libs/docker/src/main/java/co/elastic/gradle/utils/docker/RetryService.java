@@ -0,0 +1,185 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils.docker;
+
+import co.elastic.gradle.utils.RetryUtils;
+import org.gradle.api.GradleException;
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coordinates retries of registry and daemon operations across all tasks of a build.
+ * <p>
+ * Each endpoint (usually a registry host) has a circuit breaker, so once an endpoint keeps failing the other tasks
+ * fail right away instead of each going through their own backoff. Retries also draw from a budget shared by the
+ * build, configured with the {@value #RETRY_BUDGET_PROPERTY} Gradle property.
+ */
+public abstract class RetryService implements BuildService<RetryService.Params>, AutoCloseable {
+
+    public static final String NAME = "co.elastic.retryService";
+    public static final String RETRY_BUDGET_PROPERTY = "co.elastic.retry.budget";
+
+    private static final Logger logger = Logging.getLogger(RetryService.class);
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final Duration OPEN_DURATION = Duration.ofSeconds(60);
+
+    public interface Params extends BuildServiceParameters {
+        Property<Integer> getRetryBudget();
+    }
+
+    private static class EndpointStats {
+        private final LongAdder attempts = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder backoffMillis = new LongAdder();
+    }
+
+    private final AtomicInteger remainingBudget;
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final Map<String, EndpointStats> stats = new ConcurrentHashMap<>();
+
+    public RetryService() {
+        final int budget = getParameters().getRetryBudget().get();
+        if (budget < 0) {
+            throw new GradleException(RETRY_BUDGET_PROPERTY + " can't be negative but was " + budget);
+        }
+        remainingBudget = new AtomicInteger(budget);
+    }
+
+    public static Provider<RetryService> register(Project project) {
+        final Provider<Integer> budget = project.getProviders()
+                .gradleProperty(RETRY_BUDGET_PROPERTY)
+                .map(Integer::parseInt)
+                .orElse(100);
+        final Provider<RetryService> service = project.getGradle().getSharedServices().registerIfAbsent(
+                NAME,
+                RetryService.class,
+                spec -> spec.getParameters().getRetryBudget().set(budget)
+        );
+        project.getTasks().withType(RegistryUsingTask.class).configureEach(task -> {
+            task.getRetryService().set(service);
+            task.usesService(service);
+        });
+        return service;
+    }
+
+    /**
+     * The registry host of an image reference, used as the endpoint of registry operations.
+     */
+    public static String registryOf(String reference) {
+        final int slash = reference.indexOf('/');
+        if (slash > 0) {
+            final String first = reference.substring(0, slash);
+            if (first.contains(".") || first.contains(":") || first.equals("localhost")) {
+                return first;
+            }
+        }
+        return "docker.io";
+    }
+
+    public RetryUtils.RetryGuard guard(String endpoint) {
+        final CircuitBreaker breaker = breakers.computeIfAbsent(
+                endpoint,
+                key -> new CircuitBreaker(FAILURE_THRESHOLD, OPEN_DURATION, Clock.systemUTC())
+        );
+        final EndpointStats endpointStats = stats.computeIfAbsent(endpoint, key -> new EndpointStats());
+        return new RetryUtils.RetryGuard() {
+            @Override
+            public void beforeAttempt() {
+                if (!breaker.tryAcquire()) {
+                    endpointStats.rejected.increment();
+                    throw new GradleException(
+                            "Not calling " + endpoint + " since it failed repeatedly, will try again in " +
+                            breaker.remainingOpenTime().toSeconds() + "s"
+                    );
+                }
+                endpointStats.attempts.increment();
+            }
+
+            @Override
+            public void onSuccess() {
+                breaker.onSuccess();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                endpointStats.failures.increment();
+                if (breaker.onAttemptFailure()) {
+                    logger.warn("{} is still failing, pausing calls to it for {}s", endpoint, OPEN_DURATION.toSeconds());
+                }
+            }
+
+            @Override
+            public void onGiveUp(Exception e) {
+                if (breaker.onFailure()) {
+                    logger.warn("{} failed repeatedly, pausing calls to it for {}s", endpoint, OPEN_DURATION.toSeconds());
+                }
+            }
+
+            @Override
+            public boolean tryRetry(long delayMillis) {
+                if (remainingBudget.getAndUpdate(remaining -> Math.max(0, remaining - 1)) <= 0) {
+                    logger.warn("The retry budget of the build is used up, not retrying calls to {}", endpoint);
+                    return false;
+                }
+                endpointStats.retries.increment();
+                endpointStats.backoffMillis.add(delayMillis);
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        final Map<String, EndpointStats> retried = new TreeMap<>();
+        stats.forEach((endpoint, endpointStats) -> {
+            if (endpointStats.failures.sum() > 0) {
+                retried.put(endpoint, endpointStats);
+            }
+        });
+        if (retried.isEmpty()) {
+            return;
+        }
+        logger.lifecycle("Retried registry and daemon operations:");
+        retried.forEach((endpoint, endpointStats) -> logger.lifecycle(
+                "  {}: {} attempts, {} failed, {} retries, {}s backoff, {} rejected by the circuit breaker ({} trips)",
+                endpoint,
+                endpointStats.attempts.sum(),
+                endpointStats.failures.sum(),
+                endpointStats.retries.sum(),
+                Duration.ofMillis(endpointStats.backoffMillis.sum()).toSeconds(),
+                endpointStats.rejected.sum(),
+                breakers.get(endpoint).getTrips()
+        ));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils.docker;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerTest {
+
+    private static class MutableClock extends Clock {
+        private Instant now = Instant.parse("2022-01-01T00:00:00Z");
+
+        @Override
+        public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+
+    @Test
+    void opensAfterConsecutiveFailuresAndProbesOnceTheDurationPassed() {
+        final MutableClock clock = new MutableClock();
+        final CircuitBreaker breaker = new CircuitBreaker(3, Duration.ofSeconds(60), clock);
+
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.onFailure());
+        breaker.onSuccess();
+        assertFalse(breaker.onFailure());
+        assertFalse(breaker.onFailure());
+        assertTrue(breaker.onFailure());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(Duration.ofSeconds(60), breaker.remainingOpenTime());
+
+        clock.now = clock.now.plusSeconds(61);
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire(), "only one probe at a time");
+        assertTrue(breaker.onAttemptFailure());
+        assertFalse(breaker.tryAcquire());
+
+        clock.now = clock.now.plusSeconds(61);
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        assertEquals(2, breaker.getTrips());
+    }
+
+    @Test
+    void attemptsOfACallDoNotOpenTheBreaker() {
+        final CircuitBreaker breaker = new CircuitBreaker(3, Duration.ofSeconds(60), new MutableClock());
+
+        for (int attempt = 0; attempt < 6; attempt++) {
+            assertTrue(breaker.tryAcquire());
+            assertFalse(breaker.onAttemptFailure());
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void failedProbeOpensTheBreakerRightAway() {
+        final MutableClock clock = new MutableClock();
+        final CircuitBreaker breaker = new CircuitBreaker(1, Duration.ofSeconds(60), clock);
+        assertTrue(breaker.onFailure());
+
+        clock.now = clock.now.plusSeconds(61);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.onAttemptFailure());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void probeThatNeverReportsBackIsReplaced() {
+        final MutableClock clock = new MutableClock();
+        final CircuitBreaker breaker = new CircuitBreaker(1, Duration.ofSeconds(60), clock);
+        assertTrue(breaker.onFailure());
+
+        clock.now = clock.now.plusSeconds(61);
+        assertTrue(breaker.tryAcquire());
+        // The probe is lost, e.g. its thread died
+        clock.now = clock.now.plusSeconds(30);
+        assertFalse(breaker.tryAcquire());
+        clock.now = clock.now.plusSeconds(31);
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
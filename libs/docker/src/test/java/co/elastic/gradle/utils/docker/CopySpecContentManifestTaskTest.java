@@ -0,0 +1,78 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils.docker;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CopySpecContentManifestTaskTest {
+
+    @Test
+    void linesAreSortedByPath(@TempDir Path dir) throws IOException {
+        final Path b = Files.writeString(dir.resolve("b"), "hello");
+        final Path a = Files.writeString(dir.resolve("a"), "");
+
+        final List<String> lines = CopySpecContentManifestTask.manifestLines(List.of(
+                new CopySpecContentManifestTask.Source("sub/b.txt", b.toFile()),
+                new CopySpecContentManifestTask.Source("a.txt", a.toFile())
+        ));
+
+        assertEquals(
+                List.of(
+                        "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855 0 a.txt",
+                        "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824 5 sub/b.txt"
+                ),
+                lines
+        );
+    }
+
+    @Test
+    void manyFiles(@TempDir Path dir) throws IOException {
+        final List<CopySpecContentManifestTask.Source> sources = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final Path file = Files.writeString(dir.resolve("f" + i), "content");
+            sources.add(new CopySpecContentManifestTask.Source(String.format("f%03d", i), file.toFile()));
+        }
+
+        final List<String> lines = CopySpecContentManifestTask.manifestLines(sources);
+
+        assertEquals(100, lines.size());
+        assertEquals(
+                "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73 7 f042",
+                lines.get(42)
+        );
+    }
+
+    @Test
+    void missingFile(@TempDir Path dir) {
+        assertThrows(UncheckedIOException.class, () -> CopySpecContentManifestTask.manifestLines(List.of(
+                new CopySpecContentManifestTask.Source("missing", dir.resolve("missing").toFile())
+        )));
+    }
+}
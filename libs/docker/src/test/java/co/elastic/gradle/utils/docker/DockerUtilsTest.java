@@ -18,16 +18,18 @@
  */
 package co.elastic.gradle.utils.docker;
 
-import org.gradle.api.GradleException;
+import co.elastic.gradle.utils.AsyncProcess;
+import org.junit.jupiter.api.Test;
 
-abstract public class GradleCacheUtilities {
+import static org.junit.jupiter.api.Assertions.*;
 
-    public static void assertOutputSize(String taskPath, long outputSize, Long maxSizeMB) {
-        long maxSize = maxSizeMB * 1024 * 1024;
-        if (outputSize > maxSize) {
-            throw new GradleException("Task " + taskPath + " output (" + (outputSize / (1024 * 1024)) +
-                    "Mb) is greater than the current limit of "+maxSizeMB+"Mb.");
-        }
-    }
+class DockerUtilsTest {
 
+    @Test
+    void asyncProcessesKeepTheEnvironment() {
+        final AsyncProcess.Result result = AsyncProcess.await(
+                new DockerUtils(null).execAsync("sh", "-c", "echo \"$HOME $DOCKER_BUILDKIT\"").start()
+        ).assertNormalExitValue();
+        assertEquals(System.getenv("HOME") + " 1\n", result.output());
+    }
 }
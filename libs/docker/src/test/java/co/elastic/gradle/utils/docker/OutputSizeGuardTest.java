@@ -0,0 +1,81 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils.docker;
+
+import org.gradle.api.GradleException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutputSizeGuardTest {
+
+    @Test
+    void stopsWritingOnceTheLimitIsExceeded() throws IOException {
+        final OutputSizeGuard guard = new OutputSizeGuard(":build", 1);
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        final ByteArrayOutputStream upstream = new ByteArrayOutputStream();
+        final OutputStream counting = guard.counting(file);
+        final OutputStream gate = guard.gate(upstream);
+
+        final byte[] chunk = new byte[600 * 1024];
+        gate.write(chunk);
+        counting.write(chunk);
+        assertFalse(guard.isExceeded());
+        guard.check(() -> fail("No report expected"));
+
+        gate.write(chunk);
+        counting.write(chunk);
+        assertTrue(guard.isExceeded());
+
+        gate.write(chunk);
+        counting.write(chunk);
+        assertEquals(2 * chunk.length, file.size());
+        assertEquals(2 * chunk.length, upstream.size());
+
+        final GradleException exception = assertThrows(GradleException.class, () -> guard.check(() -> "largest: layer"));
+        assertTrue(exception.getMessage().contains("largest: layer"));
+    }
+
+    @Test
+    void failsWritesOnceTheLimitIsExceeded() throws IOException {
+        final OutputSizeGuard guard = new OutputSizeGuard(":build", 1);
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        final OutputStream stopping = guard.stopping(guard.counting(file));
+
+        final byte[] chunk = new byte[600 * 1024];
+        stopping.write(chunk);
+        stopping.write(chunk);
+        assertTrue(guard.isExceeded());
+
+        assertThrows(OutputSizeGuard.LimitExceededException.class, () -> stopping.write(chunk));
+        assertEquals(2 * chunk.length, file.size());
+    }
+
+    @Test
+    void unlimitedWhenNotConfigured() throws IOException {
+        final OutputSizeGuard guard = new OutputSizeGuard(":build", -1);
+        guard.counting(OutputStream.nullOutputStream()).write(new byte[2 * 1024 * 1024]);
+        assertFalse(guard.isExceeded());
+        assertEquals(2 * 1024 * 1024, guard.getSize());
+    }
+}
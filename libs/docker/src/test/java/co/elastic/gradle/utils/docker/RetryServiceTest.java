@@ -0,0 +1,34 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils.docker;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryServiceTest {
+
+    @Test
+    void findsTheRegistryOfReferences() {
+        assertEquals("docker.elastic.co", RetryService.registryOf("docker.elastic.co/cloud-ci/image:1.0"));
+        assertEquals("localhost:5000", RetryService.registryOf("localhost:5000/image"));
+        assertEquals("docker.io", RetryService.registryOf("ubuntu:20.04"));
+        assertEquals("docker.io", RetryService.registryOf("library/ubuntu@sha256:abc"));
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.gradle.api.GradleException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a process without blocking the calling thread, so a task action can run several independent processes at
+ * the same time. The output is drained on a shared pool of daemon threads.
+ * <p>
+ * Processes are destroyed when their future is cancelled or times out, and {@link #awaitAll(List)} cancels all of
+ * them when the waiting thread is interrupted, e.g. because the build was cancelled.
+ */
+public class AsyncProcess {
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final ExecutorService STREAMS = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "async-process-io-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ScheduledThreadPoolExecutor TIMEOUTS = new ScheduledThreadPoolExecutor(1, runnable -> {
+        final Thread thread = new Thread(runnable, "async-process-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // Timeouts of processes that completed are removed right away rather than once they would have expired
+        TIMEOUTS.setRemoveOnCancelPolicy(true);
+    }
+
+    public record Result(List<String> commandLine, int exitValue, String output, String error) {
+        public Result assertNormalExitValue() {
+            if (exitValue != 0) {
+                throw new GradleException(
+                        "Process `" + String.join(" ", commandLine) + "` failed with exit code " + exitValue +
+                        (error.isBlank() ? "" : ":\n" + error.strip())
+                );
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Reads the standard output of a process as it is produced.
+     */
+    public interface OutputConsumer {
+        void accept(InputStream output) throws IOException;
+    }
+
+    private final List<String> commandLine;
+    private Map<String, String> environment = null;
+    private File workingDir = null;
+    private Path outputFile = null;
+    private OutputConsumer outputConsumer = null;
+    private Duration timeout = null;
+
+    public AsyncProcess(List<String> commandLine) {
+        this.commandLine = List.copyOf(commandLine);
+    }
+
+    public static AsyncProcess of(String... commandLine) {
+        return new AsyncProcess(List.of(commandLine));
+    }
+
+    /**
+     * Replaces the environment inherited from the current process.
+     */
+    public AsyncProcess environment(Map<String, String> environment) {
+        this.environment = Map.copyOf(environment);
+        return this;
+    }
+
+    public AsyncProcess workingDir(File workingDir) {
+        this.workingDir = workingDir;
+        return this;
+    }
+
+    /**
+     * Writes the standard output to a file instead of keeping it in memory, use this for large outputs.
+     */
+    public AsyncProcess redirectOutput(Path outputFile) {
+        this.outputFile = outputFile;
+        return this;
+    }
+
+    /**
+     * Hands the standard output to the consumer on the io pool instead of keeping it in memory. The consumer should
+     * read the output to the end, the process is destroyed if it fails.
+     */
+    public AsyncProcess consumeOutput(OutputConsumer outputConsumer) {
+        this.outputConsumer = outputConsumer;
+        return this;
+    }
+
+    public AsyncProcess timeout(Duration timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    public CompletableFuture<Result> start() {
+        final ProcessBuilder builder = new ProcessBuilder(commandLine);
+        if (environment != null) {
+            builder.environment().clear();
+            builder.environment().putAll(environment);
+        }
+        if (workingDir != null) {
+            builder.directory(workingDir);
+        }
+        if (outputFile != null) {
+            builder.redirectOutput(outputFile.toFile());
+        }
+        final Process process;
+        try {
+            process = builder.start();
+            process.getOutputStream().close();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(
+                    new UncheckedIOException("Failed to start `" + String.join(" ", commandLine) + "`", e)
+            );
+        }
+
+        final CompletableFuture<String> output;
+        if (outputFile != null) {
+            output = CompletableFuture.completedFuture("");
+        } else if (outputConsumer != null) {
+            output = consume(process.getInputStream(), outputConsumer);
+        } else {
+            output = drain(process.getInputStream());
+        }
+        final CompletableFuture<String> error = drain(process.getErrorStream());
+        final CompletableFuture<Result> result = new CompletableFuture<>();
+        process.onExit()
+                .thenCombine(output, (exited, out) -> out)
+                .thenCombine(error, (out, err) -> new Result(commandLine, process.exitValue(), out, err))
+                .whenComplete((value, failure) -> {
+                    if (failure != null) {
+                        result.completeExceptionally(failure);
+                    } else {
+                        result.complete(value);
+                    }
+                });
+        // A consumer that failed stopped reading, so don't wait for the process to exit on its own
+        output.whenComplete((out, failure) -> {
+            if (failure != null) {
+                result.completeExceptionally(failure instanceof CompletionException ? failure.getCause() : failure);
+            }
+        });
+        if (timeout != null) {
+            final ScheduledFuture<?> timeoutTask = TIMEOUTS.schedule(
+                    () -> result.completeExceptionally(new GradleException(
+                            "Process `" + String.join(" ", commandLine) + "` timed out after " + timeout
+                    )),
+                    timeout.toMillis(),
+                    TimeUnit.MILLISECONDS
+            );
+            result.whenComplete((value, failure) -> timeoutTask.cancel(false));
+        }
+        // Nothing to do when the process completed normally, otherwise it was cancelled, timed out or its output
+        // could not be read
+        result.whenComplete((value, failure) -> {
+            if (failure != null) {
+                process.descendants().forEach(ProcessHandle::destroyForcibly);
+                process.destroyForcibly();
+            }
+        });
+        return result;
+    }
+
+    static int pendingTimeouts() {
+        return TIMEOUTS.getQueue().size();
+    }
+
+    private static CompletableFuture<String> drain(InputStream stream) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (stream) {
+                return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, STREAMS);
+    }
+
+    private static CompletableFuture<String> consume(InputStream stream, OutputConsumer consumer) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (stream) {
+                consumer.accept(stream);
+                return "";
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, STREAMS);
+    }
+
+    public static <T> T await(CompletableFuture<T> future) {
+        return awaitAll(List.of(future)).get(0);
+    }
+
+    /**
+     * Waits for all futures in order. The remaining ones are cancelled as soon as one fails or the current thread is
+     * interrupted.
+     */
+    public static <T> List<T> awaitAll(List<? extends CompletableFuture<? extends T>> futures) {
+        final List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (CompletableFuture<? extends T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while waiting for processes", e);
+        } catch (ExecutionException | CancellationException e) {
+            futures.forEach(future -> future.cancel(true));
+            final Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new GradleException("Failed to run process", cause);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+/**
+ * Finds the annotations of classes by reading their class files instead of loading them.
+ * <p>
+ * Parsed class files are cached for the lifetime of the Gradle daemon, keyed by the hash of their content, so that
+ * repeated scans only read the files that changed.
+ */
+class ClassAnnotationIndex implements Closeable {
+
+    private static final String INHERITED = "Ljava/lang/annotation/Inherited;";
+    private static final int MAX_CACHED_CLASSES = 200_000;
+
+    private static final Map<String, ClassInfo> byHash = new ConcurrentHashMap<>();
+    private static final Map<Path, FileKey> byPath = new ConcurrentHashMap<>();
+
+    /**
+     * @param name        internal name of the class, e.g. {@code java/lang/Object}
+     * @param superName   internal name of the super class, null for {@code java/lang/Object}
+     * @param annotations descriptors of the runtime visible annotations, e.g. {@code Lorg/junit/Test;}
+     */
+    record ClassInfo(String name, String superName, Set<String> annotations) {
+    }
+
+    private record FileKey(long size, long lastModified, String hash) {
+    }
+
+    private final List<Path> directories = new ArrayList<>();
+    private final List<JarFile> jars = new ArrayList<>();
+    private final Map<String, Optional<ClassInfo>> classpathClasses = new HashMap<>();
+
+    ClassAnnotationIndex(List<URL> classpath) {
+        for (URL url : classpath) {
+            final Path path;
+            try {
+                path = Paths.get(url.toURI());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                continue;
+            }
+            if (Files.isDirectory(path)) {
+                directories.add(path);
+            } else if (Files.isRegularFile(path)) {
+                try {
+                    jars.add(new JarFile(path.toFile()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to open " + path, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the class has the annotation, either directly or through a super class if the annotation is
+     * {@code @Inherited}, same as {@link Class#isAnnotationPresent(Class)}.
+     */
+    boolean isAnnotationPresent(ClassInfo classInfo, String annotationClassName, boolean inherited) {
+        final String descriptor = "L" + annotationClassName.replace('.', '/') + ";";
+        ClassInfo current = classInfo;
+        while (current != null) {
+            if (current.annotations().contains(descriptor)) {
+                return true;
+            }
+            if (!inherited || current.superName() == null) {
+                return false;
+            }
+            current = find(current.superName()).orElse(null);
+        }
+        return false;
+    }
+
+    /**
+     * Whether the annotation class is meta-annotated with {@code @Inherited}, empty if it's not on the classpath.
+     */
+    Optional<Boolean> isInherited(String annotationClassName) {
+        return find(annotationClassName.replace('.', '/')).map(info -> info.annotations().contains(INHERITED));
+    }
+
+    /**
+     * Looks up a class on the classpath by its internal name.
+     */
+    Optional<ClassInfo> find(String internalName) {
+        return classpathClasses.computeIfAbsent(internalName, name -> {
+            final String fileName = name + ".class";
+            for (Path directory : directories) {
+                final Path classFile = directory.resolve(fileName);
+                if (Files.isRegularFile(classFile)) {
+                    return Optional.of(read(classFile));
+                }
+            }
+            for (JarFile jar : jars) {
+                final ZipEntry entry = jar.getEntry(fileName);
+                if (entry != null) {
+                    try (InputStream in = jar.getInputStream(entry)) {
+                        return Optional.of(parse(in.readAllBytes()));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Failed to read " + fileName + " from " + jar.getName(), e);
+                    }
+                }
+            }
+            // Classes of the JDK
+            try (InputStream in = ClassLoader.getSystemResourceAsStream(fileName)) {
+                return in == null ? Optional.empty() : Optional.of(parse(in.readAllBytes()));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read " + fileName, e);
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (JarFile jar : jars) {
+            jar.close();
+        }
+    }
+
+    /**
+     * Reads the class file, reusing the cached result if its content didn't change.
+     */
+    static ClassInfo read(Path classFile) {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(classFile, BasicFileAttributes.class);
+            final FileKey known = byPath.get(classFile);
+            if (known != null && known.size() == attributes.size() &&
+                known.lastModified() == attributes.lastModifiedTime().toMillis()) {
+                final ClassInfo cached = byHash.get(known.hash());
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            final byte[] bytes = Files.readAllBytes(classFile);
+            final String hash = sha256(bytes);
+            if (byHash.size() > MAX_CACHED_CLASSES) {
+                byHash.clear();
+                byPath.clear();
+            }
+            byPath.put(classFile, new FileKey(attributes.size(), attributes.lastModifiedTime().toMillis(), hash));
+            return byHash.computeIfAbsent(hash, key -> parse(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + classFile, e);
+        }
+    }
+
+    /**
+     * Parses the class file format, only looking at the parts needed to find the class, its super class and the class
+     * level annotations. See https://docs.oracle.com/javase/specs/jvms/se17/html/jvms-4.html
+     */
+    static ClassInfo parse(byte[] bytes) {
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != 0xCAFEBABE) {
+                throw new IllegalArgumentException("Not a class file");
+            }
+            in.readUnsignedShort(); // minor version
+            in.readUnsignedShort(); // major version
+            final int constantPoolCount = in.readUnsignedShort();
+            final String[] utf8 = new String[constantPoolCount];
+            final int[] classNameIndex = new int[constantPoolCount];
+            for (int i = 1; i < constantPoolCount; i++) {
+                final int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1 -> utf8[i] = in.readUTF();
+                    case 7 -> classNameIndex[i] = in.readUnsignedShort();
+                    case 8, 16, 19, 20 -> in.skipBytes(2);
+                    case 15 -> in.skipBytes(3);
+                    case 3, 4, 9, 10, 11, 12, 17, 18 -> in.skipBytes(4);
+                    case 5, 6 -> {
+                        in.skipBytes(8);
+                        // Longs and doubles take two entries
+                        i++;
+                    }
+                    default -> throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+                }
+            }
+            in.readUnsignedShort(); // access flags
+            final String name = utf8[classNameIndex[in.readUnsignedShort()]];
+            final int superIndex = in.readUnsignedShort();
+            final String superName = superIndex == 0 ? null : utf8[classNameIndex[superIndex]];
+            in.skipBytes(2 * in.readUnsignedShort()); // interfaces
+            skipMembers(in); // fields
+            skipMembers(in); // methods
+            final Set<String> annotations = new HashSet<>();
+            final int attributesCount = in.readUnsignedShort();
+            for (int i = 0; i < attributesCount; i++) {
+                final String attributeName = utf8[in.readUnsignedShort()];
+                final int length = in.readInt();
+                if ("RuntimeVisibleAnnotations".equals(attributeName)) {
+                    final int annotationCount = in.readUnsignedShort();
+                    for (int j = 0; j < annotationCount; j++) {
+                        annotations.add(utf8[in.readUnsignedShort()]);
+                        skipElementValuePairs(in);
+                    }
+                } else {
+                    in.skipBytes(length);
+                }
+            }
+            return new ClassInfo(name, superName, Set.copyOf(annotations));
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed class file", e);
+        }
+    }
+
+    private static void skipMembers(DataInputStream in) throws IOException {
+        final int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            in.skipBytes(6); // access flags, name and descriptor
+            final int attributesCount = in.readUnsignedShort();
+            for (int j = 0; j < attributesCount; j++) {
+                in.skipBytes(2);
+                in.skipBytes(in.readInt());
+            }
+        }
+    }
+
+    private static void skipElementValuePairs(DataInputStream in) throws IOException {
+        final int pairs = in.readUnsignedShort();
+        for (int i = 0; i < pairs; i++) {
+            in.skipBytes(2); // element name
+            skipElementValue(in);
+        }
+    }
+
+    private static void skipElementValue(DataInputStream in) throws IOException {
+        final int tag = in.readUnsignedByte();
+        switch (tag) {
+            case 'B', 'C', 'D', 'F', 'I', 'J', 'S', 'Z', 's', 'c' -> in.skipBytes(2);
+            case 'e' -> in.skipBytes(4);
+            case '@' -> {
+                in.skipBytes(2);
+                skipElementValuePairs(in);
+            }
+            case '[' -> {
+                final int count = in.readUnsignedShort();
+                for (int i = 0; i < count; i++) {
+                    skipElementValue(in);
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown element value tag " + (char) tag);
+        }
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -20,56 +20,313 @@ package co.elastic.gradle.utils;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZUtils;
 import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
-import org.apache.commons.io.IOUtils;
 
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.*;
+import java.util.concurrent.*;
 
 public class ExtractCompressedTar {
 
+    // Entries at least this large are read into memory and written to disk by a separate thread
+    private static final int PARALLEL_WRITE_THRESHOLD = 1024 * 1024;
+    // Larger entries are streamed to disk, so a few of them can be in flight at once
+    private static final int MAX_ENTRY_IN_MEMORY = 16 * 1024 * 1024;
+    // Shared by all extractions of the JVM, e.g. pushes of several projects in the same daemon. One permit per KiB
+    // that is read but not yet written.
+    static final int MAX_KIB_IN_FLIGHT = 64 * 1024;
+    static final Semaphore BYTES_IN_FLIGHT = new Semaphore(MAX_KIB_IN_FLIGHT);
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+    private static final int DEFAULT_READ_AHEAD_SIZE = 1024 * 1024;
+    private static final int PIPELINE_CHUNK_SIZE = 256 * 1024;
+    private static final int PIPELINE_CHUNKS = 16;
+
+    /**
+     * Opens the archive, decompressing it if it's zstd, gzip, xz or bzip2 compressed.
+     */
     public static InputStream uncompressedInputStream(final Path archive) throws IOException {
-        InputStream result;
+        return uncompressedInputStream(archive, DEFAULT_READ_AHEAD_SIZE);
+    }
+
+    /**
+     * Same as {@link #uncompressedInputStream(Path)}, reading the archive from disk in blocks of readAheadSize.
+     */
+    public static InputStream uncompressedInputStream(final Path archive, int readAheadSize) throws IOException {
+        return decompress(archive, readAheadSize);
+    }
+
+    /**
+     * Same as {@link #uncompressedInputStream(Path)}, but compressed archives are decompressed on a separate thread
+     * while the caller consumes the stream.
+     */
+    public static InputStream pipelinedInputStream(final Path archive) throws IOException {
+        final InputStream result = decompress(archive, DEFAULT_READ_AHEAD_SIZE);
+        if (result instanceof CompressorInputStream) {
+            return new PipelinedInputStream(result, PIPELINE_CHUNK_SIZE, PIPELINE_CHUNKS);
+        }
+        // Not compressed, nothing to gain
+        return result;
+    }
+
+    private static InputStream decompress(final Path archive, int readAheadSize) throws IOException {
         InputStream imageStream = new BufferedInputStream(
-                Files.newInputStream(archive, StandardOpenOption.READ)
+                Files.newInputStream(archive, StandardOpenOption.READ),
+                readAheadSize
         );
-        byte[] magicBytes = new byte[4];
-        imageStream.mark(4);
-        if (imageStream.read(magicBytes) != 4) {
-            throw new IOException("Failed to read magic bytes");
+        try {
+            imageStream.mark(1);
+            if (imageStream.read() == -1) {
+                throw new IOException("Failed to read magic bytes");
+            }
+            imageStream.reset();
+            return decompress(imageStream);
+        } catch (IOException e) {
+            imageStream.close();
+            throw new IOException("Failed to read " + archive, e);
         }
-        imageStream.reset();
+    }
+
+    /**
+     * Wraps the stream into a decompressing one if it starts with the magic bytes of a known compression format,
+     * otherwise the stream itself is returned. The stream needs to support mark and reset.
+     */
+    public static InputStream decompress(final InputStream stream) throws IOException {
+        byte[] magicBytes = new byte[6];
+        stream.mark(magicBytes.length);
+        final int read = stream.readNBytes(magicBytes, 0, magicBytes.length);
+        stream.reset();
         int magicNumber = ByteBuffer.wrap(magicBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
         // https://tools.ietf.org/html/rfc8478
         if (magicNumber == 0xFD2FB528) {
-            result = new ZstdCompressorInputStream(imageStream);
-        } else {
-            result = imageStream;
+            return new ZstdCompressorInputStream(stream);
         }
-        return result;
+        if (GzipCompressorInputStream.matches(magicBytes, read)) {
+            return new GzipCompressorInputStream(stream, true);
+        }
+        if (XZUtils.matches(magicBytes, read)) {
+            if (!XZUtils.isXZCompressionAvailable()) {
+                throw new IOException("Reading xz compressed archives requires org.tukaani:xz on the classpath");
+            }
+            return new XZCompressorInputStream(stream, true);
+        }
+        if (BZip2CompressorInputStream.matches(magicBytes, read)) {
+            return new BZip2CompressorInputStream(stream, true);
+        }
+        return stream;
     }
 
+    /**
+     * Extracts the (optionally compressed) archive into the destination, restoring permissions, modification
+     * times, symbolic and hard links. Entries that would end up outside the destination are rejected.
+     */
     public static void extract(final Path archive, final Path destination) throws IOException {
-        Files.createDirectories(destination.getParent());
-        TarArchiveInputStream tarStream = new TarArchiveInputStream(uncompressedInputStream(archive));
-        TarArchiveEntry entry;
-        while ((entry = tarStream.getNextTarEntry()) != null) {
-            Path entryPath = destination.resolve(entry.getName());
+        Files.createDirectories(destination);
+        try (TarArchiveInputStream tarStream = new TarArchiveInputStream(pipelinedInputStream(archive))) {
+            new Extraction(destination.toAbsolutePath().normalize()).run(tarStream);
+        }
+    }
+
+    private static class Extraction {
+        private final Path destination;
+        private final boolean posix;
+        private final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        private final Set<Path> directories = new HashSet<>();
+        private final Set<Path> symlinks = new HashSet<>();
+        private final Map<Path, Future<?>> pendingWrites = new HashMap<>();
+        private final Map<Runnable, Integer> reservedPermits = new ConcurrentHashMap<>();
+        private final List<TarArchiveEntry> directoryEntries = new ArrayList<>();
+        private final ExecutorService writers = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()))
+        );
+
+        private Extraction(Path destination) throws IOException {
+            this.destination = destination;
+            this.posix = Files.getFileStore(destination).supportsFileAttributeView("posix");
+            directories.add(destination);
+        }
+
+        private void run(TarArchiveInputStream tarStream) throws IOException {
+            try {
+                TarArchiveEntry entry;
+                while ((entry = tarStream.getNextTarEntry()) != null) {
+                    extractEntry(tarStream, entry);
+                }
+                awaitAll();
+                // Contents change the modification time of directories and might not be writable, so set these last,
+                // deepest first.
+                for (int i = directoryEntries.size() - 1; i >= 0; i--) {
+                    final TarArchiveEntry directory = directoryEntries.get(i);
+                    restoreMetadata(resolve(directory.getName()), directory);
+                }
+            } finally {
+                // Writes that never started still hold their share of the memory budget
+                for (Runnable notStarted : writers.shutdownNow()) {
+                    BYTES_IN_FLIGHT.release(reservedPermits.get(notStarted));
+                }
+            }
+        }
 
+        private void extractEntry(TarArchiveInputStream tarStream, TarArchiveEntry entry) throws IOException {
+            final Path entryPath = resolve(entry.getName());
+            awaitPending(entryPath);
             if (entry.isDirectory()) {
-                Files.createDirectories(entryPath);
-            } else {
-                if (entryPath.getParent() != null) {
-                    Files.createDirectories(entryPath.getParent());
+                createDirectories(entryPath);
+                directoryEntries.add(entry);
+                return;
+            }
+            createDirectories(entryPath.getParent());
+            if (entry.isSymbolicLink()) {
+                Files.deleteIfExists(entryPath);
+                Files.createSymbolicLink(entryPath, Paths.get(entry.getLinkName()));
+                symlinks.add(entryPath);
+            } else if (entry.isLink()) {
+                final Path target = resolve(entry.getLinkName());
+                awaitPending(target);
+                symlinks.remove(entryPath);
+                Files.deleteIfExists(entryPath);
+                Files.createLink(entryPath, target);
+            } else if (entry.isFile()) {
+                // Never write through a link or into a read-only file left by an earlier entry
+                symlinks.remove(entryPath);
+                Files.deleteIfExists(entryPath);
+                final long size = entry.getSize();
+                final int permits = (int) Math.max(1, size / 1024);
+                // Write on the current thread rather than wait while other extractions use up the memory budget
+                if (size >= PARALLEL_WRITE_THRESHOLD && size <= MAX_ENTRY_IN_MEMORY && BYTES_IN_FLIGHT.tryAcquire(permits)) {
+                    writeInBackground(tarStream, entry, entryPath, permits);
+                } else {
+                    try (FileChannel channel = openForWrite(entryPath)) {
+                        int read;
+                        while ((read = tarStream.read(buffer)) != -1) {
+                            writeFully(channel, ByteBuffer.wrap(buffer, 0, read));
+                        }
+                    }
+                    restoreMetadata(entryPath, entry);
                 }
-                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(entryPath))) {
-                    IOUtils.copy(tarStream, out);
+            }
+            // Devices and fifos can't be created by an unprivileged user and are skipped
+        }
+
+        private void writeInBackground(TarArchiveInputStream tarStream, TarArchiveEntry entry, Path entryPath, int permits)
+                throws IOException {
+            final byte[] content;
+            try {
+                content = tarStream.readNBytes((int) entry.getSize());
+            } catch (IOException | RuntimeException e) {
+                BYTES_IN_FLIGHT.release(permits);
+                throw e;
+            }
+            final FutureTask<Void> write = new FutureTask<>(() -> {
+                try (FileChannel channel = openForWrite(entryPath)) {
+                    writeFully(channel, ByteBuffer.wrap(content));
+                } finally {
+                    BYTES_IN_FLIGHT.release(permits);
+                }
+                restoreMetadata(entryPath, entry);
+                return null;
+            });
+            reservedPermits.put(write, permits);
+            pendingWrites.put(entryPath, write);
+            writers.execute(write);
+        }
+
+        private Path resolve(String name) throws IOException {
+            final Path path = destination.resolve(name).normalize();
+            if (!path.startsWith(destination)) {
+                throw new IOException("Archive entry " + name + " is outside of " + destination);
+            }
+            for (Path parent = path.getParent(); parent != null && !parent.equals(destination); parent = parent.getParent()) {
+                if (symlinks.contains(parent)) {
+                    throw new IOException("Archive entry " + name + " would be extracted through the symbolic link " + parent);
+                }
+            }
+            return path;
+        }
+
+        private void createDirectories(Path directory) throws IOException {
+            if (directories.contains(directory)) {
+                return;
+            }
+            Files.createDirectories(directory);
+            for (Path each = directory; each != null && directories.add(each); each = each.getParent()) {
+                if (each.equals(destination)) {
+                    break;
+                }
+            }
+        }
+
+        private void restoreMetadata(Path path, TarArchiveEntry entry) throws IOException {
+            if (posix) {
+                Files.setPosixFilePermissions(path, permissions(entry.getMode()));
+            }
+            Files.setLastModifiedTime(path, FileTime.from(entry.getModTime().toInstant()));
+        }
+
+        private void awaitPending(Path path) throws IOException {
+            final Future<?> pending = pendingWrites.remove(path);
+            if (pending != null) {
+                await(pending);
+            }
+        }
+
+        private void awaitAll() throws IOException {
+            for (Future<?> pending : pendingWrites.values()) {
+                await(pending);
+            }
+            pendingWrites.clear();
+        }
+
+        private static void await(Future<?> pending) throws IOException {
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while extracting");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException ioException) {
+                    throw ioException;
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        private static FileChannel openForWrite(Path path) throws IOException {
+            return FileChannel.open(
+                    path,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+            );
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer content) throws IOException {
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        }
+
+        private static Set<PosixFilePermission> permissions(int mode) {
+            final PosixFilePermission[] all = {
+                    PosixFilePermission.OTHERS_EXECUTE, PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_READ,
+                    PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_READ,
+                    PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_READ,
+            };
+            final Set<PosixFilePermission> result = EnumSet.noneOf(PosixFilePermission.class);
+            for (int bit = 0; bit < all.length; bit++) {
+                if ((mode & (1 << bit)) != 0) {
+                    result.add(all[bit]);
                 }
             }
+            return result;
         }
     }
 
@@ -29,9 +29,7 @@ import org.gradle.api.tasks.testing.Test;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.lang.annotation.Annotation;
 import java.net.URL;
-import java.net.URLClassLoader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
@@ -84,26 +82,32 @@ public class GradleUtils {
 
     }
 
+    /**
+     * Names of the classes in the classes dirs that have the annotation, same as checking
+     * {@link Class#isAnnotationPresent(Class)} but without loading any classes.
+     */
     public static String[] classNamesByAnnotation(Set<File> classesDir, List<URL> classpath, String annotation) {
-        final URLClassLoader loader = URLClassLoader.newInstance(classpath.toArray(URL[]::new));
-        Class<? extends Annotation> annotationClass;
-        try {
-            annotationClass = loader.loadClass(annotation).asSubclass(Annotation.class);
-        } catch (ClassNotFoundException e) {
-            throw new GradleException("Failed to load annotation class", e);
+        try (ClassAnnotationIndex index = new ClassAnnotationIndex(classpath)) {
+            final boolean inherited = index.isInherited(annotation)
+                    .orElseThrow(() -> new GradleException("Failed to load annotation class " + annotation));
+            return classesDir.stream()
+                    .filter(File::exists)
+                    .flatMap(dir -> classFiles(dir.toPath()).stream())
+                    .map(ClassAnnotationIndex::read)
+                    .filter(classInfo -> index.isAnnotationPresent(classInfo, annotation, inherited))
+                    .map(classInfo -> classInfo.name().replace('/', '.'))
+                    .toArray(String[]::new);
+        } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+            throw new GradleException("Failed to read test classes", e);
         }
+    }
 
-        final List<String> strings = testClassNames(classesDir);
-        return strings
-                .stream()
-                .filter(name -> {
-                    try {
-                        return loader.loadClass(name).isAnnotationPresent(annotationClass);
-                    } catch (ClassNotFoundException e) {
-                        throw new GradleException("Failed to load test class", e);
-                    }
-                })
-                .toArray(String[]::new);
+    private static List<Path> classFiles(Path classesDir) {
+        try (Stream<Path> walk = Files.walk(classesDir)) {
+            return walk.filter(path -> path.toString().endsWith(".class")).collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     public static boolean isCi() {
@@ -0,0 +1,284 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.file.FileVisitDetails;
+import org.gradle.api.file.FileVisitor;
+import org.gradle.api.file.RelativePath;
+import org.gradle.api.internal.file.copy.CopySpecResolver;
+import org.gradle.api.internal.file.copy.DefaultCopySpec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Synchronizes a directory with a set of source files by hard-linking them instead of copying.
+ * <p>
+ * Files that are already linked to their source are left alone, stale files are removed and files on a different
+ * device (or a file system without hard links) are copied instead.
+ */
+public class HardlinkSync {
+
+    public record Result(int linked, int copied, int unchanged, int removed) {
+        @Override
+        public String toString() {
+            return linked + " linked, " + copied + " copied, " + unchanged + " unchanged, " + removed + " removed";
+        }
+    }
+
+    private final FileSystemOperations fileSystemOperations;
+
+    public HardlinkSync(FileSystemOperations fileSystemOperations) {
+        this.fileSystemOperations = fileSystemOperations;
+    }
+
+    /**
+     * Same as syncing the files into the target directory, every file ends up at the root of it.
+     */
+    public Result syncFiles(Iterable<File> files, Path targetDir) {
+        final Map<String, Path> sources = new LinkedHashMap<>();
+        for (File file : files) {
+            if (file.isFile()) {
+                sources.putIfAbsent(file.getName(), file.toPath());
+            }
+        }
+        return sync(sources, targetDir);
+    }
+
+    /**
+     * Same as a sync with the given copy spec. Copy specs that transform the files (filters, renames, file modes,
+     * eachFile actions) can't be represented by links, for these we fall back to a regular sync.
+     */
+    public Result syncCopySpec(DefaultCopySpec copySpec, Path targetDir) {
+        final CopySpecResolver rootResolver = copySpec.buildRootResolver();
+        final List<CopySpecResolver> resolvers = new ArrayList<>();
+        rootResolver.walk(resolvers::add);
+        if (!resolvers.stream().allMatch(HardlinkSync::canLink)) {
+            // Gradle would write through an existing link and modify the source file
+            removeLinkedFiles(targetDir);
+            final Set<Path> before = listFiles(targetDir);
+            fileSystemOperations.sync(spec -> {
+                spec.into(targetDir);
+                spec.with(copySpec);
+            });
+            final Set<Path> after = listFiles(targetDir);
+            before.removeAll(after);
+            return new Result(0, after.size(), 0, before.size());
+        }
+
+        final Map<String, Path> sources = new LinkedHashMap<>();
+        final Set<String> directories = new LinkedHashSet<>();
+        for (CopySpecResolver resolver : resolvers) {
+            final RelativePath destination = resolver.getDestPath();
+            final boolean includeEmptyDirs = resolver.getIncludeEmptyDirs();
+            resolver.getSource().visit(new FileVisitor() {
+                @Override
+                public void visitDir(FileVisitDetails dirDetails) {
+                    if (includeEmptyDirs) {
+                        directories.add(destination.append(dirDetails.getRelativePath()).getPathString());
+                    }
+                }
+
+                @Override
+                public void visitFile(FileVisitDetails fileDetails) {
+                    sources.putIfAbsent(
+                            destination.append(fileDetails.getRelativePath()).getPathString(),
+                            fileDetails.getFile().toPath()
+                    );
+                }
+            });
+        }
+        return sync(sources, directories, targetDir);
+    }
+
+    /**
+     * Whether the files of a resolved copy spec end up in the target unchanged, so they can be linked.
+     */
+    public static boolean canLink(CopySpecResolver resolver) {
+        return resolver.getAllCopyActions().isEmpty() && resolver.getFileMode() == null;
+    }
+
+    /**
+     * Makes the target directory contain exactly the given files, keyed by their path relative to it.
+     */
+    public static Result sync(Map<String, Path> sources, Path targetDir) {
+        return sync(sources, Set.of(), targetDir);
+    }
+
+    /**
+     * Same as {@link #sync(Map, Path)}, but also makes sure the given directories exist, even if they are empty.
+     */
+    public static Result sync(Map<String, Path> sources, Set<String> directories, Path targetDir) {
+        int linked = 0;
+        int copied = 0;
+        int unchanged = 0;
+        try {
+            Files.createDirectories(targetDir);
+            final Set<String> expected = new HashSet<>(sources.keySet());
+            expected.addAll(directories);
+            final int removed = removeStale(expected, targetDir);
+            for (String directory : directories) {
+                Files.createDirectories(targetDir.resolve(directory));
+            }
+            for (Map.Entry<String, Path> entry : sources.entrySet()) {
+                switch (place(entry.getValue(), targetDir.resolve(entry.getKey()))) {
+                    case LINKED -> linked++;
+                    case COPIED -> copied++;
+                    case UNCHANGED -> unchanged++;
+                }
+            }
+            return new Result(linked, copied, unchanged, removed);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to synchronize " + targetDir, e);
+        }
+    }
+
+    /**
+     * Applies known changes to a target directory that was synchronized before, without looking at any other file.
+     * Directories left empty by removals are removed as well.
+     */
+    public static Result applyChanges(Map<String, Path> changed, Collection<String> removed, Path targetDir) {
+        int linked = 0;
+        int copied = 0;
+        int unchanged = 0;
+        int deleted = 0;
+        try {
+            for (String each : removed) {
+                final Path target = targetDir.resolve(each);
+                if (Files.deleteIfExists(target)) {
+                    deleted++;
+                    deleted += removeEmptyParents(target.getParent(), targetDir);
+                }
+            }
+            for (Map.Entry<String, Path> entry : changed.entrySet()) {
+                switch (place(entry.getValue(), targetDir.resolve(entry.getKey()))) {
+                    case LINKED -> linked++;
+                    case COPIED -> copied++;
+                    case UNCHANGED -> unchanged++;
+                }
+            }
+            return new Result(linked, copied, unchanged, deleted);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to update " + targetDir, e);
+        }
+    }
+
+    private enum Placement {LINKED, COPIED, UNCHANGED}
+
+    private static Placement place(Path link, Path target) throws IOException {
+        // Like Gradle's sync we follow symbolic links, linking the link itself would break relative ones
+        final Path source = link.toRealPath();
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            if (!Files.isSymbolicLink(target) && Files.isSameFile(source, target)) {
+                return Placement.UNCHANGED;
+            }
+            Files.delete(target);
+        }
+        Files.createDirectories(target.getParent());
+        if (link(source, target)) {
+            return Placement.LINKED;
+        }
+        Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+        return Placement.COPIED;
+    }
+
+    private static int removeEmptyParents(Path dir, Path targetDir) throws IOException {
+        int removed = 0;
+        while (dir != null && dir.startsWith(targetDir) && !dir.equals(targetDir)) {
+            try (Stream<Path> children = Files.list(dir)) {
+                if (children.findAny().isPresent()) {
+                    break;
+                }
+            }
+            Files.delete(dir);
+            removed++;
+            dir = dir.getParent();
+        }
+        return removed;
+    }
+
+    private static boolean link(Path source, Path target) {
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (FileSystemException | UnsupportedOperationException e) {
+            // Different devices or a file system without hard links
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int removeStale(Set<String> expected, Path targetDir) throws IOException {
+        final Set<Path> keep = new HashSet<>();
+        for (String each : expected) {
+            Path path = targetDir.resolve(each);
+            while (path != null && !path.equals(targetDir) && keep.add(path)) {
+                path = path.getParent();
+            }
+        }
+        final List<Path> stale;
+        try (Stream<Path> walk = Files.walk(targetDir)) {
+            stale = walk.filter(path -> !path.equals(targetDir) && !keep.contains(path))
+                    .sorted(Comparator.reverseOrder())
+                    .toList();
+        }
+        for (Path path : stale) {
+            Files.deleteIfExists(path);
+        }
+        return stale.size();
+    }
+
+    private static Set<Path> listFiles(Path targetDir) {
+        if (!Files.isDirectory(targetDir)) {
+            return new HashSet<>();
+        }
+        try (Stream<Path> walk = Files.walk(targetDir)) {
+            return walk.filter(Files::isRegularFile)
+                    .map(targetDir::relativize)
+                    .collect(Collectors.toCollection(HashSet::new));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void removeLinkedFiles(Path targetDir) {
+        if (!Files.isDirectory(targetDir)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(targetDir)) {
+            for (Path path : walk.filter(Files::isRegularFile).toList()) {
+                if (((Integer) Files.getAttribute(path, "unix:nlink")) > 1) {
+                    Files.delete(path);
+                }
+            }
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // No way to tell links apart, start from scratch
+            fileSystemOperations.delete(spec -> spec.delete(targetDir));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the source on a separate thread, ahead of the consumer, so expensive work in the source (e.g. decompression)
+ * overlaps with whatever the consumer does with the data.
+ * <p>
+ * At most {@code chunks} chunks of {@code chunkSize} bytes are read ahead. Errors of the source are thrown to the
+ * consumer once it reaches them.
+ */
+public class PipelinedInputStream extends InputStream {
+
+    private static final byte[] END = new byte[0];
+
+    private final InputStream source;
+    private final BlockingQueue<byte[]> queue;
+    private final Thread reader;
+    private volatile Throwable error;
+    private volatile boolean closed;
+    private byte[] current = null;
+    private int position = 0;
+
+    public PipelinedInputStream(InputStream source, int chunkSize, int chunks) {
+        this.source = source;
+        this.queue = new ArrayBlockingQueue<>(chunks);
+        this.reader = new Thread(() -> readAhead(chunkSize), "pipelined-read-ahead");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readAhead(int chunkSize) {
+        try {
+            while (!closed) {
+                final byte[] chunk = source.readNBytes(chunkSize);
+                if (chunk.length == 0) {
+                    break;
+                }
+                queue.put(chunk);
+                if (chunk.length < chunkSize) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed by the consumer
+        } catch (Throwable e) {
+            error = e;
+        } finally {
+            // The consumer would wait forever without the end marker, no matter how reading stopped
+            if (!closed) {
+                try {
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    // Closed by the consumer
+                }
+            }
+        }
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (current == END) {
+            throwError();
+            return false;
+        }
+        if (current == null || position == current.length) {
+            try {
+                current = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for data");
+            }
+            position = 0;
+            if (current == END) {
+                throwError();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void throwError() throws IOException {
+        if (error != null) {
+            throw new IOException("Failed to read ahead", error);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        final int count = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current == null || current == END ? 0 : current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        reader.interrupt();
+        try {
+            reader.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        queue.clear();
+        source.close();
+    }
+}
@@ -45,4 +45,33 @@ public class PrefixingOutputStream extends OutputStream {
         }
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        if (!firstByteWritten) {
+            delegate.write(prefix);
+            firstByteWritten = true;
+        }
+        // Write everything up to and including each newline in one call
+        int start = off;
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\n') {
+                delegate.write(b, start, i + 1 - start);
+                delegate.write(prefix);
+                start = i + 1;
+            }
+        }
+        if (start < end) {
+            delegate.write(b, start, end - start);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+    }
+
 }
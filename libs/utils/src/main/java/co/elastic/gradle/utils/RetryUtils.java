@@ -19,6 +19,7 @@
 package co.elastic.gradle.utils;
 
 import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -35,6 +36,7 @@ public class RetryUtils {
         private Optional<Consumer<Exception>> retryErrorConsumer = Optional.empty();
         private Optional<Integer> maxAttempt = Optional.empty();
         private Optional<Long> initialDelay = Optional.empty();
+        private RetryGuard guard = RetryGuard.NONE;
 
         private RetryBuilder(Supplier<T> action) {
             this.action = action;
@@ -50,6 +52,15 @@ public class RetryUtils {
             return this;
         }
 
+        /**
+         * Same as an exponential backoff, but waits a random time between 0 and the backoff so that many clients
+         * failing at the same time don't retry in lockstep.
+         */
+        public RetryBuilder<T> exponentialBackoffWithJitter(long baseTime, long cap) {
+            this.scheduler = Optional.of(new FullJitterBackoff(baseTime, cap));
+            return this;
+        }
+
         public RetryBuilder<T> initialDelay(long initialDelay) {
             this.initialDelay = Optional.of(initialDelay);
             return this;
@@ -65,38 +76,65 @@ public class RetryUtils {
             return this;
         }
 
-        private T execute(int attempts) {
-            if (attempts == 0) {
-                this.initialDelay.ifPresent(delay -> {
-                    try {
-                        Thread.sleep(delay);
+        public RetryBuilder<T> guard(RetryGuard guard) {
+            this.guard = guard == null ? RetryGuard.NONE : guard;
+            return this;
+        }
+
+        public T execute() {
+            if (initialDelay.isPresent()) {
+                sleep(initialDelay.get(), 0);
+            }
+            RuntimeException lastFailure = null;
+            for (int attempts = 0; ; attempts++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new RetryException("Interrupted before attempt " + attempts, new InterruptedException());
+                }
+                final T result;
+                try {
+                    guard.beforeAttempt();
+                } catch (RuntimeException rejected) {
+                    // Rejected without running, the failure that led here is what the caller needs to see
+                    if (lastFailure == null) {
+                        throw rejected;
                     }
-                    catch (InterruptedException e) {
-                        //may be trying to shut-down. End early.
+                    lastFailure.addSuppressed(rejected);
+                    throw lastFailure;
+                }
+                try {
+                    result = action.get();
+                } catch (RuntimeException e) {
+                    lastFailure = e;
+                    guard.onFailure(e);
+                    final int attempt = attempts;
+                    if (maxAttempt.filter(maxAttempt -> attempt >= maxAttempt - 1).isPresent()) {
+                        guard.onGiveUp(e);
+                        throw e;
                     }
-                });
-            }
-
-            try {
-                return action.get();
-            } catch (Exception e) {
-                maxAttempt
-                        .filter(maxAttempt -> attempts >= maxAttempt - 1)
-                        .ifPresent( it -> { throw e; } );
-                retryErrorConsumer.ifPresent(onError -> onError.accept(e));
-                scheduler.ifPresent(scheduler -> {
-                    try {
-                        Thread.sleep(scheduler.deferTime(attempts));
-                    } catch (InterruptedException interruptedException) {
-                        throw new RetryException("Error while waiting during retry "+ attempts, interruptedException);
+                    final long delay = scheduler.map(scheduler -> scheduler.deferTime(attempt)).orElse(0L);
+                    if (!guard.tryRetry(delay)) {
+                        guard.onGiveUp(e);
+                        throw e;
                     }
-                });
-                return execute(attempts + 1);
+                    retryErrorConsumer.ifPresent(onError -> onError.accept(e));
+                    sleep(delay, attempts);
+                    continue;
+                }
+                guard.onSuccess();
+                return result;
             }
         }
 
-        public T execute() {
-            return execute(0);
+        private static void sleep(long delay, int attempts) {
+            if (delay <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RetryException("Error while waiting during retry " + attempts, e);
+            }
         }
 
     }
@@ -105,6 +143,42 @@ public class RetryUtils {
         long deferTime(int count);
     }
 
+    /**
+     * Hooks that let retries be coordinated beyond a single call, e.g. by sharing a budget or a circuit breaker.
+     */
+    public interface RetryGuard {
+        RetryGuard NONE = new RetryGuard() {
+        };
+
+        /**
+         * Called before every attempt, throws to reject the attempt without running it.
+         */
+        default void beforeAttempt() {
+        }
+
+        default void onSuccess() {
+        }
+
+        /**
+         * Called after every failed attempt.
+         */
+        default void onFailure(Exception e) {
+        }
+
+        /**
+         * Called once the call failed for good, after its last failed attempt.
+         */
+        default void onGiveUp(Exception e) {
+        }
+
+        /**
+         * Called before waiting to retry, returns false to give up instead.
+         */
+        default boolean tryRetry(long delayMillis) {
+            return true;
+        }
+    }
+
     public static class ExponentialBackoff implements RetryScheduler {
         private final long base;
         private final long cap;
@@ -121,6 +195,18 @@ public class RetryUtils {
         }
     }
 
+    public static class FullJitterBackoff extends ExponentialBackoff {
+
+        public FullJitterBackoff(long base, long cap) {
+            super(base, cap);
+        }
+
+        @Override
+        public long deferTime(int count) {
+            return ThreadLocalRandom.current().nextLong(super.deferTime(count) + 1);
+        }
+    }
+
     public static class RetryException extends RuntimeException {
         public RetryException(String message, Throwable cause) {
             super(message, cause);
@@ -0,0 +1,140 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Keeps the CA chains extracted with {@link SSLCAChainExtractor} on disk, one PEM file per host and port, so they are
+ * only fetched again once one of the certificates expires.
+ */
+public class SSLCAChainCache {
+
+    private final Path directory;
+    private final BiFunction<String, Integer, List<X509Certificate>> extractor;
+    private final Clock clock;
+    private final Map<String, List<X509Certificate>> inMemory = new ConcurrentHashMap<>();
+
+    public SSLCAChainCache(Path directory) {
+        this(directory, SSLCAChainExtractor::extract, Clock.systemUTC());
+    }
+
+    SSLCAChainCache(Path directory, BiFunction<String, Integer, List<X509Certificate>> extractor, Clock clock) {
+        this.directory = directory;
+        this.extractor = extractor;
+        this.clock = clock;
+    }
+
+    public List<X509Certificate> get(String host, int port) {
+        return getAll(List.of(host + ":" + port)).get(host + ":" + port);
+    }
+
+    /**
+     * Returns the chains of the given {@code host:port} pairs, the ones that are not cached are fetched concurrently.
+     */
+    public Map<String, List<X509Certificate>> getAll(Collection<String> hostsAndPorts) {
+        final Map<String, List<X509Certificate>> result = new LinkedHashMap<>();
+        final List<String> missing = new ArrayList<>();
+        for (String hostAndPort : new LinkedHashSet<>(hostsAndPorts)) {
+            final List<X509Certificate> cached = inMemory.computeIfAbsent(hostAndPort, this::readFromDisk);
+            if (cached != null && isValid(cached)) {
+                result.put(hostAndPort, cached);
+            } else {
+                missing.add(hostAndPort);
+            }
+        }
+        SSLCAChainExtractor.extractAll(missing, extractor).forEach((hostAndPort, chain) -> {
+            writeToDisk(hostAndPort, chain);
+            inMemory.put(hostAndPort, chain);
+            result.put(hostAndPort, chain);
+        });
+        return result;
+    }
+
+    private boolean isValid(List<X509Certificate> chain) {
+        final Instant now = clock.instant();
+        return !chain.isEmpty() && chain.stream().allMatch(certificate ->
+                certificate.getNotAfter().toInstant().isAfter(now) &&
+                !certificate.getNotBefore().toInstant().isAfter(now)
+        );
+    }
+
+    private Path fileFor(String hostAndPort) {
+        return directory.resolve(hostAndPort.replaceAll("[^A-Za-z0-9.-]", "_") + ".pem");
+    }
+
+    private List<X509Certificate> readFromDisk(String hostAndPort) {
+        final Path file = fileFor(hostAndPort);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            final List<X509Certificate> chain = new ArrayList<>();
+            CertificateFactory.getInstance("X.509")
+                    .generateCertificates(new ByteArrayInputStream(Files.readAllBytes(file)))
+                    .forEach(certificate -> chain.add((X509Certificate) certificate));
+            return List.copyOf(chain);
+        } catch (IOException | CertificateException e) {
+            // Corrupt or unreadable, fetch it again
+            return null;
+        }
+    }
+
+    private void writeToDisk(String hostAndPort, List<X509Certificate> chain) {
+        final Base64.Encoder encoder = Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII));
+        final StringBuilder pem = new StringBuilder();
+        try {
+            for (X509Certificate certificate : chain) {
+                pem.append("-----BEGIN CERTIFICATE-----\n")
+                        .append(encoder.encodeToString(certificate.getEncoded()))
+                        .append("\n-----END CERTIFICATE-----\n");
+            }
+        } catch (CertificateEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            Files.createDirectories(directory);
+            final Path temp = Files.createTempFile(directory, "chain", ".tmp");
+            Files.writeString(temp, pem);
+            try {
+                Files.move(temp, fileFor(hostAndPort), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, fileFor(hostAndPort), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to cache the CA chain of " + hostAndPort, e);
+        }
+    }
+}
@@ -21,17 +21,25 @@ package co.elastic.gradle.utils;
 import javax.net.ssl.*;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
 
 public class SSLCAChainExtractor {
 
+    private static final int TIMEOUT_MILLIS = 10000;
+    private static final int MAX_PARALLEL_PROBES = 8;
+
     private static class SavingTrustManager implements X509TrustManager {
         private final X509TrustManager tm;
         private X509Certificate[] chain;
@@ -60,14 +68,20 @@ public class SSLCAChainExtractor {
 
     public static List<X509Certificate> extract(String host, int port) {
         try {
-            SSLContext context = SSLContext.getInstance("TLS");
             final TrustManagerFactory tmf = TrustManagerFactory.getInstance(
                     TrustManagerFactory.getDefaultAlgorithm()
             );
             tmf.init((KeyStore) null);
-            final SavingTrustManager savingTrustManager = new SavingTrustManager((X509TrustManager) tmf
-                    .getTrustManagers()[0]
-            );
+            return extract(host, port, (X509TrustManager) tmf.getTrustManagers()[0]);
+        } catch (NoSuchAlgorithmException | KeyStoreException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static List<X509Certificate> extract(String host, int port, X509TrustManager trustManager) {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            final SavingTrustManager savingTrustManager = new SavingTrustManager(trustManager);
             context.init(
                     null,
                     new TrustManager[]{
@@ -77,11 +91,11 @@ public class SSLCAChainExtractor {
             );
 
             SSLSocketFactory factory = context.getSocketFactory();
-            SSLSocket socket = (SSLSocket) factory.createSocket(host, port);
-            socket.setSoTimeout(10000);
-            socket.startHandshake();
-            socket.close();
-
+            try (SSLSocket socket = (SSLSocket) factory.createSocket()) {
+                socket.connect(new InetSocketAddress(host, port), TIMEOUT_MILLIS);
+                socket.setSoTimeout(TIMEOUT_MILLIS);
+                socket.startHandshake();
+            }
 
             X509Certificate[] chain = savingTrustManager.chain;
             if (chain == null) {
@@ -91,9 +105,62 @@ public class SSLCAChainExtractor {
             return Arrays.asList(chain);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
-        } catch (NoSuchAlgorithmException | KeyStoreException | KeyManagementException e) {
+        } catch (NoSuchAlgorithmException | KeyManagementException e) {
             throw new IllegalStateException(e);
         }
     }
 
+    /**
+     * Extracts the chains of several hosts, given as {@code host:port}, at the same time.
+     */
+    public static Map<String, List<X509Certificate>> extractAll(Collection<String> hostsAndPorts) {
+        return extractAll(hostsAndPorts, SSLCAChainExtractor::extract);
+    }
+
+    static Map<String, List<X509Certificate>> extractAll(
+            Collection<String> hostsAndPorts,
+            BiFunction<String, Integer, List<X509Certificate>> extractor
+    ) {
+        final Set<String> unique = new LinkedHashSet<>(hostsAndPorts);
+        if (unique.isEmpty()) {
+            return Map.of();
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(unique.size(), MAX_PARALLEL_PROBES));
+        try {
+            final Map<String, Future<List<X509Certificate>>> futures = new LinkedHashMap<>();
+            for (String hostAndPort : unique) {
+                final int separator = hostAndPort.lastIndexOf(':');
+                if (separator <= 0) {
+                    throw new IllegalArgumentException("Expected host:port but got " + hostAndPort);
+                }
+                final String host = hostAndPort.substring(0, separator);
+                final int port = Integer.parseInt(hostAndPort.substring(separator + 1));
+                futures.put(hostAndPort, executor.submit(() -> extractor.apply(host, port)));
+            }
+            final Map<String, List<X509Certificate>> result = new LinkedHashMap<>();
+            final List<String> failures = new ArrayList<>();
+            RuntimeException firstFailure = null;
+            for (Map.Entry<String, Future<List<X509Certificate>>> entry : futures.entrySet()) {
+                try {
+                    result.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    failures.add(entry.getKey());
+                    if (firstFailure == null) {
+                        firstFailure = e.getCause() instanceof RuntimeException runtimeException ?
+                                runtimeException : new IllegalStateException(e.getCause());
+                    }
+                }
+            }
+            if (firstFailure != null) {
+                throw new IllegalStateException("Could not get CA chain from " + failures, firstFailure);
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while getting CA chains", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
 }
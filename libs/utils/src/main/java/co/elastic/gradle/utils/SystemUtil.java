@@ -18,13 +18,41 @@
  */
 package co.elastic.gradle.utils;
 
-import org.apache.commons.io.IOUtils;
-
-import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.charset.StandardCharsets;
+import com.sun.security.auth.module.UnixSystem;
 
 public class SystemUtil {
+
+    /**
+     * The current Unix user, e.g. to run docker containers with the same user as the build.
+     */
+    public record User(String name, long uid, long gid) {
+        /**
+         * @return the user in the form accepted by {@code docker run --user}
+         */
+        public String dockerUserString() {
+            return uid + ":" + gid;
+        }
+    }
+
+    // Resolved once per JVM, the user doesn't change while the daemon is running
+    private static class CurrentUser {
+        private static final User INSTANCE = resolve();
+
+        private static User resolve() {
+            final UnixSystem unixSystem = new UnixSystem();
+            return new User(System.getProperty("user.name"), unixSystem.getUid(), unixSystem.getGid());
+        }
+    }
+
+    /**
+     * Get the current Unix user without forking any process. The result is cached for the lifetime of the JVM.
+     *
+     * @return the current Unix user.
+     */
+    public static User currentUser() {
+        return CurrentUser.INSTANCE;
+    }
+
     /**
      * Get the username for the current Unix user.
      *
@@ -40,12 +68,7 @@ public class SystemUtil {
      * @return the UID for the current Unix user.
      */
     public long getUid() {
-        try {
-            final Process process = Runtime.getRuntime().exec("id -u");
-            return Long.parseLong(IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8).trim());
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
-        }
+        return currentUser().uid();
     }
 
     /**
@@ -54,12 +77,7 @@ public class SystemUtil {
      * @return the GID for the current Unix user.
      */
     public long getGid() {
-        try {
-            final Process process = Runtime.getRuntime().exec("id -g");
-            return Long.parseLong(IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8).trim());
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
-        }
+        return currentUser().gid();
     }
 
 }
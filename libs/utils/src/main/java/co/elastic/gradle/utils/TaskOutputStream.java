@@ -0,0 +1,209 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Forwards the output of a process to the console line by line with a prefix. Each line is written with a single call,
+ * so the output of tasks running at the same time doesn't get mixed up within a line.
+ * <p>
+ * The output can also be captured to a log file, and the number of lines sent to the console can be limited for very
+ * chatty tools. Lines that are left out still end up in the log file and are counted in a summary.
+ */
+public class TaskOutputStream extends OutputStream {
+
+    // Lines longer than this are broken up rather than buffered indefinitely
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final byte[] NEWLINE = {'\n'};
+
+    private final byte[] prefix;
+    private final OutputStream console;
+    private final byte[] oneByte = new byte[1];
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+
+    private Path logFile = null;
+    private OutputStream logStream = null;
+
+    private int maxLinesPerSecond = 0;
+    private long windowStart = 0;
+    private int linesInWindow = 0;
+    private long suppressedSinceLastLine = 0;
+    private long suppressed = 0;
+
+    public TaskOutputStream(String prefix, OutputStream console) {
+        this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+        this.console = console;
+    }
+
+    /**
+     * Also write the output, without prefixes, to the given file. The file is created on the first write.
+     */
+    public TaskOutputStream captureTo(Path logFile) {
+        this.logFile = logFile;
+        return this;
+    }
+
+    /**
+     * Send at most the given number of lines per second to the console.
+     */
+    public TaskOutputStream limitLinesPerSecond(int maxLinesPerSecond) {
+        this.maxLinesPerSecond = maxLinesPerSecond;
+        return this;
+    }
+
+    public long getSuppressedLines() {
+        return suppressed;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        oneByte[0] = (byte) b;
+        write(oneByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        log(b, off, len);
+        int start = off;
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\n') {
+                if (lineLength == 0) {
+                    // Complete line in the input, no need to copy it into the buffer first
+                    emit(b, start, i + 1 - start);
+                } else {
+                    append(b, start, i + 1 - start);
+                    emitBufferedLine();
+                }
+                start = i + 1;
+            }
+        }
+        if (start < end) {
+            append(b, start, end - start);
+            if (lineLength >= MAX_LINE_LENGTH) {
+                emitBufferedLine();
+            }
+        }
+    }
+
+    /**
+     * Flushes what was already written, an incomplete line is held back until it's completed or the stream is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (logStream != null) {
+            logStream.flush();
+        }
+        console.flush();
+    }
+
+    /**
+     * Writes the incomplete line, if any, so nothing is held back at the end of the output.
+     */
+    @Override
+    public void close() throws IOException {
+        if (lineLength > 0) {
+            emitBufferedLine();
+        }
+        flush();
+        if (suppressedSinceLastLine > 0) {
+            writeSuppressedNote();
+        }
+        if (logStream != null) {
+            logStream.close();
+            logStream = null;
+        }
+    }
+
+    private void log(byte[] b, int off, int len) throws IOException {
+        if (logFile == null) {
+            return;
+        }
+        if (logStream == null) {
+            Files.createDirectories(logFile.toAbsolutePath().getParent());
+            logStream = new BufferedOutputStream(Files.newOutputStream(logFile), 64 * 1024);
+        }
+        logStream.write(b, off, len);
+    }
+
+    private void append(byte[] b, int off, int len) {
+        if (lineLength + len > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + len));
+        }
+        System.arraycopy(b, off, line, lineLength, len);
+        lineLength += len;
+    }
+
+    private void emitBufferedLine() throws IOException {
+        if (line[lineLength - 1] != '\n') {
+            append(NEWLINE, 0, 1);
+        }
+        emit(line, 0, lineLength);
+        lineLength = 0;
+    }
+
+    private void emit(byte[] b, int off, int len) throws IOException {
+        if (!allowLine()) {
+            suppressedSinceLastLine++;
+            suppressed++;
+            return;
+        }
+        if (suppressedSinceLastLine > 0) {
+            writeSuppressedNote();
+        }
+        final byte[] output = new byte[prefix.length + len];
+        System.arraycopy(prefix, 0, output, 0, prefix.length);
+        System.arraycopy(b, off, output, prefix.length, len);
+        writeToConsole(output);
+    }
+
+    private boolean allowLine() {
+        if (maxLinesPerSecond <= 0) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        if (now - windowStart >= 1_000_000_000L) {
+            windowStart = now;
+            linesInWindow = 0;
+        }
+        return linesInWindow++ < maxLinesPerSecond;
+    }
+
+    private void writeSuppressedNote() throws IOException {
+        final String note = new String(prefix, StandardCharsets.UTF_8) + "... " + suppressedSinceLastLine +
+                            " lines not shown" + (logFile == null ? "" : ", see " + logFile) + "\n";
+        suppressedSinceLastLine = 0;
+        writeToConsole(note.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeToConsole(byte[] output) throws IOException {
+        synchronized (console) {
+            console.write(output);
+            console.flush();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.gradle.api.GradleException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncProcessTest {
+
+    @Test
+    void capturesOutputAndExitValue() {
+        final AsyncProcess.Result result = AsyncProcess.await(
+                AsyncProcess.of("sh", "-c", "echo out; echo err >&2; exit 3").start()
+        );
+        assertEquals(3, result.exitValue());
+        assertEquals("out\n", result.output());
+        assertEquals("err\n", result.error());
+        final GradleException e = assertThrows(GradleException.class, result::assertNormalExitValue);
+        assertTrue(e.getMessage().contains("exit code 3"), e.getMessage());
+    }
+
+    @Test
+    void runsConcurrently() {
+        final long start = System.nanoTime();
+        final List<AsyncProcess.Result> results = AsyncProcess.awaitAll(List.of(
+                AsyncProcess.of("sh", "-c", "sleep 1; echo a").start(),
+                AsyncProcess.of("sh", "-c", "sleep 1; echo b").start(),
+                AsyncProcess.of("sh", "-c", "sleep 1; echo c").start()
+        ));
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 2500);
+        assertEquals(List.of("a\n", "b\n", "c\n"), results.stream().map(AsyncProcess.Result::output).toList());
+    }
+
+    @Test
+    void replacesEnvironmentAndRedirectsOutput(@TempDir Path dir) throws IOException {
+        final Path output = dir.resolve("out.txt");
+        AsyncProcess.await(
+                AsyncProcess.of("/bin/sh", "-c", "echo \"$FOO-$HOME\"")
+                        .environment(Map.of("FOO", "bar"))
+                        .redirectOutput(output)
+                        .start()
+        ).assertNormalExitValue();
+        assertEquals("bar-\n", Files.readString(output));
+    }
+
+    @Test
+    void destroysTheProcessWhenTheOutputConsumerFails() {
+        final long start = System.nanoTime();
+        final CompletableFuture<AsyncProcess.Result> future = AsyncProcess.of("sh", "-c", "echo started; sleep 30")
+                .consumeOutput(output -> {
+                    assertEquals('s', output.read());
+                    throw new IOException("stop reading");
+                })
+                .start();
+        final UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> AsyncProcess.await(future));
+        assertEquals("stop reading", e.getCause().getMessage());
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 10_000);
+    }
+
+    @Test
+    void timesOut() {
+        final CompletableFuture<AsyncProcess.Result> future = AsyncProcess.of("sleep", "30")
+                .timeout(Duration.ofMillis(200))
+                .start();
+        final GradleException e = assertThrows(GradleException.class, () -> AsyncProcess.await(future));
+        assertTrue(e.getMessage().contains("timed out"), e.getMessage());
+    }
+
+    @Test
+    void removesTheTimeoutOnceCompleted() throws InterruptedException {
+        AsyncProcess.await(AsyncProcess.of("true").timeout(Duration.ofHours(1)).start()).assertNormalExitValue();
+        // The timeout is cancelled by a completion callback, which can still be running once the result is available
+        final long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (AsyncProcess.pendingTimeouts() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, AsyncProcess.pendingTimeouts());
+    }
+
+    @Test
+    void cancelsRemainingOnFailure() {
+        final CompletableFuture<AsyncProcess.Result> slow = AsyncProcess.of("sleep", "30").start();
+        final CompletableFuture<AsyncProcess.Result> failing = CompletableFuture.failedFuture(
+                new GradleException("boom")
+        );
+        assertThrows(GradleException.class, () -> AsyncProcess.awaitAll(List.of(failing, slow)));
+        assertTrue(slow.isCancelled());
+    }
+}
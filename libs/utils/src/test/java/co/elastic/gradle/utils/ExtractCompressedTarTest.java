@@ -0,0 +1,167 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExtractCompressedTarTest {
+
+    private static final Date MTIME = new Date(1_600_000_000_000L);
+
+    @Test
+    void restoresContentLinksAndMetadata(@TempDir Path tempDir) throws IOException {
+        final byte[] large = new byte[3 * 1024 * 1024];
+        Arrays.fill(large, (byte) 'x');
+        final Path archive = tempDir.resolve("image.tar");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(Files.newOutputStream(archive))) {
+            addDirectory(tar, "bin/", 0555);
+            addFile(tar, "bin/tool", 0755, "#!/bin/sh".getBytes(StandardCharsets.UTF_8));
+            addFile(tar, "opt/app/large.bin", 0644, large);
+            addLink(tar, "opt/app/same.bin", TarConstants.LF_LINK, "opt/app/large.bin");
+            addLink(tar, "usr/bin/tool", TarConstants.LF_SYMLINK, "../../bin/tool");
+            addFile(tar, "etc/config", 0600, "old".getBytes(StandardCharsets.UTF_8));
+            addFile(tar, "etc/config", 0400, "new".getBytes(StandardCharsets.UTF_8));
+        }
+
+        final Path destination = tempDir.resolve("out");
+        ExtractCompressedTar.extract(archive, destination);
+
+        assertEquals("#!/bin/sh", Files.readString(destination.resolve("bin/tool")));
+        assertEquals("rwxr-xr-x", PosixFilePermissions.toString(Files.getPosixFilePermissions(destination.resolve("bin/tool"))));
+        assertEquals("r-xr-xr-x", PosixFilePermissions.toString(Files.getPosixFilePermissions(destination.resolve("bin"))));
+        assertEquals(MTIME.toInstant(), Files.getLastModifiedTime(destination.resolve("bin")).toInstant());
+        assertEquals(MTIME.toInstant(), Files.getLastModifiedTime(destination.resolve("opt/app/large.bin")).toInstant());
+        assertArrayEquals(large, Files.readAllBytes(destination.resolve("opt/app/large.bin")));
+        assertTrue(Files.isSameFile(destination.resolve("opt/app/large.bin"), destination.resolve("opt/app/same.bin")));
+        assertTrue(Files.isSymbolicLink(destination.resolve("usr/bin/tool")));
+        assertEquals("#!/bin/sh", Files.readString(destination.resolve("usr/bin/tool")));
+        assertEquals("new", Files.readString(destination.resolve("etc/config")));
+    }
+
+    @Test
+    void rejectsEntriesOutsideOfTheDestination(@TempDir Path tempDir) throws IOException {
+        final Path archive = tempDir.resolve("escape.tar");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(Files.newOutputStream(archive))) {
+            addFile(tar, "../escaped", 0644, "x".getBytes(StandardCharsets.UTF_8));
+        }
+        assertThrows(IOException.class, () -> ExtractCompressedTar.extract(archive, tempDir.resolve("out")));
+        assertFalse(Files.exists(tempDir.resolve("escaped")));
+    }
+
+    @Test
+    void rejectsEntriesWrittenThroughSymbolicLinks(@TempDir Path tempDir) throws IOException {
+        final Path outside = Files.createDirectories(tempDir.resolve("outside"));
+        final Path archive = tempDir.resolve("escape.tar");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(Files.newOutputStream(archive))) {
+            addLink(tar, "link", TarConstants.LF_SYMLINK, outside.toString());
+            addFile(tar, "link/escaped", 0644, "x".getBytes(StandardCharsets.UTF_8));
+        }
+        assertThrows(IOException.class, () -> ExtractCompressedTar.extract(archive, tempDir.resolve("out")));
+        assertFalse(Files.exists(outside.resolve("escaped")));
+    }
+
+    @Test
+    void releasesTheMemoryBudgetWhenExtractionFails(@TempDir Path tempDir) throws Exception {
+        final byte[] large = new byte[2 * 1024 * 1024];
+        final Path archive = tempDir.resolve("escape.tar");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(Files.newOutputStream(archive))) {
+            for (int i = 0; i < 8; i++) {
+                addFile(tar, "layer/file-" + i, 0644, large);
+            }
+            addFile(tar, "../escaped", 0644, "x".getBytes(StandardCharsets.UTF_8));
+        }
+        assertThrows(IOException.class, () -> ExtractCompressedTar.extract(archive, tempDir.resolve("out")));
+
+        // Writes that were already running release their share as they stop
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (ExtractCompressedTar.BYTES_IN_FLIGHT.availablePermits() < ExtractCompressedTar.MAX_KIB_IN_FLIGHT
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(ExtractCompressedTar.MAX_KIB_IN_FLIGHT, ExtractCompressedTar.BYTES_IN_FLIGHT.availablePermits());
+    }
+
+    @Test
+    void detectsCompressionFormats(@TempDir Path tempDir) throws IOException {
+        final byte[] content = "layer content".repeat(10_000).getBytes(StandardCharsets.UTF_8);
+        final Path gzip = tempDir.resolve("archive.tar.gz");
+        try (OutputStream out = new GzipCompressorOutputStream(Files.newOutputStream(gzip))) {
+            out.write(content);
+        }
+        final Path bzip2 = tempDir.resolve("archive.tar.bz2");
+        try (OutputStream out = new BZip2CompressorOutputStream(Files.newOutputStream(bzip2))) {
+            out.write(content);
+        }
+        final Path plain = Files.write(tempDir.resolve("archive.tar"), content);
+
+        for (Path archive : List.of(gzip, bzip2, plain)) {
+            try (InputStream in = ExtractCompressedTar.uncompressedInputStream(archive, 4096)) {
+                assertArrayEquals(content, in.readAllBytes(), archive.toString());
+            }
+            try (InputStream in = ExtractCompressedTar.pipelinedInputStream(archive)) {
+                assertArrayEquals(content, in.readAllBytes(), archive.toString());
+            }
+        }
+    }
+
+    private static void addDirectory(TarArchiveOutputStream tar, String name, int mode) throws IOException {
+        final TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setMode(TarArchiveEntry.DEFAULT_DIR_MODE & ~0777 | mode);
+        entry.setModTime(MTIME);
+        tar.putArchiveEntry(entry);
+        tar.closeArchiveEntry();
+    }
+
+    private static void addFile(TarArchiveOutputStream tar, String name, int mode, byte[] content) throws IOException {
+        final TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE & ~0777 | mode);
+        entry.setModTime(MTIME);
+        entry.setSize(content.length);
+        tar.putArchiveEntry(entry);
+        tar.write(content);
+        tar.closeArchiveEntry();
+    }
+
+    private static void addLink(TarArchiveOutputStream tar, String name, byte type, String target) throws IOException {
+        final TarArchiveEntry entry = new TarArchiveEntry(name, type);
+        entry.setLinkName(target);
+        entry.setModTime(MTIME);
+        tar.putArchiveEntry(entry);
+        tar.closeArchiveEntry();
+    }
+}
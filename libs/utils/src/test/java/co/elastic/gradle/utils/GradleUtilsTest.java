@@ -0,0 +1,76 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.gradle.api.GradleException;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GradleUtilsTest {
+
+    @Inherited
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface Marker {
+        String[] value() default {};
+    }
+
+    @Marker({"with", "values"})
+    static class Annotated {
+    }
+
+    static class InheritsAnnotation extends Annotated {
+    }
+
+    @Deprecated(since = "1.0")
+    static class NotAnnotated {
+    }
+
+    @Test
+    void findsAnnotatedClassesWithoutLoadingThem() throws URISyntaxException {
+        final URL testClasses = GradleUtilsTest.class.getProtectionDomain().getCodeSource().getLocation();
+        final Set<File> classesDirs = Set.of(new File(testClasses.toURI()));
+
+        final List<String> marked = List.of(
+                GradleUtils.classNamesByAnnotation(classesDirs, List.of(testClasses), Marker.class.getName())
+        );
+        assertTrue(marked.contains(Annotated.class.getName()));
+        assertTrue(marked.contains(InheritsAnnotation.class.getName()));
+        assertFalse(marked.contains(NotAnnotated.class.getName()));
+
+        final List<String> deprecated = List.of(
+                GradleUtils.classNamesByAnnotation(classesDirs, List.of(testClasses), Deprecated.class.getName())
+        );
+        assertEquals(List.of(NotAnnotated.class.getName()), deprecated);
+
+        assertThrows(
+                GradleException.class,
+                () -> GradleUtils.classNamesByAnnotation(classesDirs, List.of(testClasses), "does.not.Exist")
+        );
+    }
+}
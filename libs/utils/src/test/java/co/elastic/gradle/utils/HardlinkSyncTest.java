@@ -0,0 +1,161 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.gradle.api.Project;
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.internal.file.copy.DefaultCopySpec;
+import org.gradle.api.internal.project.ProjectInternal;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HardlinkSyncTest {
+
+    @Test
+    void linksAndRemovesStaleFiles(@TempDir Path tempDir) throws IOException {
+        final Path sources = Files.createDirectories(tempDir.resolve("sources"));
+        final Path a = Files.writeString(sources.resolve("a.deb"), "a");
+        final Path b = Files.writeString(sources.resolve("b.deb"), "b");
+        final Path target = tempDir.resolve("target");
+        Files.createDirectories(target.resolve("stale"));
+        Files.writeString(target.resolve("stale/old.deb"), "old");
+
+        final HardlinkSync.Result first = HardlinkSync.sync(Map.of("a.deb", a, "sub/b.deb", b), target);
+        assertEquals(2, first.linked());
+        assertEquals(2, first.removed());
+        assertTrue(Files.isSameFile(a, target.resolve("a.deb")));
+        assertTrue(Files.isSameFile(b, target.resolve("sub/b.deb")));
+        assertFalse(Files.exists(target.resolve("stale")));
+
+        final HardlinkSync.Result second = HardlinkSync.sync(Map.of("a.deb", a), target);
+        assertEquals(1, second.unchanged());
+        assertEquals(0, second.linked());
+        assertFalse(Files.exists(target.resolve("sub/b.deb")));
+        assertEquals("b", Files.readString(b));
+    }
+
+    @Test
+    void replacesFilesThatChangedSource(@TempDir Path tempDir) throws IOException {
+        final Path source = Files.writeString(tempDir.resolve("a.rpm"), "new");
+        final Path target = Files.createDirectories(tempDir.resolve("target"));
+        Files.writeString(target.resolve("a.rpm"), "old");
+
+        final HardlinkSync.Result result = HardlinkSync.sync(Map.of("a.rpm", source), target);
+        assertEquals(1, result.linked() + result.copied());
+        assertEquals("new", Files.readString(target.resolve("a.rpm")));
+    }
+
+    @Test
+    void appliesChangesOnly(@TempDir Path tempDir) throws IOException {
+        final Path sources = Files.createDirectories(tempDir.resolve("sources"));
+        final Path a = Files.writeString(sources.resolve("a.jar"), "a");
+        final Path b = Files.writeString(sources.resolve("b.jar"), "b");
+        final Path target = tempDir.resolve("target");
+        HardlinkSync.sync(Map.of("layer0/a.jar", a, "layer1/lib/b.jar", b), target);
+        Files.writeString(target.resolve("untracked"), "left alone");
+
+        final Path c = Files.writeString(sources.resolve("c.jar"), "c");
+        final HardlinkSync.Result result = HardlinkSync.applyChanges(
+                Map.of("layer0/c.jar", c, "layer0/a.jar", a),
+                List.of("layer1/lib/b.jar", "layer1/missing.jar"),
+                target
+        );
+        assertEquals(1, result.linked() + result.copied());
+        assertEquals(1, result.unchanged());
+        // the file and both directories left empty
+        assertEquals(3, result.removed());
+        assertTrue(Files.isSameFile(c, target.resolve("layer0/c.jar")));
+        assertFalse(Files.exists(target.resolve("layer1")));
+        assertEquals("left alone", Files.readString(target.resolve("untracked")));
+        assertEquals("b", Files.readString(b));
+    }
+
+    @Test
+    void followsSymbolicLinks(@TempDir Path tempDir) throws IOException {
+        final Path sources = Files.createDirectories(tempDir.resolve("sources"));
+        final Path real = Files.writeString(sources.resolve("real.txt"), "content");
+        final Path alias = Files.createSymbolicLink(sources.resolve("alias.txt"), Path.of("real.txt"));
+        final Path target = tempDir.resolve("target");
+
+        HardlinkSync.sync(Map.of("sub/alias.txt", alias), target);
+        assertFalse(Files.isSymbolicLink(target.resolve("sub/alias.txt")));
+        assertEquals("content", Files.readString(target.resolve("sub/alias.txt")));
+        assertTrue(Files.isSameFile(real, target.resolve("sub/alias.txt")));
+    }
+
+    @Test
+    void createsAndRemovesEmptyDirectories(@TempDir Path tempDir) throws IOException {
+        final Path a = Files.writeString(tempDir.resolve("a"), "a");
+        final Path target = tempDir.resolve("target");
+
+        HardlinkSync.sync(Map.of("a", a), Set.of("empty/nested"), target);
+        assertTrue(Files.isDirectory(target.resolve("empty/nested")));
+
+        final HardlinkSync.Result result = HardlinkSync.sync(Map.of("a", a), target);
+        assertEquals(2, result.removed());
+        assertFalse(Files.exists(target.resolve("empty")));
+    }
+
+    @Test
+    void copySpecIncludesEmptyDirectories(@TempDir Path tempDir) throws IOException {
+        final Project project = ProjectBuilder.builder().withProjectDir(tempDir.resolve("project").toFile()).build();
+        final Path sources = Files.createDirectories(tempDir.resolve("sources"));
+        Files.createDirectories(sources.resolve("empty"));
+        Files.writeString(sources.resolve("a.txt"), "a");
+        final DefaultCopySpec copySpec = project.getObjects().newInstance(DefaultCopySpec.class);
+        copySpec.addChild().into("layer").from(sources);
+        final Path target = tempDir.resolve("target");
+
+        final HardlinkSync.Result result = new HardlinkSync(
+                ((ProjectInternal) project).getServices().get(FileSystemOperations.class)
+        ).syncCopySpec(copySpec, target);
+        assertEquals(1, result.linked() + result.copied());
+        assertTrue(Files.isDirectory(target.resolve("layer/empty")));
+        assertEquals("a", Files.readString(target.resolve("layer/a.txt")));
+    }
+
+    @Test
+    void reportsStatisticsWhenFallingBackToACopy(@TempDir Path tempDir) throws IOException {
+        final Project project = ProjectBuilder.builder().withProjectDir(tempDir.resolve("project").toFile()).build();
+        final Path sources = Files.createDirectories(tempDir.resolve("sources"));
+        Files.writeString(sources.resolve("a.txt"), "a");
+        Files.writeString(sources.resolve("b.txt"), "b");
+        final DefaultCopySpec copySpec = project.getObjects().newInstance(DefaultCopySpec.class);
+        copySpec.addChild().from(sources).rename("a.txt", "renamed.txt");
+        final Path target = Files.createDirectories(tempDir.resolve("target"));
+        Files.writeString(target.resolve("stale.txt"), "stale");
+
+        final HardlinkSync.Result result = new HardlinkSync(
+                ((ProjectInternal) project).getServices().get(FileSystemOperations.class)
+        ).syncCopySpec(copySpec, target);
+        assertEquals(2, result.copied());
+        assertEquals(1, result.removed());
+        assertEquals("a", Files.readString(target.resolve("renamed.txt")));
+    }
+}
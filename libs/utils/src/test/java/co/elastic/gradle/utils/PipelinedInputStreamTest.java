@@ -0,0 +1,95 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PipelinedInputStreamTest {
+
+    @Test
+    void readsTheSameContent() throws IOException {
+        final byte[] content = new byte[100_000];
+        new Random(42).nextBytes(content);
+        try (InputStream in = new PipelinedInputStream(new ByteArrayInputStream(content), 1000, 4)) {
+            assertEquals(content[0] & 0xff, in.read());
+            final byte[] rest = in.readAllBytes();
+            assertEquals(content.length - 1, rest.length);
+            assertEquals(content[content.length - 1], rest[rest.length - 1]);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void reportsErrorsOfTheSource() {
+        final InputStream failing = new InputStream() {
+            private int count = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (count++ > 10) {
+                    throw new IOException("broken");
+                }
+                return 0;
+            }
+        };
+        final IOException e = assertThrows(IOException.class, () -> {
+            try (InputStream in = new PipelinedInputStream(failing, 4, 2)) {
+                in.readAllBytes();
+            }
+        });
+        assertEquals("broken", e.getCause().getMessage());
+    }
+
+    @Test
+    void reportsUncheckedErrorsOfTheSource() {
+        final InputStream failing = new InputStream() {
+            @Override
+            public int read() {
+                throw new IllegalStateException("broken");
+            }
+        };
+        final IOException e = assertThrows(IOException.class, () -> {
+            try (InputStream in = new PipelinedInputStream(failing, 4, 2)) {
+                in.read();
+            }
+        });
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        assertEquals("broken", e.getCause().getMessage());
+    }
+
+    @Test
+    void canBeClosedBeforeTheEnd() throws IOException {
+        final InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                return 1;
+            }
+        };
+        final InputStream in = new PipelinedInputStream(endless, 16, 2);
+        assertEquals(1, in.read());
+        in.close();
+    }
+}
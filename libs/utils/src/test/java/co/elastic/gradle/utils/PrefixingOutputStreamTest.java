@@ -43,4 +43,17 @@ class PrefixingOutputStreamTest {
                 delegate.toString(StandardCharsets.UTF_8)
         );
     }
-}
\ No newline at end of file
+
+    @Test
+    void bulkWritesMatchSingleByteWrites() throws IOException {
+        final byte[] content = "first\nsecond\n\nlast".getBytes(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream bulk = new ByteArrayOutputStream();
+        new PrefixingOutputStream("> ", bulk).write(content, 0, content.length);
+        final ByteArrayOutputStream single = new ByteArrayOutputStream();
+        final PrefixingOutputStream singleStream = new PrefixingOutputStream("> ", single);
+        for (byte b : content) {
+            singleStream.write(b);
+        }
+        assertEquals(single.toString(StandardCharsets.UTF_8), bulk.toString(StandardCharsets.UTF_8));
+    }
+}
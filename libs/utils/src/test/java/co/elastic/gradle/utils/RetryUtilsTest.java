@@ -0,0 +1,158 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryUtilsTest {
+
+    @Test
+    void retriesUntilSuccess() {
+        final AtomicInteger calls = new AtomicInteger();
+        final List<Exception> errors = new ArrayList<>();
+        final String result = RetryUtils.retry(() -> {
+                    if (calls.incrementAndGet() < 3) {
+                        throw new IllegalStateException("failure " + calls.get());
+                    }
+                    return "done";
+                })
+                .maxAttempt(5)
+                .onRetryError(errors::add)
+                .execute();
+        assertEquals("done", result);
+        assertEquals(3, calls.get());
+        assertEquals(2, errors.size());
+    }
+
+    @Test
+    void throwsTheLastErrorOnceAttemptsAreUsedUp() {
+        final AtomicInteger calls = new AtomicInteger();
+        final IllegalStateException e = assertThrows(IllegalStateException.class, () -> RetryUtils.retry(() -> {
+                    throw new IllegalStateException("failure " + calls.incrementAndGet());
+                })
+                .maxAttempt(3)
+                .execute());
+        assertEquals("failure 3", e.getMessage());
+    }
+
+    @Test
+    void guardCanStopRetries() {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final RetryUtils.RetryGuard guard = new RetryUtils.RetryGuard() {
+            @Override
+            public void onFailure(Exception e) {
+                failures.incrementAndGet();
+            }
+
+            @Override
+            public boolean tryRetry(long delayMillis) {
+                return false;
+            }
+        };
+        assertThrows(IllegalStateException.class, () -> RetryUtils.retry(() -> {
+                    calls.incrementAndGet();
+                    throw new IllegalStateException("failure");
+                })
+                .maxAttempt(10)
+                .guard(guard)
+                .execute());
+        assertEquals(1, calls.get());
+        assertEquals(1, failures.get());
+    }
+
+    @Test
+    void rejectedAttemptsThrowTheLastFailure() {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger givenUp = new AtomicInteger();
+        final RetryUtils.RetryGuard guard = new RetryUtils.RetryGuard() {
+            @Override
+            public void beforeAttempt() {
+                if (calls.get() > 0) {
+                    throw new IllegalStateException("rejected");
+                }
+            }
+
+            @Override
+            public void onGiveUp(Exception e) {
+                givenUp.incrementAndGet();
+            }
+        };
+        final IllegalStateException e = assertThrows(IllegalStateException.class, () -> RetryUtils.retry(() -> {
+                    throw new IllegalStateException("failure " + calls.incrementAndGet());
+                })
+                .maxAttempt(10)
+                .guard(guard)
+                .execute());
+        assertEquals("failure 1", e.getMessage());
+        assertEquals("rejected", e.getSuppressed()[0].getMessage());
+        assertEquals(1, calls.get());
+        assertEquals(0, givenUp.get());
+    }
+
+    @Test
+    void guardIsToldOnceWhenGivingUp() {
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger givenUp = new AtomicInteger();
+        final RetryUtils.RetryGuard guard = new RetryUtils.RetryGuard() {
+            @Override
+            public void onFailure(Exception e) {
+                failures.incrementAndGet();
+            }
+
+            @Override
+            public void onGiveUp(Exception e) {
+                givenUp.incrementAndGet();
+            }
+        };
+        assertThrows(IllegalStateException.class, () -> RetryUtils.retry(() -> {
+                    throw new IllegalStateException("failure");
+                })
+                .maxAttempt(3)
+                .guard(guard)
+                .execute());
+        assertEquals(3, failures.get());
+        assertEquals(1, givenUp.get());
+    }
+
+    @Test
+    void jitterStaysWithinTheBackoff() {
+        final RetryUtils.FullJitterBackoff backoff = new RetryUtils.FullJitterBackoff(100, 1000);
+        for (int attempt = 0; attempt < 20; attempt++) {
+            final long delay = backoff.deferTime(attempt);
+            assertTrue(delay >= 0 && delay <= Math.min(1000, 100L << Math.min(attempt, 10)), "delay " + delay);
+        }
+    }
+
+    @Test
+    void interruptionStopsRetries() {
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(RetryUtils.RetryException.class, () -> RetryUtils.retry(() -> "never").execute());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+}
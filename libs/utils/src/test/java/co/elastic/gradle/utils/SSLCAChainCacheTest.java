@@ -0,0 +1,149 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SSLCAChainCacheTest {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    @TempDir
+    Path tempDir;
+
+    private SSLServerSocket server;
+    private X509TrustManager trustManager;
+    private final AtomicInteger connections = new AtomicInteger();
+    // Released once the server is done with a connection, the client can return before the server side finished
+    private final Semaphore handled = new Semaphore(0);
+
+    @BeforeEach
+    void startServer() throws Exception {
+        final Path keystore = tempDir.resolve("server.p12");
+        final Process keytool = new ProcessBuilder(
+                Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD)
+        ).redirectErrorStream(true).start();
+        final String output = new String(keytool.getInputStream().readAllBytes());
+        assertEquals(0, keytool.waitFor(), output);
+
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keystore)) {
+            keyStore.load(in, PASSWORD);
+        }
+        final KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, PASSWORD);
+        final TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        trustManager = (X509TrustManager) tmf.getTrustManagers()[0];
+
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        server = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0);
+        final Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                final SSLSocket socket;
+                try {
+                    socket = (SSLSocket) server.accept();
+                } catch (IOException e) {
+                    // The server was closed
+                    continue;
+                }
+                connections.incrementAndGet();
+                try (socket) {
+                    socket.startHandshake();
+                    socket.getInputStream().read();
+                } catch (IOException e) {
+                    // Client went away
+                } finally {
+                    handled.release();
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        server.close();
+    }
+
+    private SSLCAChainCache cache(Path directory) {
+        return new SSLCAChainCache(
+                directory,
+                (host, port) -> SSLCAChainExtractor.extract(host, port, trustManager),
+                Clock.system(ZoneOffset.UTC)
+        );
+    }
+
+    @Test
+    void fetchesOnceAndReusesTheChainFromDisk() throws InterruptedException {
+        final Path cacheDir = tempDir.resolve("cache");
+        final List<X509Certificate> chain = cache(cacheDir).get("localhost", server.getLocalPort());
+        assertTrue(handled.tryAcquire(10, TimeUnit.SECONDS), "the server did not handle the connection");
+        assertEquals(1, chain.size());
+        assertEquals("CN=localhost", chain.get(0).getSubjectX500Principal().getName());
+
+        final List<X509Certificate> cached = cache(cacheDir).get("localhost", server.getLocalPort());
+        assertEquals(chain, cached);
+        assertEquals(1, connections.get());
+    }
+
+    @Test
+    void fetchesSeveralHostsAtOnce() {
+        final String first = "localhost:" + server.getLocalPort();
+        final String second = "127.0.0.1:" + server.getLocalPort();
+        final Map<String, List<X509Certificate>> chains = cache(tempDir.resolve("cache")).getAll(List.of(first, second));
+        assertEquals(List.of(first, second), List.copyOf(chains.keySet()));
+        assertEquals(chains.get(first), chains.get(second));
+    }
+
+    @Test
+    void reportsHostsThatCanNotBeReached() {
+        final IllegalStateException e = assertThrows(
+                IllegalStateException.class,
+                () -> cache(tempDir.resolve("cache")).getAll(List.of("localhost:" + server.getLocalPort(), "localhost:1"))
+        );
+        assertTrue(e.getMessage().contains("localhost:1"), e.getMessage());
+    }
+}
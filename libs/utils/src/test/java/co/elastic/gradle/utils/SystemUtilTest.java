@@ -21,6 +21,9 @@ package co.elastic.gradle.utils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class SystemUtilTest {
@@ -46,4 +49,22 @@ class SystemUtilTest {
     void getGid() {
         assertNotNull(systemUtil.getGid());
     }
-}
\ No newline at end of file
+
+    @Test
+    void currentUserMatchesIdCommand() throws Exception {
+        final SystemUtil.User user = SystemUtil.currentUser();
+        assertSame(user, SystemUtil.currentUser());
+        assertEquals(idOutput("-u"), user.uid());
+        assertEquals(idOutput("-g"), user.gid());
+        assertEquals(user.uid() + ":" + user.gid(), user.dockerUserString());
+    }
+
+    private static long idOutput(String option) throws Exception {
+        final Process process = new ProcessBuilder("id", option).start();
+        try (InputStream in = process.getInputStream()) {
+            final String output = new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+            assertEquals(0, process.waitFor());
+            return Long.parseLong(output);
+        }
+    }
+}
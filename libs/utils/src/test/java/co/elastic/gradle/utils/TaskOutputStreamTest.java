@@ -0,0 +1,96 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TaskOutputStreamTest {
+
+    @Test
+    void writesWholeLinesWithPrefix() throws IOException {
+        final List<String> writes = new ArrayList<>();
+        final OutputStream console = new OutputStream() {
+            @Override
+            public void write(int b) {
+                fail("expected bulk writes");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writes.add(new String(b, off, len, StandardCharsets.UTF_8));
+            }
+        };
+        try (TaskOutputStream out = new TaskOutputStream("[tool] ", console)) {
+            out.write("first li".getBytes(StandardCharsets.UTF_8));
+            out.write("ne\nsecond line\nth".getBytes(StandardCharsets.UTF_8));
+            out.write('i');
+            out.write("rd".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(List.of("[tool] first line\n", "[tool] second line\n", "[tool] third\n"), writes);
+    }
+
+    @Test
+    void flushDoesNotBreakUpLines() throws IOException {
+        final ByteArrayOutputStream console = new ByteArrayOutputStream();
+        try (TaskOutputStream out = new TaskOutputStream("> ", console)) {
+            out.write("half a ".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("", console.toString(StandardCharsets.UTF_8));
+            out.write("line\nrest".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("> half a line\n", console.toString(StandardCharsets.UTF_8));
+        }
+        assertEquals("> half a line\n> rest\n", console.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void limitsLinesAndCapturesEverything(@TempDir Path tempDir) throws IOException {
+        final ByteArrayOutputStream console = new ByteArrayOutputStream();
+        final Path logFile = tempDir.resolve("logs/task.log");
+        final StringBuilder expected = new StringBuilder();
+        final TaskOutputStream out = new TaskOutputStream("> ", console)
+                .captureTo(logFile)
+                .limitLinesPerSecond(3);
+        try (out) {
+            for (int i = 0; i < 10; i++) {
+                final String line = "line " + i + "\n";
+                expected.append(line);
+                out.write(line.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(expected.toString(), Files.readString(logFile));
+        assertEquals(7, out.getSuppressedLines());
+        assertEquals(
+                "> line 0\n> line 1\n> line 2\n> ... 7 lines not shown, see " + logFile + "\n",
+                console.toString(StandardCharsets.UTF_8)
+        );
+    }
+}
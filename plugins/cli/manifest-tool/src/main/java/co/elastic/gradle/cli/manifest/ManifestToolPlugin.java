@@ -23,7 +23,7 @@ import co.elastic.gradle.cli.base.BaseCliPlugin;
 import co.elastic.gradle.cli.base.CliExtension;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.OS;
-import co.elastic.gradle.utils.PrefixingOutputStream;
+import co.elastic.gradle.utils.TaskOutputStream;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 
@@ -79,8 +79,8 @@ public class ManifestToolPlugin implements Plugin<Project> {
                     task.setEnvironment(Collections.emptyMap());
                     task.setExecutable(getExecutable(target));
                     task.dependsOn(":" + BaseCliPlugin.SYNC_TASK_NAME);
-                    task.setStandardOutput(new PrefixingOutputStream("[manifest-tool] ", System.out));
-                    task.setErrorOutput(new PrefixingOutputStream("[manifest-tool] ", System.err));
+                    task.setStandardOutput(new TaskOutputStream("[manifest-tool] ", System.out));
+                    task.setErrorOutput(new TaskOutputStream("[manifest-tool] ", System.err));
                 });
     }
 
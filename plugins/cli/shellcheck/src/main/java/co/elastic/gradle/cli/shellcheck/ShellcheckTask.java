@@ -18,8 +18,8 @@
  */
 package co.elastic.gradle.cli.shellcheck;
 
-import co.elastic.gradle.utils.PrefixingOutputStream;
 import co.elastic.gradle.utils.RegularFileUtils;
+import co.elastic.gradle.utils.TaskOutputStream;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.file.FileCollection;
 import org.gradle.api.file.ProjectLayout;
@@ -45,6 +45,9 @@ public abstract class ShellcheckTask extends DefaultTask {
         getMarkerFile().convention(
                 getProjectLayout().getBuildDirectory().file("shellcheck/" + getName() + ".marker")
         );
+        getLogFile().convention(
+                getProjectLayout().getBuildDirectory().file("shellcheck/" + getName() + ".log")
+        );
     }
 
     public void check(FileCollection files) {
@@ -62,17 +65,36 @@ public abstract class ShellcheckTask extends DefaultTask {
     @OutputFile
     public abstract RegularFileProperty getMarkerFile();
 
+    /**
+     * The full output of shellcheck, the console output is prefixed and can be broken up by other tasks.
+     */
+    @OutputFile
+    public abstract RegularFileProperty getLogFile();
+
     @InputFile
     @PathSensitive(PathSensitivity.NAME_ONLY)
     public abstract RegularFileProperty getTool();
 
     @TaskAction
     void doCheck() throws IOException {
+        final Path logFile = RegularFileUtils.toPath(getLogFile());
+        // The log is only written when there's output, don't leave the one of a previous run around
+        Files.deleteIfExists(logFile);
+        try (
+                TaskOutputStream out = new TaskOutputStream("[shellcheck] ", System.out).captureTo(logFile);
+                TaskOutputStream err = new TaskOutputStream("[shellcheck] ", System.err)
+        ) {
+            runShellcheck(out, err);
+        }
+        Files.writeString(RegularFileUtils.toPath(getMarkerFile()), "ran successfully");
+    }
+
+    private void runShellcheck(TaskOutputStream out, TaskOutputStream err) {
         getExecOperations().exec(spec -> {
             spec.setEnvironment(Collections.emptyMap());
             spec.setExecutable(getTool().get().getAsFile());
-            spec.setStandardOutput(new PrefixingOutputStream("[shellcheck] ", System.out));
-            spec.setErrorOutput(new PrefixingOutputStream("[shellcheck] ", System.err));
+            spec.setStandardOutput(out);
+            spec.setErrorOutput(err);
             spec.workingDir(getProject().getProjectDir());
             spec.setIgnoreExitValue(false);
             Path projectDir = getProject().getProjectDir().toPath();
@@ -88,7 +110,6 @@ public abstract class ShellcheckTask extends DefaultTask {
             );
             spec.setArgs(args);
         });
-        Files.writeString(RegularFileUtils.toPath(getMarkerFile()), "ran successfully");
     }
 
     @Inject
@@ -23,7 +23,7 @@ import co.elastic.gradle.cli.base.BaseCliPlugin;
 import co.elastic.gradle.cli.base.CliExtension;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.OS;
-import co.elastic.gradle.utils.PrefixingOutputStream;
+import co.elastic.gradle.utils.TaskOutputStream;
 import org.gradle.api.GradleException;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
@@ -68,8 +68,8 @@ public class SnykPlugin implements Plugin<Project> {
             task.environment("SNYK_CFG_DISABLESUGGESTIONS", "true");
             task.environment("FORCE_COLOR", "true");
             task.setIgnoreExitValue(true);
-            task.setStandardOutput(new PrefixingOutputStream("[snyk] ", System.out));
-            task.setErrorOutput(new PrefixingOutputStream("[snyl] ", System.err));
+            task.setStandardOutput(new TaskOutputStream("[snyk] ", System.out));
+            task.setErrorOutput(new TaskOutputStream("[snyk] ", System.err));
             task.doLast(it -> {
                 if (task.getExecutionResult().get().getExitValue() != 0) {
                     throw new GradleException("Snyk scan failed, check the task output for details");
@@ -27,6 +27,7 @@ dependencies {
     implementation("org.apache.commons:commons-csv:1.9.0")
 
     runtimeOnly("com.github.luben:zstd-jni:1.5.0-4")
+    runtimeOnly("org.tukaani:xz:1.8")
 
     // Fixme: remove dependency from base image
     implementation("com.google.cloud.tools:jib-core:0.21.0")
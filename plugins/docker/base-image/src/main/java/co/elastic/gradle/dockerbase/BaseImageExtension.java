@@ -19,6 +19,7 @@
 package co.elastic.gradle.dockerbase;
 
 import co.elastic.gradle.dockerbase.lockfile.BaseLockfile;
+import co.elastic.gradle.dockerbase.lockfile.LockfileCacheService;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.RegularFileUtils;
 import co.elastic.gradle.utils.docker.ContainerImageProviderTask;
@@ -34,10 +35,7 @@ import org.gradle.api.provider.*;
 import org.gradle.api.tasks.TaskProvider;
 
 import javax.inject.Inject;
-import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.net.URL;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -47,6 +45,8 @@ public abstract class BaseImageExtension implements ExtensionAware {
 
     private final List<ContainerImageBuildInstruction> instructions = new ArrayList<>();
 
+    private Provider<LockfileCacheService> lockfileCache;
+
     public BaseImageExtension() {
         getLockFileLocation().convention(
                 getProjectLayout().getProjectDirectory()
@@ -64,6 +64,10 @@ public abstract class BaseImageExtension implements ExtensionAware {
         getDockerTagPrefix().convention("gradle-docker-base");
 
         getDockerTagLocalPrefix().convention("local/gradle-docker-base");
+
+        getConsolidateInstalls().convention(true);
+
+        getSquashLayers().convention(false);
     }
 
     public abstract Property<OSDistribution> getOSDistribution();
@@ -73,13 +77,13 @@ public abstract class BaseImageExtension implements ExtensionAware {
     public abstract RegularFileProperty getLockFileLocation();
 
     public Provider<BaseLockfile> getLockFile() {
-        return getProviderFactory().provider(() -> {
-            try {
-                return BaseLockfile.parse(Files.newBufferedReader(RegularFileUtils.toPath(getLockFileLocation())));
-            } catch (IOException e) {
-                throw new UncheckedIOException("Could not read lockfile", e);
-            }
-        });
+        return getProviderFactory().provider(() ->
+                lockfileCache.get().getBaseLockfile(RegularFileUtils.toPath(getLockFileLocation()))
+        );
+    }
+
+    void setLockfileCache(Provider<LockfileCacheService> lockfileCache) {
+        this.lockfileCache = lockfileCache;
     }
 
     public abstract SetProperty<Architecture> getPlatforms();
@@ -94,6 +98,17 @@ public abstract class BaseImageExtension implements ExtensionAware {
 
     public abstract Property<URL> getOsPackageRepository();
 
+    /**
+     * Merge install instructions into a single package manager transaction where this doesn't change the result.
+     * Enabled by default.
+     */
+    public abstract Property<Boolean> getConsolidateInstalls();
+
+    /**
+     * Flatten the layers created on top of the base image into a single layer, the base image layers are kept as is.
+     */
+    public abstract Property<Boolean> getSquashLayers();
+
     @Inject
     protected abstract ProviderFactory getProviderFactory();
 
@@ -20,6 +20,8 @@ package co.elastic.gradle.dockerbase;
 
 import co.elastic.gradle.utils.RegularFileUtils;
 import co.elastic.gradle.utils.docker.DockerUtils;
+import co.elastic.gradle.utils.docker.RegistryUsingTask;
+import co.elastic.gradle.utils.docker.RetryService;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.file.ProjectLayout;
 import org.gradle.api.file.RegularFileProperty;
@@ -33,7 +35,7 @@ import javax.inject.Inject;
 import java.io.IOException;
 import java.nio.file.Files;
 
-public abstract class BasePullTask extends DefaultTask {
+public abstract class BasePullTask extends DefaultTask implements RegistryUsingTask {
 
     public BasePullTask() {
         getMarkerFile().convention(
@@ -51,7 +53,7 @@ public abstract class BasePullTask extends DefaultTask {
     public void pull() throws IOException {
         DockerUtils dockerUtils = new DockerUtils(getExecOperations());
         final String tag = getTag().get();
-        dockerUtils.pull(tag);
+        dockerUtils.pull(tag, retryGuard(RetryService.registryOf(tag)));
         Files.writeString(
                 RegularFileUtils.toPath(getMarkerFile()),
                 tag
@@ -0,0 +1,158 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collects per-step durations from the output of `docker build --progress=plain` as it is written.
+ * <p>
+ * BuildKit numbers vertices (#1, #2, ...) in the order they start. Vertices that come from the Dockerfile are named
+ * after the instruction and prefixed with their position, e.g. `#7 [3/9] RUN apt-get update`.
+ */
+class BuildKitProgressParser extends OutputStream {
+
+    private static final Pattern VERTEX_LINE = Pattern.compile("^#(\\d+) (.*)$");
+    private static final Pattern STEP_NAME = Pattern.compile("^\\[(?:\\S+ )?(\\d+)/(\\d+)] (.*)$");
+    private static final Pattern DONE = Pattern.compile("^DONE (\\d+(?:\\.\\d+)?)s$");
+    private static final Pattern TRANSFER_TOTAL = Pattern.compile("(\\d+(?:\\.\\d+)?)\\s?([kKMG]?B) / (\\d+(?:\\.\\d+)?)\\s?([kKMG]?B)");
+    private static final Pattern TRANSFERRING = Pattern.compile("transferring [^:]*: (\\d+(?:\\.\\d+)?)\\s?([kKMG]?B)");
+
+    /**
+     * @param step    position of the step in the Dockerfile, starting at 1 with FROM, or 0 for BuildKit internal steps
+     * @param seconds how long the step took, 0 if it never finished
+     * @param bytes   the largest transfer reported by the step, e.g. the build context or a layer of the base image
+     */
+    record Step(int vertex, int step, String name, double seconds, boolean cached, boolean failed, long bytes) {
+    }
+
+    private static final class MutableStep {
+        private final int vertex;
+        private int step;
+        private String name;
+        private double seconds;
+        private boolean cached;
+        private boolean failed;
+        private long bytes;
+
+        private MutableStep(int vertex) {
+            this.vertex = vertex;
+        }
+    }
+
+    private final Map<Integer, MutableStep> steps = new LinkedHashMap<>();
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    @Override
+    public synchronized void write(int b) {
+        if (b == '\n') {
+            parseLine(line.toString(StandardCharsets.UTF_8));
+            line.reset();
+        } else {
+            line.write(b);
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        int start = off;
+        for (int i = off; i < off + len; i++) {
+            if (b[i] == '\n') {
+                line.write(b, start, i - start);
+                parseLine(line.toString(StandardCharsets.UTF_8));
+                line.reset();
+                start = i + 1;
+            }
+        }
+        line.write(b, start, off + len - start);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (line.size() > 0) {
+            parseLine(line.toString(StandardCharsets.UTF_8));
+            line.reset();
+        }
+    }
+
+    synchronized List<Step> getSteps() {
+        return steps.values().stream()
+                .map(each -> new Step(
+                        each.vertex, each.step, each.name, each.seconds, each.cached, each.failed, each.bytes
+                ))
+                .toList();
+    }
+
+    void parseLine(String text) {
+        final Matcher vertexLine = VERTEX_LINE.matcher(text.trim());
+        if (!vertexLine.matches()) {
+            return;
+        }
+        final int vertex = Integer.parseInt(vertexLine.group(1));
+        final String content = vertexLine.group(2).trim();
+        final MutableStep step = steps.get(vertex);
+        if (step == null) {
+            // The first line of a vertex is its name
+            final MutableStep newStep = new MutableStep(vertex);
+            final Matcher stepName = STEP_NAME.matcher(content);
+            if (stepName.matches()) {
+                newStep.step = Integer.parseInt(stepName.group(1));
+                newStep.name = stepName.group(3);
+            } else {
+                newStep.name = content;
+            }
+            steps.put(vertex, newStep);
+            return;
+        }
+        final Matcher done = DONE.matcher(content);
+        if (done.matches()) {
+            step.seconds = Double.parseDouble(done.group(1));
+        } else if (content.equals("CACHED")) {
+            step.cached = true;
+        } else if (content.startsWith("ERROR")) {
+            step.failed = true;
+        } else {
+            final Matcher total = TRANSFER_TOTAL.matcher(content);
+            if (total.find()) {
+                step.bytes = Math.max(step.bytes, toBytes(total.group(3), total.group(4)));
+            } else {
+                final Matcher transferring = TRANSFERRING.matcher(content);
+                if (transferring.find()) {
+                    step.bytes = Math.max(step.bytes, toBytes(transferring.group(1), transferring.group(2)));
+                }
+            }
+        }
+    }
+
+    private static long toBytes(String value, String unit) {
+        final double number = Double.parseDouble(value);
+        // BuildKit uses decimal units
+        return (long) (number * switch (unit.toUpperCase(Locale.ROOT)) {
+            case "KB" -> 1_000L;
+            case "MB" -> 1_000_000L;
+            case "GB" -> 1_000_000_000L;
+            default -> 1L;
+        });
+    }
+}
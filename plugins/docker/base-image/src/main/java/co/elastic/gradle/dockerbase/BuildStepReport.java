@@ -0,0 +1,174 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
+import co.elastic.gradle.utils.docker.instruction.Copy;
+import co.elastic.gradle.utils.docker.instruction.Install;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * Per-step durations of an image build, written next to the generated Dockerfile as JSON and HTML.
+ */
+class BuildStepReport {
+
+    private static final Logger logger = Logging.getLogger(BuildStepReport.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    /**
+     * @param instruction the instruction from the build script that generated the step, null for BuildKit internal
+     *                    steps like loading the context or exporting the image
+     */
+    record Entry(
+            int step,
+            String name,
+            String instruction,
+            double seconds,
+            boolean cached,
+            boolean failed,
+            long bytes
+    ) {
+    }
+
+    record Report(String task, double totalSeconds, List<Entry> steps) {
+    }
+
+    private final Report report;
+
+    /**
+     * @param totalSeconds the wall-clock time of the build, steps can run in parallel so this isn't their sum
+     * @param instructions the {@link #describe description} of the instruction that generated each build step
+     */
+    BuildStepReport(
+            String taskPath,
+            double totalSeconds,
+            List<BuildKitProgressParser.Step> steps,
+            List<String> instructions
+    ) {
+        final List<Entry> entries = steps.stream()
+                .map(step -> new Entry(
+                        step.step(),
+                        step.name(),
+                        step.step() > 0 && step.step() <= instructions.size() ?
+                                instructions.get(step.step() - 1) : null,
+                        step.seconds(),
+                        step.cached(),
+                        step.failed(),
+                        step.bytes()
+                ))
+                .toList();
+        report = new Report(taskPath, totalSeconds, entries);
+    }
+
+    Report getReport() {
+        return report;
+    }
+
+    void write(Path directory) {
+        // The report is best effort, it must not hide the outcome of the build
+        try {
+            Files.createDirectories(directory);
+            MAPPER.writeValue(directory.resolve("build-steps.json").toFile(), report);
+            Files.writeString(directory.resolve("build-steps.html"), toHtml());
+            logger.info("Build step report written to {}", directory.resolve("build-steps.html"));
+        } catch (IOException e) {
+            logger.warn("Could not write the build step report to {}", directory, e);
+        }
+    }
+
+    static List<Entry> slowestFirst(Report report) {
+        return report.steps().stream()
+                .sorted(Comparator.comparingDouble(Entry::seconds).reversed())
+                .toList();
+    }
+
+    String toHtml() {
+        final double max = report.steps().stream().mapToDouble(Entry::seconds).max().orElse(0);
+        final String rows = slowestFirst(report).stream()
+                .map(entry -> String.format(
+                        Locale.ROOT,
+                        "<tr%s><td>%s</td><td>%s</td><td>%s</td><td class=\"num\">%s</td><td class=\"num\">%s</td>" +
+                        "<td><div class=\"bar\" style=\"width:%.1f%%\"></div></td></tr>",
+                        entry.failed() ? " class=\"failed\"" : "",
+                        entry.step() > 0 ? entry.step() : "",
+                        escape(entry.name()),
+                        entry.instruction() == null ? "" : escape(entry.instruction()),
+                        entry.cached() ? "cached" : formatSeconds(entry.seconds()),
+                        entry.bytes() > 0 ? (entry.bytes() / 1_000_000) + " MB" : "",
+                        max > 0 ? entry.seconds() * 100 / max : 0
+                ))
+                .collect(Collectors.joining("\n"));
+        return """
+                <!DOCTYPE html>
+                <html>
+                <head>
+                <meta charset="utf-8">
+                <title>%1$s build steps</title>
+                <style>
+                body { font-family: sans-serif; }
+                td { padding: 2px 8px; vertical-align: top; }
+                td.num { text-align: right; white-space: nowrap; }
+                tr.failed { color: #b00; }
+                .bar { background: #4a90d9; height: 1em; min-width: 1px; }
+                </style>
+                </head>
+                <body>
+                <h1>%1$s</h1>
+                <p>Total %2$s</p>
+                <table>
+                <tr><th>Step</th><th>BuildKit step</th><th>Instruction</th><th>Time</th><th>Transferred</th><th></th></tr>
+                %3$s
+                </table>
+                </body>
+                </html>
+                """.formatted(escape(report.task()), formatSeconds(report.totalSeconds()), rows);
+    }
+
+    static String describe(ContainerImageBuildInstruction instruction) {
+        // The BuildKit step name already has the Dockerfile instruction, this is the instruction in the build script
+        final String description;
+        if (instruction instanceof Install install) {
+            description = "install " + String.join(" ", install.getPackages());
+        } else if (instruction instanceof Copy copy) {
+            description = "copySpec " + copy.getLayer();
+        } else {
+            description = instruction.getClass().getSimpleName();
+        }
+        return description.length() > 200 ? description.substring(0, 200) + "..." : description;
+    }
+
+    static String formatSeconds(double seconds) {
+        return String.format(Locale.ROOT, "%.1fs", seconds);
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
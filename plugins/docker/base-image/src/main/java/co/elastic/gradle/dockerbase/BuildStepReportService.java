@@ -0,0 +1,115 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import org.gradle.api.Action;
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Collects the build step reports of all image builds and adds their timings to the build scan once the build finished.
+ * <p>
+ * The build scan extension is looked up when the service is registered, so tasks don't need the project when they run.
+ */
+public abstract class BuildStepReportService implements BuildService<BuildServiceParameters.None> {
+
+    public static final String NAME = "co.elastic.buildStepReports";
+
+    private static final Logger logger = Logging.getLogger(BuildStepReportService.class);
+    private static final int BUILD_SCAN_STEPS = 3;
+
+    private final Queue<BuildStepReport.Report> reports = new ConcurrentLinkedQueue<>();
+
+    public static Provider<BuildStepReportService> register(Project project) {
+        final boolean registered = project.getGradle().getSharedServices().getRegistrations().findByName(NAME) != null;
+        final Provider<BuildStepReportService> service = project.getGradle().getSharedServices().registerIfAbsent(
+                NAME,
+                BuildStepReportService.class,
+                spec -> {
+                }
+        );
+        if (!registered) {
+            addToBuildScanWhenFinished(project.getRootProject(), service);
+        }
+        project.getTasks().withType(ImageBuildable.class).configureEach(task -> {
+            task.getBuildStepReports().set(service);
+            task.usesService(service);
+        });
+        return service;
+    }
+
+    void add(BuildStepReport.Report report) {
+        reports.add(report);
+    }
+
+    List<BuildStepReport.Report> getReports() {
+        return List.copyOf(reports);
+    }
+
+    private static void addToBuildScanWhenFinished(Project rootProject, Provider<BuildStepReportService> service) {
+        // The build scan plugin is optional, so we don't depend on it
+        final Object buildScan = rootProject.getExtensions().findByName("buildScan");
+        if (buildScan == null) {
+            return;
+        }
+        try {
+            final Method value = buildScan.getClass().getMethod("value", String.class, String.class);
+            final Method buildFinished = buildScan.getClass().getMethod("buildFinished", Action.class);
+            final Action<Object> addValues = result -> {
+                try {
+                    for (BuildStepReport.Report report : service.get().getReports()) {
+                        addValues(buildScan, value, report);
+                    }
+                } catch (RuntimeException e) {
+                    logger.info("Could not add build step timings to the build scan", e);
+                }
+            };
+            buildFinished.invoke(buildScan, addValues);
+        } catch (ReflectiveOperationException e) {
+            logger.info("Could not add build step timings to the build scan", e);
+        }
+    }
+
+    private static void addValues(Object buildScan, Method value, BuildStepReport.Report report) {
+        try {
+            value.invoke(buildScan, report.task() + " build time", BuildStepReport.formatSeconds(report.totalSeconds()));
+            final List<BuildStepReport.Entry> slowest = BuildStepReport.slowestFirst(report).stream()
+                    .limit(BUILD_SCAN_STEPS)
+                    .toList();
+            for (int i = 0; i < slowest.size(); i++) {
+                value.invoke(
+                        buildScan,
+                        report.task() + " slowest step " + (i + 1),
+                        BuildStepReport.formatSeconds(slowest.get(i).seconds()) + " " + slowest.get(i).name()
+                );
+            }
+        } catch (ReflectiveOperationException e) {
+            logger.info("Could not add build step timings to the build scan", e);
+        }
+    }
+}
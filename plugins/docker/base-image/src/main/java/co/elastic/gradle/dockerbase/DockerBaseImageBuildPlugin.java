@@ -21,13 +21,18 @@ package co.elastic.gradle.dockerbase;
 import co.elastic.gradle.cli.jfrog.JFrogPlugin;
 import co.elastic.gradle.docker.base.DockerLocalCleanTask;
 import co.elastic.gradle.dockerbase.lockfile.BaseLockfile;
+import co.elastic.gradle.dockerbase.lockfile.LockfileCacheService;
+import co.elastic.gradle.dockerbase.lockfile.Packages;
 import co.elastic.gradle.lifecycle.LifecyclePlugin;
 import co.elastic.gradle.lifecycle.MultiArchLifecyclePlugin;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.GradleUtils;
 import co.elastic.gradle.utils.OS;
 import co.elastic.gradle.utils.RegularFileUtils;
+import co.elastic.gradle.utils.docker.DockerDaemonLimiter;
+import co.elastic.gradle.utils.docker.DockerImageRegistry;
 import co.elastic.gradle.utils.docker.InstructionCopySpecMapper;
+import co.elastic.gradle.utils.docker.RetryService;
 import co.elastic.gradle.utils.docker.UnchangingContainerReference;
 import co.elastic.gradle.utils.docker.instruction.From;
 import co.elastic.gradle.utils.docker.instruction.FromLocalImageBuild;
@@ -43,13 +48,12 @@ import org.gradle.api.tasks.TaskProvider;
 import org.jetbrains.annotations.NotNull;
 
 import javax.inject.Inject;
-import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
@@ -59,6 +63,9 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
     public static final String BUILD_TASK_NAME = "dockerBaseImageBuild";
     public static final String LOCAL_IMPORT_TASK_NAME = "dockerBaseImageLocalImport";
     public static final String LOCKFILE_TASK_NAME = "dockerBaseImageLockfile";
+    public static final String PRUNE_TASK_NAME = "dockerPrune";
+    public static final String ANALYZE_TASK_NAME = "dockerImageAnalyze";
+    private static final String OS_PACKAGE_CONFIGURATION_NAME = "_osPackageRepo";
 
     @Override
     public void apply(@NotNull Project target) {
@@ -66,30 +73,70 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
         target.getPluginManager().apply(JFrogPlugin.class);
 
         final BaseImageExtension extension = target.getExtensions().create("dockerBaseImage", BaseImageExtension.class);
+        final Provider<LockfileCacheService> lockfileCache = LockfileCacheService.register(target);
+        extension.setLockfileCache(lockfileCache);
+        final Provider<ManifestDigestResolver> manifestDigestResolver = ManifestDigestResolver.register(target);
+        DockerDaemonLimiter.register(target);
+        BuildStepReportService.register(target);
+        RetryService.register(target);
+        registerPruneTask(target);
 
-        final Configuration osPackageConfiguration = target.getConfigurations().create("_osPackageRepo");
+        final Configuration osPackageConfiguration = target.getConfigurations().create(OS_PACKAGE_CONFIGURATION_NAME);
 
         registerPullTask(target, extension);
 
         final Configuration dockerEphemeralConfiguration = target.getConfigurations().create("dockerEphemeral");
 
-        TaskProvider<DockerBaseImageBuildTask> dockerBaseImageBuild = target.getTasks().register(
-                BUILD_TASK_NAME,
-                DockerBaseImageBuildTask.class
-        );
-        dockerBaseImageBuild.configure(task -> {
+        target.getTasks().withType(DockerBaseImageBuildTask.class).configureEach(task -> {
             task.getOSDistribution().set(extension.getOSDistribution());
             task.getMirrorRepositories().set(extension.getMirrorRepositories());
             task.getLockFile().set(extension.getLockFile());
             task.getDockerEphemeralMount().set(extension.getDockerEphemeralMount());
             task.getInputInstructions().set(extension.getInstructions());
             task.getMaxOutputSizeMB().set(extension.getMaxOutputSizeMB());
-            task.getInputInstructions().set(extension.getInstructions());
-            task.onlyIf(runningOnSupportedArchitecture(extension));
+            task.getConsolidateInstalls().set(extension.getConsolidateInstalls());
+            task.getSquashLayers().set(extension.getSquashLayers());
             task.getDockerEphemeralConfiguration().set(dockerEphemeralConfiguration);
+        });
+
+        TaskProvider<DockerBaseImageBuildTask> dockerBaseImageBuild = target.getTasks().register(
+                BUILD_TASK_NAME,
+                DockerBaseImageBuildTask.class
+        );
+        dockerBaseImageBuild.configure(task -> {
+            task.onlyIf(runningOnSupportedArchitecture(extension));
             task.getOSPackagesConfiguration().set(osPackageConfiguration);
             task.dependsOn(osPackageConfiguration);
         });
+
+        // Builds for the other architectures run under emulation, using the packages locked for that architecture
+        final TaskProvider<Task> buildAllWithEmulation = target.getTasks().register(
+                BUILD_TASK_NAME + "AllWithEmulation",
+                task -> {
+                    task.setGroup("containers");
+                    task.setDescription("Builds the image for all configured platforms on this host using emulation");
+                    task.dependsOn(dockerBaseImageBuild);
+                }
+        );
+        Arrays.stream(Architecture.values())
+                .filter(arch -> !arch.equals(Architecture.current()))
+                .forEach(arch -> {
+                    final Configuration archPackageConfiguration = target.getConfigurations().create(
+                            OS_PACKAGE_CONFIGURATION_NAME + arch.dockerName()
+                    );
+                    addLockfilePackages(target, extension, lockfileCache, archPackageConfiguration, arch);
+                    final TaskProvider<DockerBaseImageBuildTask> archBuild = target.getTasks().register(
+                            BUILD_TASK_NAME + arch.dockerName(),
+                            DockerBaseImageBuildTask.class,
+                            task -> {
+                                task.getArchitecture().set(arch);
+                                task.onlyIf(unused -> extension.getPlatforms().get().contains(arch));
+                                task.getOSPackagesConfiguration().set(archPackageConfiguration);
+                                task.dependsOn(archPackageConfiguration);
+                            }
+                    );
+                    buildAllWithEmulation.configure(task -> task.dependsOn(archBuild));
+                });
         MultiArchLifecyclePlugin.assembleForPlatform(target, dockerBaseImageBuild);
 
         TaskProvider<DockerLocalImportArchiveTask> dockerBaseImageLocalImport = registerLocalImportTask(
@@ -102,6 +149,12 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
 
         registerPushTask(target, extension, dockerBaseImageBuild);
 
+        registerAnalyzeTask(
+                target,
+                dockerBaseImageBuild,
+                dockerBaseImageBuild.flatMap(DockerBaseImageBuildTask::getImageArchive)
+        );
+
         Arrays.stream(Architecture.values()).forEach( arch -> {
                     target.getTasks().register(
                             LOCKFILE_TASK_NAME + (
@@ -128,10 +181,15 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
                     task.getInputInstructions().set(extension.getInstructions());
                     task.getOsPackageRepository().set(extension.getOsPackageRepository());
                     task.getMirrorRepositories().set(extension.getMirrorRepositories());
+                    task.getConsolidateInstalls().set(extension.getConsolidateInstalls());
                     task.getDockerEphemeralConfiguration().set(dockerEphemeralConfiguration);
                     task.getOSPackagesConfiguration().set(osPackageConfiguration);
                     // hard code Linux here, because we are using it inside a docker container
                     task.getJFrogCli().set(JFrogPlugin.getExecutable(target, OS.LINUX));
+                    task.getLockfileCache().set(lockfileCache);
+                    task.usesService(lockfileCache);
+                    task.getManifestDigestResolver().set(manifestDigestResolver);
+                    task.usesService(manifestDigestResolver);
                     task.onlyIf(runningOnSupportedArchitecture(extension));
                 }
         );
@@ -147,10 +205,15 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
 
         target.getGradle().getTaskGraph().whenReady(graph -> {
             final String separator = target.getPath().endsWith(":") ? "" : ":";
-            final String lockfileTaskPath = target.getPath() + separator + LOCKFILE_TASK_NAME;
-            final String buildTaskPath = target.getPath() + separator + BUILD_TASK_NAME;
-            if (graph.hasTask(lockfileTaskPath) && graph.hasTask(buildTaskPath)
-            ) {
+            // Tasks for the current architecture have no suffix, the ones building under emulation have one
+            final List<String> architectureSuffixes = Arrays.stream(Architecture.values())
+                    .map(arch -> arch.equals(Architecture.current()) ? "" : arch.dockerName())
+                    .toList();
+            final boolean generatesLockfile = architectureSuffixes.stream()
+                    .anyMatch(suffix -> graph.hasTask(target.getPath() + separator + LOCKFILE_TASK_NAME + suffix));
+            final boolean buildsImage = architectureSuffixes.stream()
+                    .anyMatch(suffix -> graph.hasTask(target.getPath() + separator + BUILD_TASK_NAME + suffix));
+            if (generatesLockfile && buildsImage) {
                 throw new GradleException("Generating the lockfile and building an image using it in the same invocation" +
                                           " is not supported. The lockfile should be generated and checked in. It can be " +
                                           "re-generated periodically to update dependencies, but doing at the same time" +
@@ -177,15 +240,17 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
                     });
 
             // assign copy specs to the build tasks to correctly evaluate build avoidance
-            dockerBaseImageBuild.configure(task ->
+            InstructionCopySpecMapper.registerContentManifests(target, extension.getInstructions());
+            target.getTasks().withType(DockerBaseImageBuildTask.class).configureEach(task ->
                     InstructionCopySpecMapper.assignCopySpecs(
-                            extension.getInstructions(), ((ImageBuildable) task).getRootCopySpec()
+                            extension.getInstructions(), ((ImageBuildable) task).getRootCopySpec(), task
                     )
             );
             target.getTasks().withType(DockerLockfileTask.class).configureEach(task ->
                     InstructionCopySpecMapper.assignCopySpecs(
                             extension.getInstructions(),
-                            ((ImageBuildable) task).getRootCopySpec())
+                            ((ImageBuildable) task).getRootCopySpec(),
+                            task)
             );
 
             if (extension.getOsPackageRepository().isPresent()) {
@@ -208,52 +273,51 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
                     }
                     // We don't use [ext] and add extension to classifier instead since Gradle doesn't allow it to be empty and defaults to jar
                     repo.patternLayout(config -> config.artifact("[organisation]/[module]-[revision].[ext]"));
-                    repo.content(content -> content.onlyForConfigurations(osPackageConfiguration.getName()));
+                    repo.content(content -> content.onlyForConfigurations(
+                            target.getConfigurations().stream()
+                                    .map(Configuration::getName)
+                                    .filter(name -> name.startsWith(OS_PACKAGE_CONFIGURATION_NAME))
+                                    .toArray(String[]::new)
+                    ));
                     if (credentialsAction != null) {
                         repo.credentials(credentialsAction);
                     }
                 });
             }
+        });
 
+        addLockfilePackages(target, extension, lockfileCache, osPackageConfiguration, Architecture.current());
+    }
+
+    private static void addLockfilePackages(
+            Project target,
+            BaseImageExtension extension,
+            Provider<LockfileCacheService> lockfileCache,
+            Configuration configuration,
+            Architecture architecture
+    ) {
+        // Dependencies are only added when the configuration is resolved, so projects that don't build an image in this
+        // invocation never read their lockfile.
+        configuration.withDependencies(dependencies -> {
             final Path lockfilePath = RegularFileUtils.toPath(extension.getLockFileLocation());
-            if (Files.exists(lockfilePath)) {
-                try {
-                    final BaseLockfile lockfile = BaseLockfile.parse(
-                            Files.newBufferedReader(lockfilePath)
-                    );
-                    lockfile.getPackages().get(Architecture.current()).getPackages()
-                            .stream()
-                            .forEach(pkg ->
-                                    {
-                                        final String type = extension.getOSDistribution().get()
-                                                .name().toLowerCase(Locale.ROOT);
-                                        final Map<String, String> dependencyNotation = Map.of(
-                                                "group", type,
-                                                "name", pkg.name(),
-                                                // Gradle has trouble dealing with : in the version, so we rename the
-                                                // packages to have . instead and use the same here
-                                                "version", switch (extension.getOSDistribution().get()) {
-                                                    case DEBIAN, UBUNTU -> pkg.version().replace(":", ".") +
-                                                                           "-" + pkg.architecture();
-                                                    case CENTOS -> pkg.version() + "-" +
-                                                                   pkg.release() + "." +
-                                                                   pkg.architecture();
-                                                },
-                                                "ext", switch (extension.getOSDistribution().get()) {
-                                                    case DEBIAN, UBUNTU -> pkg.name().startsWith("__META__") ? "gz" : "deb";
-                                                    case CENTOS -> pkg.name().startsWith("__META__") ? "tar" : "rpm";
-                                                }
-                                        );
-                                        target.getDependencies().add(
-                                                osPackageConfiguration.getName(),
-                                                dependencyNotation
-                                        );
-                                    }
-                            );
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e);
-                }
+            if (!Files.exists(lockfilePath)) {
+                return;
             }
+            final BaseLockfile lockfile = lockfileCache.get().getBaseLockfile(lockfilePath);
+            final Packages packages = lockfile.getPackages().get(architecture);
+            if (packages == null) {
+                return;
+            }
+            final OSDistribution distribution = extension.getOSDistribution().get();
+            final String type = distribution.name().toLowerCase(Locale.ROOT);
+            packages.getPackages().forEach(pkg -> dependencies.add(
+                    target.getDependencies().create(Map.of(
+                            "group", type,
+                            "name", pkg.name(),
+                            "version", pkg.getArtifactRevision(distribution),
+                            "ext", pkg.getArtifactExtension(distribution)
+                    ))
+            ));
         });
     }
 
@@ -281,6 +345,47 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
         return dockerBaseImagePush;
     }
 
+    /**
+     * Registers the task to analyze the size of the image archives built by the given task, it's shared by all docker
+     * plugins so each adds its build task and archives to it.
+     */
+    public static void registerAnalyzeTask(Project target, TaskProvider<?> buildTask, Object imageArchives) {
+        if (!target.getTasks().getNames().contains(ANALYZE_TASK_NAME)) {
+            target.getTasks().register(ANALYZE_TASK_NAME, DockerImageAnalyzeTask.class, task -> {
+                task.setGroup("containers");
+                task.setDescription("Reports layer sizes, wasted space and duplicated files of the built image archives");
+                task.getReportDirectory().convention(
+                        target.getLayout().getBuildDirectory().dir(ANALYZE_TASK_NAME)
+                );
+            });
+        }
+        target.getTasks().named(ANALYZE_TASK_NAME, DockerImageAnalyzeTask.class).configure(task -> {
+            task.dependsOn(buildTask);
+            task.getImageArchives().from(imageArchives);
+        });
+    }
+
+    /**
+     * Registers the task to garbage collect local images created by the plugins, it's shared by all docker plugins.
+     */
+    public static void registerPruneTask(Project target) {
+        final Provider<DockerImageRegistry> registry = DockerImageRegistry.register(target);
+        if (target.getTasks().getNames().contains(PRUNE_TASK_NAME)) {
+            return;
+        }
+        target.getTasks().register(PRUNE_TASK_NAME, DockerPruneTask.class, task -> {
+            task.setGroup("containers");
+            task.setDescription("Removes the least recently used images created by the build to stay within a disk budget");
+            task.getDockerImageRegistry().set(registry);
+            task.getBudgetMB().set(
+                    target.getProviders().gradleProperty(DockerImageRegistry.BUDGET_PROPERTY)
+                            .map(Long::parseLong)
+                            .orElse(DockerImageRegistry.DEFAULT_BUDGET_MB)
+            );
+            task.usesService(registry);
+        });
+    }
+
     @NotNull
     public static Provider<String> pushedTagConvention(@NotNull Project target, Architecture current) {
         Property<String> dockerTagPrefix = target.getExtensions()
@@ -325,6 +430,9 @@ public abstract class DockerBaseImageBuildPlugin implements Plugin<Project> {
                     task.getImageArchive().set(
                             dockerBaseImageBuild.flatMap(DockerBaseImageBuildTask::getImageArchive)
                     );
+                    task.getImageLayers().set(
+                            dockerBaseImageBuild.flatMap(DockerBaseImageBuildTask::getImageLayersFile)
+                    );
                     task.getImageId().set(
                             dockerBaseImageBuild.flatMap(DockerBaseImageBuildTask::getImageId)
                     );
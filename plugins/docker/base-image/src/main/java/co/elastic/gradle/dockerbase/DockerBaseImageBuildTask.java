@@ -22,14 +22,13 @@ import co.elastic.gradle.dockerbase.lockfile.BaseLockfile;
 import co.elastic.gradle.dockerbase.lockfile.Packages;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.RegularFileUtils;
+import co.elastic.gradle.utils.docker.DockerDaemonLimiter;
+import co.elastic.gradle.utils.docker.DockerDaemonUsingTask;
 import co.elastic.gradle.utils.docker.DockerPluginConventions;
-import co.elastic.gradle.utils.docker.DockerUtils;
-import co.elastic.gradle.utils.docker.GradleCacheUtilities;
 import co.elastic.gradle.utils.docker.UnchangingContainerReference;
 import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
 import co.elastic.gradle.utils.docker.instruction.From;
 import co.elastic.gradle.utils.docker.instruction.Install;
-import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.GradleException;
 import org.gradle.api.file.DirectoryProperty;
@@ -42,26 +41,20 @@ import org.gradle.api.provider.Property;
 import org.gradle.api.provider.Provider;
 import org.gradle.api.provider.ProviderFactory;
 import org.gradle.api.tasks.*;
-import org.gradle.process.ExecOperations;
-import org.gradle.process.ExecResult;
+import org.gradle.workers.WorkerExecutor;
 import org.jetbrains.annotations.NotNull;
 
 import javax.inject.Inject;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
-import java.util.UUID;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 @CacheableTask
-public abstract class DockerBaseImageBuildTask extends DefaultTask implements ImageBuildable {
+public abstract class DockerBaseImageBuildTask extends DefaultTask implements ImageBuildable, DockerDaemonUsingTask {
 
     private final DefaultCopySpec rootCopySpec;
 
@@ -69,23 +62,30 @@ public abstract class DockerBaseImageBuildTask extends DefaultTask implements Im
     public DockerBaseImageBuildTask() {
         super();
 
-        final String baseFileName = getName() + "/" + "image-" + Architecture.current().name().toLowerCase();
+        getArchitecture().convention(Architecture.current());
+        final Provider<String> baseFileName = getArchitecture().map(architecture ->
+                getName() + "/" + "image-" + architecture.name().toLowerCase()
+        );
 
         getImageArchive().convention(
-                getProjectLayout().getBuildDirectory().file(baseFileName + ".tar.zstd")
+                getProjectLayout().getBuildDirectory().file(baseFileName.map(name -> name + ".tar.zstd"))
         );
         getWorkingDirectory().convention(
                 getProjectLayout().getBuildDirectory().dir(getName())
         );
+        getBuildStepReportDirectory().convention(getWorkingDirectory());
         getImageIdFile().convention(
-                getProjectLayout().getBuildDirectory().file(baseFileName + ".idfile")
+                getProjectLayout().getBuildDirectory().file(baseFileName.map(name -> name + ".idfile"))
         );
         getCreatedAtFile().convention(
-                getProjectLayout().getBuildDirectory().file(baseFileName + ".createdAt")
+                getProjectLayout().getBuildDirectory().file(baseFileName.map(name -> name + ".createdAt"))
+        );
+        getImageLayersFile().convention(
+                getProjectLayout().getBuildDirectory().file(baseFileName.map(name -> name + ".layers.json"))
         );
         getIsolateFromExternalRepos().convention(true);
-
-        getArchitecture().convention(Architecture.current());
+        getConsolidateInstalls().convention(true);
+        getSquashLayers().convention(false);
 
         rootCopySpec = getProject().getObjects().newInstance(DefaultCopySpec.class);
         rootCopySpec.addChildSpecListener(DockerPluginConventions.mapCopySpecToTaskInputs(this));
@@ -126,20 +126,20 @@ public abstract class DockerBaseImageBuildTask extends DefaultTask implements Im
             throw new GradleException("The lockfile does not have any packages for " + architecture);
         }
 
+        final OSDistribution distribution = getOSDistribution().get();
         final Set<String> allPackages = instructions.stream()
                 .filter(each -> each instanceof Install)
                 .map(each -> (Install) each)
                 .flatMap(each -> each.getPackages().stream())
                 .collect(Collectors.toSet());
 
-        return Stream.concat(
-                instructions.stream()
+        final List<ContainerImageBuildInstruction> lockedInstructions = instructions.stream()
                         .map(instruction -> {
                             if (instruction instanceof From from) {
                                 if (lockfile.getImage() == null) {
                                     throw new GradleException("Missing image in lockfile, does it need to be regenerated?");
                                 }
-                                UnchangingContainerReference lockedImage = lockfile.getImage().get(Architecture.current());
+                                UnchangingContainerReference lockedImage = lockfile.getImage().get(architecture);
                                 if (from.getReference().get().contains("@")) {
                                     throw new IllegalStateException(
                                             "The sha should come from the lockfile and thus should " +
@@ -164,7 +164,7 @@ public abstract class DockerBaseImageBuildTask extends DefaultTask implements Im
                                 );
                             } else if (instruction instanceof Install install) {
                                 final List<String> missingPackages = install.getPackages().stream()
-                                        .filter(each -> packages.findByName(each).isEmpty())
+                                        .filter(each -> !packages.containsName(each))
                                         .toList();
                                 if (!missingPackages.isEmpty()) {
                                     throw new GradleException(
@@ -172,7 +172,6 @@ public abstract class DockerBaseImageBuildTask extends DefaultTask implements Im
                                             String.join(",", missingPackages)
                                     );
                                 }
-                                final OSDistribution distribution = getOSDistribution().get();
                                 return new Install(
                                         install.getPackages().stream()
                                                 .map(packages::findByName)
@@ -183,19 +182,21 @@ public abstract class DockerBaseImageBuildTask extends DefaultTask implements Im
                             } else {
                                 return instruction;
                             }
-                        }),
-                Stream.of(
-                        // Add an installation instruction for packages in the lockfile but not the DSL.
-                        // These are the implicit packages from the base image, but we want to be sure they are at the
-                        // same version as specified in the lockfile.
-                        new Install(
-                                packages.getPackages().stream()
-                                        .filter(each -> !allPackages.contains(each.getName()))
-                                        .map(each -> each.getPackageName(getOSDistribution().get()))
-                                        .toList()
-                        )
-                )
-        ).toList();
+                        })
+                .toList();
+        // Add an installation instruction for packages in the lockfile but not the DSL.
+        // These are the implicit packages from the base image, but we want to be sure they are at the
+        // same version as specified in the lockfile.
+        final Install implicitInstall = new Install(
+                packages.getPackages().stream()
+                        .filter(each -> !allPackages.contains(each.getName()))
+                        .map(each -> each.getPackageName(distribution))
+                        .toList()
+        );
+        if (getConsolidateInstalls().get()) {
+            return InstallConsolidation.consolidate(lockedInstructions, implicitInstall);
+        }
+        return Stream.concat(lockedInstructions.stream(), Stream.of(implicitInstall)).toList();
     }
 
 
@@ -208,9 +209,6 @@ public abstract class DockerBaseImageBuildTask extends DefaultTask implements Im
         return rootCopySpec;
     }
 
-    @Inject
-    abstract protected ExecOperations getExecOperations();
-
     @Inject
     abstract protected ProjectLayout getProjectLayout();
 
@@ -230,6 +228,12 @@ public abstract class DockerBaseImageBuildTask extends DefaultTask implements Im
     @OutputFile
     public abstract RegularFileProperty getImageArchive();
 
+    /**
+     * The layers of the image archive, so these can be compared to the layers in a daemon without decompressing it.
+     */
+    @OutputFile
+    public abstract RegularFileProperty getImageLayersFile();
+
     @Internal
     public Provider<Instant> getCreatedAt() {
         //Convenience Provider to access the creation date  from the createdAt file
@@ -254,68 +258,41 @@ public abstract class DockerBaseImageBuildTask extends DefaultTask implements Im
     @Input
     public abstract Property<Boolean> getIsolateFromExternalRepos();
 
-    private void buildDockerImage() {
-        DockerDaemonActions daemonActions = getObjectFactory().newInstance(DockerDaemonActions.class, this);
-        DockerUtils dockerUtils = new DockerUtils(getExecOperations());
-        try {
-            UUID uuid = daemonActions.build();
-
-            try (BufferedOutputStream createAtFileOut = new BufferedOutputStream(
-                    Files.newOutputStream(RegularFileUtils.toPath(getCreatedAtFile())))
-            ) {
-                int imageInspect = dockerUtils.exec(spec -> {
-                    spec.setWorkingDir(getWorkingDirectory());
-                    spec.setStandardOutput(createAtFileOut);
-                    spec.commandLine("docker", "image", "inspect", "--format", "{{.Created}}", uuid);
-                    spec.setIgnoreExitValue(true);
-                }).getExitValue();
-                if (imageInspect != 0) {
-                    throw new GradleException(
-                            "Failed to inspect docker image, see the docker build log in the task output"
-                    );
-                }
-            }
+    @Override
+    @Input
+    public abstract Property<Boolean> getConsolidateInstalls();
 
-            final Path imageArchive = RegularFileUtils.toPath(getImageArchive());
-            try (ZstdCompressorOutputStream compressedOut = new ZstdCompressorOutputStream(
-                    new BufferedOutputStream(Files.newOutputStream(imageArchive)))) {
-                ExecResult imageSave = dockerUtils.exec(spec -> {
-                    spec.setStandardOutput(compressedOut);
-                    spec.setCommandLine("docker", "save", uuid.toString());
-                    spec.setIgnoreExitValue(true);
-                });
-                if (imageSave.getExitValue() != 0) {
-                    throw new GradleException(
-                            "Failed to save docker image, see the docker build log in the task output"
-                    );
-                }
-            }
+    @Input
+    public abstract Property<Boolean> getSquashLayers();
 
-            dockerUtils.exec(spec -> {
-                spec.commandLine("docker", "image", "rm", "-f", uuid);
-                spec.setIgnoreExitValue(false);
-            });
-        } catch (IOException e) {
-            throw new GradleException("Error building docker base image", e);
-        }
-    }
+    @Inject
+    abstract protected WorkerExecutor getWorkerExecutor();
 
     @TaskAction
     protected void taskAction() {
-        buildDockerImage();
-        final Long maxSizeMB = getMaxOutputSizeMB().get();
-        if (maxSizeMB > 0) {
-            try {
-                GradleCacheUtilities.assertOutputSize(
-                        getPath(),
-                        Files.size(RegularFileUtils.toPath(getImageArchive())),
-                        maxSizeMB
-                );
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
-            }
+        final DockerDaemonActions.PreparedBuild build;
+        // Preparing the context only runs short-lived containers, the build takes its permit in the work action
+        try (DockerDaemonLimiter.Permit ignored = acquireDockerDaemon(DockerDaemonLimiter.Operation.RUN)) {
+            build = getObjectFactory().newInstance(DockerDaemonActions.class, this).prepare();
+        } catch (IOException e) {
+            throw new GradleException("Error building docker base image", e);
         }
+        // The build runs as work so the builds for the other architectures of the project can run at the same time
+        getWorkerExecutor().noIsolation().submit(DockerBaseImageBuildWork.class, parameters -> {
+            parameters.getTaskPath().set(getPath());
+            parameters.getBuild().set(build);
+            parameters.getWorkingDirectory().set(getWorkingDirectory());
+            parameters.getBuildStepReportDirectory().set(getBuildStepReportDirectory());
+            parameters.getBuildStepReports().set(getBuildStepReports());
+            parameters.getDockerDaemonLimiter().set(getDockerDaemonLimiter());
+            parameters.getDockerImageRegistry().set(getDockerImageRegistry());
+            parameters.getDockerImageOwner().set(getDockerImageOwner());
+            parameters.getSquashLayers().set(getSquashLayers());
+            parameters.getMaxOutputSizeMB().set(getMaxOutputSizeMB());
+            parameters.getImageIdFile().set(getImageIdFile());
+            parameters.getImageArchive().set(getImageArchive());
+            parameters.getImageLayersFile().set(getImageLayersFile());
+            parameters.getCreatedAtFile().set(getCreatedAtFile());
+        });
     }
-
-
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.AsyncProcess;
+import co.elastic.gradle.utils.RegularFileUtils;
+import co.elastic.gradle.utils.docker.DockerDaemonLimiter;
+import co.elastic.gradle.utils.docker.DockerImageRegistry;
+import co.elastic.gradle.utils.docker.DockerUtils;
+import co.elastic.gradle.utils.docker.OutputSizeGuard;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.process.ExecOperations;
+import org.gradle.process.ExecResult;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import javax.inject.Inject;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * Builds and saves the image of a {@link DockerBaseImageBuildTask} once its context is prepared. Running this as work
+ * lets Gradle run the builds of the other architectures of the project at the same time, the daemon limiter still
+ * bounds how many builds the daemon sees.
+ */
+public abstract class DockerBaseImageBuildWork implements WorkAction<DockerBaseImageBuildWork.Parameters> {
+
+    private static final Logger logger = Logging.getLogger(DockerBaseImageBuildWork.class);
+
+    public interface Parameters extends WorkParameters {
+
+        Property<String> getTaskPath();
+
+        Property<DockerDaemonActions.PreparedBuild> getBuild();
+
+        DirectoryProperty getWorkingDirectory();
+
+        DirectoryProperty getBuildStepReportDirectory();
+
+        Property<BuildStepReportService> getBuildStepReports();
+
+        Property<DockerDaemonLimiter> getDockerDaemonLimiter();
+
+        Property<DockerImageRegistry> getDockerImageRegistry();
+
+        Property<String> getDockerImageOwner();
+
+        Property<Boolean> getSquashLayers();
+
+        Property<Long> getMaxOutputSizeMB();
+
+        RegularFileProperty getImageIdFile();
+
+        RegularFileProperty getImageArchive();
+
+        RegularFileProperty getImageLayersFile();
+
+        RegularFileProperty getCreatedAtFile();
+    }
+
+    @Inject
+    protected abstract ExecOperations getExecOperations();
+
+    @Override
+    public void execute() {
+        // The permit is taken here rather than in the task, so it's only held while the daemon is building
+        final Property<DockerDaemonLimiter> limiter = getParameters().getDockerDaemonLimiter();
+        if (!limiter.isPresent()) {
+            buildDockerImage();
+            return;
+        }
+        try (DockerDaemonLimiter.Permit ignored = limiter.get()
+                .acquire(DockerDaemonLimiter.Operation.BUILD, getParameters().getTaskPath().get())) {
+            buildDockerImage();
+        }
+    }
+
+    private void buildDockerImage() {
+        final Parameters parameters = getParameters();
+        final DockerDaemonActions.PreparedBuild build = parameters.getBuild().get();
+        final String tag = build.tag();
+        DockerUtils dockerUtils = new DockerUtils(getExecOperations());
+        try {
+            // Track the image before building it, so it's cleaned up even if the build fails before it's removed
+            if (parameters.getDockerImageRegistry().isPresent()) {
+                parameters.getDockerImageRegistry().get().track(tag, parameters.getDockerImageOwner().get());
+            }
+            DockerDaemonActions.run(
+                    dockerUtils,
+                    build,
+                    parameters.getTaskPath().get(),
+                    RegularFileUtils.toPath(parameters.getBuildStepReportDirectory()),
+                    parameters.getBuildStepReports()
+            );
+
+            // The inspect doesn't depend on the save, so it runs while the image is being saved
+            final CompletableFuture<AsyncProcess.Result> imageInspect = dockerUtils
+                    .execAsync("docker", "image", "inspect", "--format", "{{.Created}}", tag)
+                    .redirectOutput(RegularFileUtils.toPath(parameters.getCreatedAtFile()))
+                    .timeout(Duration.ofMinutes(5))
+                    .start();
+
+            final Path imageArchive = RegularFileUtils.toPath(parameters.getImageArchive());
+            // Stops saving, compressing and writing the archive as soon as it's too large instead of failing at the end
+            final OutputSizeGuard sizeGuard = new OutputSizeGuard(
+                    parameters.getTaskPath().get(),
+                    parameters.getMaxOutputSizeMB().get()
+            );
+            final ImageAnalyzer.LargestFiles largestFiles = new ImageAnalyzer.LargestFiles();
+            try (ZstdCompressorOutputStream compressedOut = new ZstdCompressorOutputStream(
+                    new BufferedOutputStream(sizeGuard.counting(Files.newOutputStream(imageArchive))))) {
+                final OutputStream imageOut = sizeGuard.stopping(compressedOut);
+                final ImageArchiveLayers layers;
+                if (parameters.getSquashLayers().get()) {
+                    layers = saveSquashed(dockerUtils, build, imageOut);
+                } else {
+                    final AtomicReference<ImageArchiveLayers> savedLayers = new AtomicReference<>();
+                    final AsyncProcess.Result imageSave = AsyncProcess.await(
+                            dockerUtils.execAsync("docker", "save", tag)
+                                    .consumeOutput(output -> savedLayers.set(
+                                            ImageArchiveLayers.copy(output, imageOut, "saved by docker", largestFiles)
+                                    ))
+                                    .start()
+                    );
+                    if (imageSave.exitValue() != 0) {
+                        throw new GradleException("Failed to save docker image: " + imageSave.error().strip());
+                    }
+                    layers = savedLayers.get();
+                }
+                layers.writeTo(RegularFileUtils.toPath(parameters.getImageLayersFile()));
+            } catch (OutputSizeGuard.LimitExceededException e) {
+                logger.info("Stopped writing the image archive: {}", e.getMessage());
+            } catch (UncheckedIOException e) {
+                // The consumer of the docker save output failed, which also destroyed the process
+                if (!(e.getCause() instanceof OutputSizeGuard.LimitExceededException)) {
+                    throw e;
+                }
+                logger.info("Stopped saving the image: {}", e.getCause().getMessage());
+            }
+
+            if (AsyncProcess.await(imageInspect).exitValue() != 0) {
+                throw new GradleException(
+                        "Failed to inspect docker image, see the docker build log in the task output"
+                );
+            }
+
+            final String sizeReport = sizeGuard.isExceeded() ?
+                    largestLayersReport(dockerUtils, tag) + largestFiles.format() : "";
+
+            dockerUtils.exec(spec -> {
+                spec.commandLine("docker", "image", "rm", "-f", tag);
+                spec.setIgnoreExitValue(false);
+            });
+
+            sizeGuard.check(() -> sizeReport);
+        } catch (IOException e) {
+            throw new GradleException("Error building docker base image", e);
+        }
+    }
+
+    private ImageArchiveLayers saveSquashed(
+            DockerUtils dockerUtils,
+            DockerDaemonActions.PreparedBuild build,
+            OutputStream out
+    ) throws IOException {
+        final Path workingDir = RegularFileUtils.toPath(getParameters().getWorkingDirectory());
+        final Path savedImage = workingDir.resolve("image.tar");
+        try {
+            ExecResult imageSave = dockerUtils.exec(spec -> {
+                spec.setCommandLine("docker", "save", "-o", savedImage.toString(), build.tag());
+                spec.setIgnoreExitValue(true);
+            });
+            if (imageSave.getExitValue() != 0) {
+                throw new GradleException(
+                        "Failed to save docker image, see the docker build log in the task output"
+                );
+            }
+            final ImageSquash.Squashed squashed = ImageSquash.squash(
+                    savedImage,
+                    DockerDaemonActions.baseImageLayers(dockerUtils, build.baseImage()),
+                    workingDir.resolve("squash"),
+                    out
+            );
+            // The archive now holds a different image than the one that was built
+            Files.writeString(RegularFileUtils.toPath(getParameters().getImageIdFile()), squashed.imageId());
+            logger.info("Squashed the layers above the base image into image {}", squashed.imageId());
+            return squashed.layers();
+        } finally {
+            Files.deleteIfExists(savedImage);
+        }
+    }
+
+    private String largestLayersReport(DockerUtils dockerUtils, String tag) {
+        final ByteArrayOutputStream historyOut = new ByteArrayOutputStream();
+        final int history = dockerUtils.exec(spec -> {
+            spec.setStandardOutput(historyOut);
+            spec.commandLine(
+                    "docker", "history", "--no-trunc", "--human=false",
+                    "--format", "{{.Size}}\t{{.CreatedBy}}",
+                    tag
+            );
+            spec.setIgnoreExitValue(true);
+        }).getExitValue();
+        if (history != 0) {
+            return "Could not read the image history to list the largest layers.";
+        }
+        return "Largest layers (uncompressed):\n" + historyOut.toString(StandardCharsets.UTF_8).lines()
+                .map(line -> line.split("\t", 2))
+                .filter(parts -> parts.length == 2 && parts[0].matches("\\d+"))
+                .sorted(Comparator.comparingLong((String[] parts) -> Long.parseLong(parts[0])).reversed())
+                .limit(5)
+                .map(parts -> String.format(
+                        "  %6dMb %s",
+                        Long.parseLong(parts[0]) / (1024 * 1024),
+                        parts[1].length() > 200 ? parts[1].substring(0, 200) + "..." : parts[1]
+                ))
+                .collect(Collectors.joining("\n"));
+    }
+}
@@ -19,16 +19,25 @@
 
 package co.elastic.gradle.dockerbase;
 
+import co.elastic.gradle.utils.HardlinkSync;
 import co.elastic.gradle.utils.RegularFileUtils;
 import co.elastic.gradle.utils.docker.DockerUtils;
 import co.elastic.gradle.utils.docker.instruction.*;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.gradle.api.GradleException;
 import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Provider;
 import org.gradle.process.ExecOperations;
 
 import javax.inject.Inject;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
 import java.io.UncheckedIOException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
@@ -41,10 +50,14 @@ import java.util.stream.Stream;
 
 public abstract class DockerDaemonActions {
 
+    private static final Logger logger = Logging.getLogger(DockerDaemonActions.class);
+
     private final DockerUtils dockerUtils;
     private final ImageBuildable buildable;
     private final Path workingDir;
     private final UUID uuid;
+    // The instruction that generated each build step, in the order BuildKit numbers them
+    private final List<ContainerImageBuildInstruction> buildSteps = new ArrayList<>();
     private String user;
 
     @Inject
@@ -79,6 +92,8 @@ public abstract class DockerDaemonActions {
     }
 
     public String dockerFileFromInstructions() {
+        // Installs are already consolidated by the task if enabled, so this is also reflected in its inputs
+        final List<ContainerImageBuildInstruction> instructions = buildable.getActualInstructions();
         return "##########################################################\n" +
                "#                                                        #\n" +
                "#                Auto generated Dockerfile               #\n" +
@@ -87,12 +102,27 @@ public abstract class DockerDaemonActions {
                "# syntax = docker/dockerfile:1.3\n" +
                "# Internal UUID: " + uuid + "\n" +
                "# Building " + buildable + "\n\n" +
-               buildable.getActualInstructions().stream()
-                       .flatMap(this::convertInstallToRun)
-                       .map(this::instructionAsDockerFileInstruction)
+               instructions.stream()
+                       .flatMap(instruction -> convertInstallToRun(instruction)
+                               .map(this::instructionAsDockerFileInstruction)
+                               .peek(dockerFileInstruction -> {
+                                   if (isBuildStep(dockerFileInstruction)) {
+                                       buildSteps.add(instruction);
+                                   }
+                               })
+                       )
                        .collect(Collectors.joining("\n"));
     }
 
+    private static boolean isBuildStep(String dockerFileInstruction) {
+        // Only these create a step in BuildKit, others like USER or ENV just change the image config
+        return dockerFileInstruction.lines()
+                .filter(line -> !line.startsWith("#"))
+                .findFirst()
+                .map(line -> line.startsWith("FROM ") || line.startsWith("RUN ") || line.startsWith("COPY "))
+                .orElse(false);
+    }
+
     public static Run wrapInstallCommand(ImageBuildable buildable, String command) {
         final OSDistribution distribution = buildable.getOSDistribution().get();
         final boolean requiresCleanLayers = buildable.getIsolateFromExternalRepos().get();
@@ -286,26 +316,58 @@ public abstract class DockerDaemonActions {
 
     }
 
+    /**
+     * A docker build with its context in place. It only holds serializable values, so it can be handed to a work action.
+     *
+     * @param stepInstructions the description of the instruction that generated each build step, for the
+     *                         {@link BuildStepReport}
+     */
+    public record PreparedBuild(
+            String tag,
+            File workingDir,
+            List<String> commandLine,
+            String baseImage,
+            List<String> stepInstructions
+    ) implements Serializable {
+    }
+
     public UUID build() throws IOException {
+        final PreparedBuild prepared = prepare();
+        // Track the image before building it, so it's cleaned up even if the build fails before it's removed
+        buildable.trackDockerImage(prepared.tag());
+        run(dockerUtils, prepared, buildable.getPath(), RegularFileUtils.toPath(buildable.getBuildStepReportDirectory()),
+                buildable.getBuildStepReports());
+        return uuid;
+    }
+
+    /**
+     * Sets up the build context and the Dockerfile, without building the image yet.
+     */
+    public PreparedBuild prepare() throws IOException {
         checkVersion();
         Files.createDirectories(workingDir);
         synchronizeFiles();
         generateEphemeralRepositories();
 
+        final String baseImage = buildable.getActualInstructions().stream()
+                .filter(each -> each instanceof FromImageReference)
+                .map(each -> ((FromImageReference) each).getReference().get())
+                .findFirst()
+                .orElseThrow(() -> new GradleException("A base image is not configured"));
         {
-            final String baseImage = buildable.getActualInstructions().stream()
-                    .filter(each -> each instanceof FromImageReference)
-                    .map(each -> ((FromImageReference) each).getReference().get())
-                    .findFirst()
-                    .orElseThrow(() -> new GradleException("A base image is not configured"));
             final ByteArrayOutputStream whoAmIOut = new ByteArrayOutputStream();
             dockerUtils.exec(execSpec -> {
                 execSpec.setStandardOutput(whoAmIOut);
-                execSpec.commandLine("docker", "run", "--rm", "--entrypoint", "/bin/sh", baseImage, "-c", "'whoami'");
+                execSpec.commandLine(
+                        "docker", "run", "--rm",
+                        "--platform", "linux/" + buildable.getArchitecture().get().dockerName(),
+                        "--entrypoint", "/bin/sh", baseImage, "-c", "'whoami'"
+                );
             });
             user = whoAmIOut.toString().trim();
         }
 
+        buildSteps.clear();
         Path dockerFile = workingDir.resolve("Dockerfile");
         Files.writeString(
                 dockerFile,
@@ -325,57 +387,100 @@ public abstract class DockerDaemonActions {
                         .collect(Collectors.joining("\n"))
         );
 
+        final List<String> commandLine = new ArrayList<>(List.of(
+                "docker", "image", "build", "--platform", "linux/" + buildable.getArchitecture().get().dockerName(),
+                "--quiet=false"
+        ));
         // We build with --no-cache to make things more straight forward, since we already cache images using Gradle's build cache
+        if (!System.getProperty("co.elastic.unsafe.use-docker-cache", "false").equals("true")) {
+            // Using the cache is usefull for development when we don't care about image corectness, but otherwhise
+            //   dagerous, e.g. dockerEphemeral content in run commands could lead to incorrect results
+            commandLine.add("--no-cache");
+        }
+        commandLine.addAll(List.of(
+                "--progress=plain",
+                "--iidfile=" + buildable.getImageIdFile().get().getAsFile(), ".", "-t",
+                uuid.toString()
+        ));
+
+        return new PreparedBuild(
+                uuid.toString(),
+                dockerFile.getParent().toFile(),
+                List.copyOf(commandLine),
+                baseImage,
+                buildSteps.stream().map(BuildStepReport::describe).toList()
+        );
+    }
+
+    /**
+     * Builds a prepared image, the report of the build steps is written even if the build fails.
+     */
+    static void run(
+            DockerUtils dockerUtils,
+            PreparedBuild build,
+            String taskPath,
+            Path reportDirectory,
+            Provider<BuildStepReportService> reports
+    ) {
+        final BuildKitProgressParser progressParser = new BuildKitProgressParser();
+        final long buildStart = System.nanoTime();
         int imageBuild = dockerUtils.exec(spec -> {
-            spec.setWorkingDir(dockerFile.getParent().toFile());
-            if (System.getProperty("co.elastic.unsafe.use-docker-cache", "false").equals("true")) {
-                // This is usefull for development when we don't care about image corectness, but otherwhise dagerous,
-                //   e.g. dockerEphemeral content in run commands could lead to incorrect results
-                spec.commandLine("docker", "image", "build", "--platform", "linux/" + buildable.getArchitecture().get().dockerName(),
-                        "--quiet=false",
-                        "--progress=plain",
-                        "--iidfile=" + buildable.getImageIdFile().get().getAsFile(), ".", "-t",
-                        uuid
-                );
-            } else {
-                spec.commandLine("docker", "image", "build", "--platform", "linux/" + buildable.getArchitecture().get().dockerName(),
-                        "--quiet=false",
-                        "--no-cache",
-                        "--progress=plain",
-                        "--iidfile=" + buildable.getImageIdFile().get().getAsFile(), ".", "-t",
-                        uuid
-                );
-            }
+            spec.setWorkingDir(build.workingDir());
+            spec.setErrorOutput(new TeeOutputStream(CloseShieldOutputStream.wrap(System.err), progressParser));
+            spec.commandLine(build.commandLine());
             spec.setIgnoreExitValue(true);
         }).getExitValue();
+        final double buildSeconds = (System.nanoTime() - buildStart) / 1e9;
+        progressParser.close();
+        // The report is also useful to see which step failed
+        final BuildStepReport report = new BuildStepReport(
+                taskPath, buildSeconds, progressParser.getSteps(), build.stepInstructions()
+        );
+        report.write(reportDirectory);
+        if (reports.isPresent()) {
+            reports.get().add(report.getReport());
+        }
         if (imageBuild != 0) {
             throw new GradleException("Failed to build docker image, see the docker build log in the task output");
         }
+    }
 
-        return uuid;
+    /**
+     * The diff ids of the layers of the image a build started from.
+     */
+    static List<String> baseImageLayers(DockerUtils dockerUtils, String baseImage) {
+        final ByteArrayOutputStream layersOut = new ByteArrayOutputStream();
+        dockerUtils.exec(spec -> {
+            spec.setStandardOutput(layersOut);
+            spec.commandLine("docker", "image", "inspect", "--format", "{{json .RootFS.Layers}}", baseImage);
+        });
+        try {
+            final List<String> result = new ArrayList<>();
+            new ObjectMapper().readTree(layersOut.toByteArray()).forEach(each -> result.add(each.asText()));
+            return result;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the layers of " + baseImage, e);
+        }
     }
 
     private void synchronizeFiles() throws IOException {
+        // Link the files instead of copying them, the OS packages alone can be well over a GB
+        final HardlinkSync hardlinkSync = new HardlinkSync(getFilesystemOperations());
+
         Files.createDirectories(getContextDir());
-        getFilesystemOperations().sync(spec -> {
-                    spec.into(getContextDir());
-                    spec.with(buildable.getRootCopySpec());
-                }
-        );
+        hardlinkSync.syncCopySpec(buildable.getRootCopySpec(), getContextDir());
 
         final Path dockerEphemeralDir = getDockerEphemeralDir();
         Files.createDirectories(dockerEphemeralDir);
-        getFilesystemOperations().sync(copySpec -> {
-            copySpec.from(buildable.getDockerEphemeralConfiguration().get());
-            copySpec.into(dockerEphemeralDir);
-        });
+        hardlinkSync.syncFiles(buildable.getDockerEphemeralConfiguration().get(), dockerEphemeralDir);
 
         final Path osPackagesDir = getOSPackagesDir();
         Files.createDirectories(osPackagesDir);
-        getFilesystemOperations().sync(copySpec -> {
-            copySpec.from(buildable.getOSPackagesConfiguration().get());
-            copySpec.into(osPackagesDir);
-        });
+        final HardlinkSync.Result packagesResult = hardlinkSync.syncFiles(
+                buildable.getOSPackagesConfiguration().get(),
+                osPackagesDir
+        );
+        logger.info("Synchronized OS packages into {}: {}", osPackagesDir, packagesResult);
     }
 
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reports the size of each layer, the largest files, files that are overwritten or deleted by later layers and
+ * duplicated content of the image archives built by the project.
+ */
+public abstract class DockerImageAnalyzeTask extends DefaultTask {
+
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract ConfigurableFileCollection getImageArchives();
+
+    @OutputDirectory
+    public abstract DirectoryProperty getReportDirectory();
+
+    @TaskAction
+    public void analyze() throws IOException {
+        final Path reportDirectory = getReportDirectory().get().getAsFile().toPath();
+        int analyzed = 0;
+        for (File archive : getImageArchives()) {
+            // Not all architectures are built locally
+            if (!archive.exists()) {
+                continue;
+            }
+            final ImageAnalyzer.Analysis analysis;
+            try {
+                analysis = ImageAnalyzer.analyze(archive.toPath());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to analyze " + archive, e);
+            }
+            final String report = "Image archive: " + archive + "\n\n" + analysis.format();
+            // Archives of different build tasks can have the same name, the parent directory is named after the task
+            final Path reportFile = reportDirectory.resolve(
+                    archive.getParentFile().getName() + "-" + archive.getName() + ".txt"
+            );
+            Files.writeString(reportFile, report);
+            getLogger().lifecycle(report);
+            getLogger().lifecycle("Report written to {}", reportFile);
+            analyzed++;
+        }
+        if (analyzed == 0) {
+            getLogger().lifecycle("No image archives found to analyze");
+        }
+    }
+}
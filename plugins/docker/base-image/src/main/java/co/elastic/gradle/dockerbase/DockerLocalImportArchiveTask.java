@@ -18,10 +18,12 @@
  */
 package co.elastic.gradle.dockerbase;
 
-import co.elastic.gradle.utils.ExtractCompressedTar;
 import co.elastic.gradle.utils.RegularFileUtils;
 import co.elastic.gradle.utils.docker.ContainerImageProviderTask;
+import co.elastic.gradle.utils.docker.DockerDaemonLimiter;
+import co.elastic.gradle.utils.docker.DockerDaemonUsingTask;
 import co.elastic.gradle.utils.docker.DockerUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.output.NullOutputStream;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.GradleException;
@@ -35,16 +37,32 @@ import org.gradle.process.ExecResult;
 import javax.inject.Inject;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.nio.file.Files;
-import java.util.Objects;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
-public abstract class DockerLocalImportArchiveTask extends DefaultTask implements ContainerImageProviderTask {
+public abstract class DockerLocalImportArchiveTask extends DefaultTask implements ContainerImageProviderTask, DockerDaemonUsingTask {
+
+    private static final int PIPE_BUFFER_SIZE = 1024 * 1024;
+    // Image ids are 71 characters, this keeps a single inspect command line around 7 KiB
+    private static final int INSPECT_BATCH_SIZE = 100;
 
     public DockerLocalImportArchiveTask() {
         getMarker().convention(
                 getProjectLayout().getBuildDirectory().file(getName() + ".marker")
         );
+        // The marker stays around when the image is removed from the daemon, e.g. when the images of the build are
+        // pruned
+        getOutputs().upToDateWhen(task ->
+                new DockerUtils(getExecOperations()).isTagOf(getTag().get(), getImageId().get())
+        );
     }
 
     @Override
@@ -55,6 +73,10 @@ public abstract class DockerLocalImportArchiveTask extends DefaultTask implement
     @PathSensitive(PathSensitivity.RELATIVE)
     abstract public RegularFileProperty getImageArchive();
 
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    abstract public RegularFileProperty getImageLayers();
+
     @Input
     abstract public Property<String> getImageId();
 
@@ -75,32 +97,34 @@ public abstract class DockerLocalImportArchiveTask extends DefaultTask implement
         if (imageExistsInDaemon(dockerUtils, imageId)) {
             getLogger().lifecycle("Docker Daemon already has image with Id {}. Skip import.", imageId);
         } else {
-            final ByteArrayOutputStream out = new ByteArrayOutputStream();
-            try (InputStream archiveInput = ExtractCompressedTar.uncompressedInputStream(RegularFileUtils.toPath(getImageArchive()))) {
-                dockerUtils.exec(spec -> {
-                    spec.setStandardInput(archiveInput);
-                    spec.commandLine("docker", "load");
-                    spec.setStandardOutput(out);
-                });
-                final String dockerLoad = out.toString().trim();
-                if (dockerLoad.startsWith("Loaded image:") && dockerLoad.endsWith(":latest")) {
-                    uuid = dockerLoad.substring(dockerLoad.indexOf(":") + 1);
-                } else {
-                    throw new GradleException("Unexpected docker load output:" + dockerLoad);
+            final Path archive = RegularFileUtils.toPath(getImageArchive());
+            final Set<String> presentLayers = findLayersPresentInDaemon(dockerUtils);
+            if (!presentLayers.isEmpty()) {
+                getLogger().lifecycle("Docker Daemon already has {} layers of the image, importing the rest", presentLayers.size());
+                try {
+                    uuid = load(dockerUtils, archive, presentLayers);
+                } catch (GradleException e) {
+                    getLogger().warn("Importing only missing layers failed, importing the full image", e);
                 }
-            } catch (IOException e) {
-                throw new GradleException("Error importing image in docker daemon", e);
+            }
+            if (uuid == null) {
+                uuid = load(dockerUtils, archive, Set.of());
+            }
+        }
+        try (DockerDaemonLimiter.Permit ignored = acquireDockerDaemon(DockerDaemonLimiter.Operation.TAG)) {
+            trackDockerImage(getTag().get());
+            // The image might exist, but we want to make sure it's still tagged as we want it to
+            dockerUtils.exec(spec ->
+                    spec.commandLine("docker", "tag", imageId, getTag().get())
+            );
+
+            if (uuid != null) {
+                String finalUuid = uuid.trim();
+                dockerUtils.exec(spec ->
+                        spec.commandLine("docker", "image", "rm", finalUuid)
+                );
             }
         }
-        // The image might exist, but we want to make sure it's still tagged as we want it to
-        dockerUtils.exec(spec ->
-                spec.commandLine("docker", "tag", imageId, getTag().get())
-        );
-
-        String finalUuid = Objects.requireNonNull(uuid).trim();
-        dockerUtils.exec(spec ->
-            spec.commandLine("docker", "image", "rm", finalUuid)
-        );
 
         getLogger().lifecycle(
                 "Image tagged as {}",
@@ -112,7 +136,107 @@ public abstract class DockerLocalImportArchiveTask extends DefaultTask implement
         );
     }
 
+    private String load(DockerUtils dockerUtils, Path archive, Set<String> excludedLayers) {
+        try (DockerDaemonLimiter.Permit ignored = acquireDockerDaemon(DockerDaemonLimiter.Operation.LOAD)) {
+            return loadWithPermit(dockerUtils, archive, excludedLayers);
+        }
+    }
+
+    private String loadWithPermit(DockerUtils dockerUtils, Path archive, Set<String> excludedLayers) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final AtomicReference<IOException> writeError = new AtomicReference<>();
+        // Decompress on a separate thread so it overlaps with the daemon reading the archive
+        try (PipedInputStream archiveInput = new PipedInputStream(PIPE_BUFFER_SIZE)) {
+            final PipedOutputStream archiveOutput = new PipedOutputStream(archiveInput);
+            final Thread writer = new Thread(() -> {
+                try (archiveOutput) {
+                    ImageArchiveLayers.writeWithout(archive, excludedLayers, archiveOutput);
+                } catch (IOException e) {
+                    writeError.set(e);
+                }
+            }, "docker-load-" + getName());
+            writer.setDaemon(true);
+            writer.start();
+            final ExecResult result = dockerUtils.exec(spec -> {
+                spec.setStandardInput(archiveInput);
+                spec.commandLine("docker", "load");
+                spec.setStandardOutput(out);
+                spec.setIgnoreExitValue(true);
+            });
+            // Unblock the writer in case docker exited without reading everything
+            archiveInput.close();
+            writer.join();
+            if (result.getExitValue() != 0) {
+                throw new GradleException(
+                        "Failed to load image into the docker daemon: " + out.toString().trim(),
+                        writeError.get()
+                );
+            }
+        } catch (IOException e) {
+            throw new GradleException("Error importing image in docker daemon", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while importing image in docker daemon", e);
+        }
+        final String dockerLoad = out.toString().trim();
+        if (dockerLoad.startsWith("Loaded image:") && dockerLoad.endsWith(":latest")) {
+            final String uuid = dockerLoad.substring(dockerLoad.indexOf(":") + 1);
+            trackDockerImage(uuid.trim());
+            return uuid;
+        } else {
+            throw new GradleException("Unexpected docker load output:" + dockerLoad);
+        }
+    }
+
+    private Set<String> findLayersPresentInDaemon(DockerUtils dockerUtils) {
+        try {
+            final Set<String> chainIds = daemonChainIds(dockerUtils);
+            if (chainIds.isEmpty()) {
+                return Set.of();
+            }
+            // Recorded when the archive was created, so the archive is only decompressed once to load it
+            return ImageArchiveLayers.readFrom(RegularFileUtils.toPath(getImageLayers())).pathsPresentIn(chainIds);
+        } catch (IOException | RuntimeException e) {
+            getLogger().info("Could not determine the layers present in the daemon, importing the full image", e);
+            return Set.of();
+        }
+    }
 
+    private Set<String> daemonChainIds(DockerUtils dockerUtils) throws IOException {
+        final ByteArrayOutputStream imageIds = new ByteArrayOutputStream();
+        dockerUtils.exec(spec -> {
+            spec.commandLine("docker", "image", "ls", "--quiet", "--no-trunc");
+            spec.setStandardOutput(imageIds);
+        });
+        final List<String> ids = imageIds.toString().lines()
+                .map(String::trim)
+                .filter(each -> !each.isEmpty())
+                .distinct()
+                .toList();
+        if (ids.isEmpty()) {
+            return Set.of();
+        }
+        final ByteArrayOutputStream layers = new ByteArrayOutputStream();
+        // Inspect in batches so the command line stays well below ARG_MAX with many images
+        for (int from = 0; from < ids.size(); from += INSPECT_BATCH_SIZE) {
+            final List<String> batch = ids.subList(from, Math.min(from + INSPECT_BATCH_SIZE, ids.size()));
+            dockerUtils.exec(spec -> {
+                spec.commandLine(Stream.concat(
+                        Stream.of("docker", "image", "inspect", "--format", "{{json .RootFS.Layers}}"),
+                        batch.stream()
+                ).toList());
+                spec.setStandardOutput(layers);
+            });
+        }
+        final ObjectMapper mapper = new ObjectMapper();
+        final Set<String> result = new HashSet<>();
+        for (String line : layers.toString().lines().filter(each -> !each.isBlank()).toList()) {
+            final List<String> diffIds = new ArrayList<>();
+            mapper.readTree(line).forEach(each -> diffIds.add(each.asText()));
+            result.addAll(ImageArchiveLayers.chainIds(diffIds));
+        }
+        return result;
+    }
 
     private boolean imageExistsInDaemon(DockerUtils daemonActions, String imageId) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -21,24 +21,28 @@ package co.elastic.gradle.dockerbase;
 
 import co.elastic.gradle.cli.jfrog.JFrogCliUsingTask;
 import co.elastic.gradle.dockerbase.lockfile.BaseLockfile;
+import co.elastic.gradle.dockerbase.lockfile.LockfileCacheService;
 import co.elastic.gradle.dockerbase.lockfile.Packages;
 import co.elastic.gradle.dockerbase.lockfile.UnchangingPackage;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.RegularFileUtils;
 import co.elastic.gradle.utils.RetryUtils;
+import co.elastic.gradle.utils.docker.DockerDaemonLimiter;
+import co.elastic.gradle.utils.docker.DockerDaemonUsingTask;
 import co.elastic.gradle.utils.docker.DockerPluginConventions;
 import co.elastic.gradle.utils.docker.DockerUtils;
+import co.elastic.gradle.utils.docker.RegistryUsingTask;
+import co.elastic.gradle.utils.docker.RetryService;
 import co.elastic.gradle.utils.docker.UnchangingContainerReference;
 import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
 import co.elastic.gradle.utils.docker.instruction.From;
 import co.elastic.gradle.utils.docker.instruction.SetUser;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.GradleException;
 import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileSystemOperations;
 import org.gradle.api.file.ProjectLayout;
 import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.internal.file.copy.DefaultCopySpec;
@@ -53,6 +57,8 @@ import org.gradle.process.ExecOperations;
 import javax.inject.Inject;
 import java.io.*;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
@@ -62,11 +68,10 @@ import java.util.Optional;
 import java.util.*;
 import java.util.stream.Stream;
 
-public abstract class DockerLockfileTask extends DefaultTask implements ImageBuildable, JFrogCliUsingTask {
+public abstract class DockerLockfileTask extends DefaultTask implements ImageBuildable, JFrogCliUsingTask, DockerDaemonUsingTask, RegistryUsingTask {
 
     public static final String ARCHIVE_PACKAGES_NAME = "archive-packages.sh";
     private final DefaultCopySpec rootCopySpec;
-    private String manifestDigest = null;
 
     @Inject
     public DockerLockfileTask() {
@@ -76,7 +81,9 @@ public abstract class DockerLockfileTask extends DefaultTask implements ImageBui
         getWorkingDirectory().convention(
                 getProjectLayout().getBuildDirectory().dir(getName())
         );
+        getBuildStepReportDirectory().convention(getWorkingDirectory());
         getIsolateFromExternalRepos().convention(false);
+        getConsolidateInstalls().convention(true);
         rootCopySpec = getProject().getObjects().newInstance(DefaultCopySpec.class);
         rootCopySpec.addChildSpecListener(DockerPluginConventions.mapCopySpecToTaskInputs(this));
     }
@@ -129,6 +136,10 @@ public abstract class DockerLockfileTask extends DefaultTask implements ImageBui
     @Input
     public abstract Property<Boolean> getIsolateFromExternalRepos();
 
+    @Override
+    @Input
+    public abstract Property<Boolean> getConsolidateInstalls();
+
     @Nested
     public abstract ListProperty<ContainerImageBuildInstruction> getInputInstructions();
 
@@ -136,7 +147,7 @@ public abstract class DockerLockfileTask extends DefaultTask implements ImageBui
     @Nested
     public List<ContainerImageBuildInstruction> getActualInstructions() {
         // Use the last available digest for this image
-        return Stream.concat(
+        final List<ContainerImageBuildInstruction> instructions = Stream.concat(
                         getInputInstructions().get().stream()
                                 .map(instruction -> {
                                     if (instruction instanceof From from) {
@@ -169,6 +180,7 @@ public abstract class DockerLockfileTask extends DefaultTask implements ImageBui
                         )
                 )
                 .toList();
+        return getConsolidateInstalls().get() ? InstallConsolidation.consolidate(instructions) : instructions;
     }
 
     @Input
@@ -180,6 +192,12 @@ public abstract class DockerLockfileTask extends DefaultTask implements ImageBui
     @Internal
     public abstract RegularFileProperty getLockFileLocation();
 
+    @Internal
+    public abstract Property<LockfileCacheService> getLockfileCache();
+
+    @Internal
+    public abstract Property<ManifestDigestResolver> getManifestDigestResolver();
+
     @Inject
     protected abstract ProjectLayout getProjectLayout();
 
@@ -189,14 +207,25 @@ public abstract class DockerLockfileTask extends DefaultTask implements ImageBui
     @Inject
     protected abstract ObjectFactory getObjectFactory();
 
+    @Inject
+    protected abstract FileSystemOperations getFileSystemOperations();
+
     @TaskAction
     public void generateLockfile() throws IOException {
+        try (DockerDaemonLimiter.Permit ignored = acquireDockerDaemon(DockerDaemonLimiter.Operation.BUILD)) {
+            generateLockfileWithDaemon();
+        }
+    }
+
+    private void generateLockfileWithDaemon() throws IOException {
         DockerDaemonActions daemonActions = getObjectFactory().newInstance(DockerDaemonActions.class, this);
         DockerUtils dockerUtils = new DockerUtils(getExecOperations());
 
         final UUID uuid = daemonActions.build();
 
         final Path archiveScript = writeScript(RegularFileUtils.toPath(getWorkingDirectory()), ARCHIVE_PACKAGES_NAME);
+        final BaseLockfile oldLockfile = readExistingLockfile();
+        final Path previousPackagesDir = writePreviousPackages(oldLockfile);
 
         getLogger().lifecycle(
                 "\nRunning the created image to extract package information and upload packages with {} ...",
@@ -220,26 +249,106 @@ public abstract class DockerLockfileTask extends DefaultTask implements ImageBui
                         "docker", "run", "--rm",
                         "-v", archiveScript + ":/mnt/" + ARCHIVE_PACKAGES_NAME,
                         "-v", getJFrogCli().get().getAsFile().toPath() + ":/mnt/jfrog-cli",
+                        "-v", previousPackagesDir + ":/mnt/previous",
                         "--entrypoint", "/bin/bash",
                         "-eJFROG_CLI_ARGS=" + jfrogCLiArgs,
                         uuid,
                         "/mnt/" + ARCHIVE_PACKAGES_NAME
                 );
             });
-            writeLockfile(byteArrayOutputStream);
+            writeLockfile(oldLockfile, byteArrayOutputStream);
             getLogger().lifecycle("Written new lockfile to {}", getLockFileLocation().get());
         }
         dockerUtils.exec(spec -> spec.commandLine("docker", "image", "rm", uuid));
     }
 
 
-    private void writeLockfile(ByteArrayOutputStream csvStream) throws IOException {
-        final BaseLockfile oldLockfile;
+    private BaseLockfile readExistingLockfile() {
         if (Files.exists(RegularFileUtils.toPath(getLockFileLocation()))) {
-            oldLockfile = BaseLockfile.parse(Files.newBufferedReader(RegularFileUtils.toPath(getLockFileLocation())));
+            return getLockfileCache().get().getBaseLockfile(RegularFileUtils.toPath(getLockFileLocation()));
         } else {
-            oldLockfile = new BaseLockfile(Map.of(), null);
+            return new BaseLockfile(Map.of(), null);
         }
+    }
+
+    /**
+     * Writes the packages of the existing lockfile and the repository metadata generated for them, so the archive
+     * script only has to download and upload packages that are new or changed.
+     */
+    private Path writePreviousPackages(BaseLockfile oldLockfile) throws IOException {
+        final Path previousDir = RegularFileUtils.toPath(getWorkingDirectory()).resolve("previous");
+        getFileSystemOperations().delete(spec -> spec.delete(previousDir));
+        Files.createDirectories(previousDir);
+
+        final Packages previousPackages = oldLockfile.getPackages().get(getArchitecture().get());
+        final List<UnchangingPackage> packages = previousPackages == null ? List.of() : previousPackages.getPackages();
+        Files.write(
+                previousDir.resolve("packages.csv"),
+                packages.stream()
+                        .filter(pkg -> !pkg.getName().startsWith("__META__"))
+                        .map(pkg -> String.join(",",
+                                pkg.getName(),
+                                pkg.getVersion(),
+                                Optional.ofNullable(pkg.getRelease()).orElse(""),
+                                pkg.getArchitecture()
+                        ))
+                        .toList()
+        );
+
+        packages.stream()
+                .filter(pkg -> pkg.getName().startsWith("__META__"))
+                .findFirst()
+                .ifPresent(metadata -> fetchPreviousMetadata(metadata, previousDir));
+        return previousDir;
+    }
+
+    private void fetchPreviousMetadata(UnchangingPackage metadata, Path previousDir) {
+        final URL repoUrl = getOsPackageRepository().get();
+        final OSDistribution distribution = getOSDistribution().get();
+        final String fileName = metadata.getArtifactFileName(distribution);
+        try {
+            final URL metadataUrl = new URL(
+                    repoUrl.toString().replace(repoUrl.getUserInfo() + "@", "") + "/" +
+                    distribution.name().toLowerCase(Locale.ROOT) + "/" + fileName
+            );
+            RetryUtils.retry(() -> {
+                        try {
+                            final URLConnection connection = metadataUrl.openConnection();
+                            connection.setConnectTimeout(10000);
+                            connection.setReadTimeout(60000);
+                            if (repoUrl.getUserInfo() != null) {
+                                connection.setRequestProperty(
+                                        "Authorization",
+                                        "Basic " + Base64.getEncoder().encodeToString(
+                                                repoUrl.getUserInfo().getBytes(StandardCharsets.UTF_8)
+                                        )
+                                );
+                            }
+                            try (InputStream in = connection.getInputStream()) {
+                                return Files.copy(in, previousDir.resolve(fileName), StandardCopyOption.REPLACE_EXISTING);
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .maxAttempt(3)
+                    .exponentialBackoffWithJitter(1000, 10000)
+                    .execute();
+        } catch (IOException | UncheckedIOException e) {
+            getLogger().warn(
+                    "Could not fetch {} from the package repository, all packages will be archived again",
+                    fileName,
+                    e
+            );
+            try {
+                Files.deleteIfExists(previousDir.resolve(fileName));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    private void writeLockfile(BaseLockfile oldLockfile, ByteArrayOutputStream csvStream) throws IOException {
         final Map<Architecture, Packages> packages = new HashMap<>(oldLockfile.getPackages());
         Map<Architecture, UnchangingContainerReference> image;
         if (oldLockfile.getImage() != null) {
@@ -252,6 +361,7 @@ public abstract class DockerLockfileTask extends DefaultTask implements ImageBui
         if (csvString.isEmpty()) {
             throw new IllegalStateException("Failed to read installed packages from docker image");
         }
+        final Packages previousPackages = packages.get(getArchitecture().get());
         try (Reader reader = new StringReader(csvString)) {
             CSVParser parser = CSVParser.parse(reader, CSVFormat.DEFAULT);
             packages.put(
@@ -271,6 +381,8 @@ public abstract class DockerLockfileTask extends DefaultTask implements ImageBui
             );
         }
 
+        logPackageChanges(previousPackages, packages.get(getArchitecture().get()));
+
         Optional<UnchangingContainerReference> newImage = getActualInstructions().stream()
                 .filter(each -> each instanceof From)
                 .map(each -> (From) each)
@@ -306,10 +418,40 @@ public abstract class DockerLockfileTask extends DefaultTask implements ImageBui
         }
     }
 
-    private String getManifestDigest(String image) {
-        if (manifestDigest != null) {
-            return manifestDigest;
+    private void logPackageChanges(Packages previous, Packages current) {
+        final Map<String, UnchangingPackage> previousByName = new HashMap<>();
+        if (previous != null) {
+            previous.getPackages().forEach(pkg -> previousByName.put(pkg.getName(), pkg));
         }
+        int added = 0;
+        int changed = 0;
+        for (UnchangingPackage pkg : current.getPackages()) {
+            final UnchangingPackage previousPkg = previousByName.remove(pkg.getName());
+            if (previousPkg == null) {
+                added++;
+            } else if (!previousPkg.equals(pkg)) {
+                changed++;
+            }
+        }
+        getLogger().lifecycle(
+                "Packages for {}: {} added, {} changed, {} removed, {} unchanged",
+                getArchitecture().get(),
+                added,
+                changed,
+                previousByName.size(),
+                current.getPackages().size() - added - changed
+        );
+    }
+
+    private String getManifestDigest(String image) {
+        return getManifestDigestResolver().get().getDigest(
+                image,
+                getArchitecture().get(),
+                this::inspectManifest
+        );
+    }
+
+    private String inspectManifest(String image) {
         DockerUtils daemonActions = new DockerUtils(getExecOperations());
         return RetryUtils.retry(() -> {
                     try (ByteArrayOutputStream stdout = new ByteArrayOutputStream()) {
@@ -317,34 +459,14 @@ public abstract class DockerLockfileTask extends DefaultTask implements ImageBui
                             spec.setStandardOutput(stdout);
                             spec.commandLine("docker", "manifest", "inspect", image);
                         });
-                        try (InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(stdout.toByteArray()))) {
-                            ObjectMapper mapper = new ObjectMapper();
-                            JsonNode root = mapper.readTree(reader);
-                            String digest = null;
-                            Iterator<JsonNode> manifests = root.path("manifests").elements();
-                            while (manifests.hasNext()) {
-                                JsonNode manifest = manifests.next();
-                                if (getArchitecture().get().dockerName().equals(manifest.path("platform").path("architecture").asText())) {
-                                    digest = manifest.path("digest").asText(null);
-                                    break;
-                                }
-                            }
-                            if (digest == null) {
-                                // Happens when the tag does not point to a manifest list
-                                // We could make this work for a single platform if we really wanted to, for now it's an error
-                                throw new GradleException("Can't find manifest digest from docker output. " +
-                                                          "Does the image have a manifest?\n" + stdout
-                                );
-                            }
-                            manifestDigest = digest;
-                            return digest;
-                        }
+                        return stdout.toString(StandardCharsets.UTF_8);
                     } catch (IOException e) {
                         throw new UncheckedIOException("Failed to read the image manifest", e);
                     }
                 })
                 .maxAttempt(3)
-                .exponentialBackoff(1000, 100000)
+                .exponentialBackoffWithJitter(1000, 100000)
+                .guard(retryGuard(RetryService.registryOf(image)))
                 .execute();
     }
 
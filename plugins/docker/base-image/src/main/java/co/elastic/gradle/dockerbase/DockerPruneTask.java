@@ -0,0 +1,55 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.docker.DockerImageRegistry;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * Removes the least recently used images created by the plugins until they fit in the disk budget. Images that were not
+ * created by the plugins are never removed.
+ */
+public abstract class DockerPruneTask extends DefaultTask {
+
+    public DockerPruneTask() {
+        getOutputs().upToDateWhen(task -> false);
+    }
+
+    @Internal
+    public abstract Property<DockerImageRegistry> getDockerImageRegistry();
+
+    @Input
+    public abstract Property<Long> getBudgetMB();
+
+    @TaskAction
+    public void prune() {
+        final DockerImageRegistry.PruneResult result = getDockerImageRegistry().get()
+                .prune(getBudgetMB().get() * 1024 * 1024);
+        getLogger().lifecycle(
+                "Removed {} docker images ({} MB), {} MB of images created by the build remain",
+                result.removed(),
+                result.freedBytes() / (1024 * 1024),
+                result.remainingBytes() / (1024 * 1024)
+        );
+    }
+}
@@ -20,6 +20,8 @@ package co.elastic.gradle.dockerbase;
 
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.RegularFileUtils;
+import co.elastic.gradle.utils.docker.RegistryUsingTask;
+import co.elastic.gradle.utils.docker.RetryService;
 import com.google.cloud.tools.jib.api.JibContainer;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.file.ProjectLayout;
@@ -32,7 +34,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.time.Instant;
 
-abstract public class DockerPushTask extends DefaultTask {
+abstract public class DockerPushTask extends DefaultTask implements RegistryUsingTask {
 
     @Inject
     public DockerPushTask() {
@@ -62,7 +64,7 @@ abstract public class DockerPushTask extends DefaultTask {
     public void pushImage() throws IOException {
         final String tag = getTag().get();
         final Instant createdAt = getCreatedAt().get();
-        final JibContainer container = new JibPushActions().pushImage(
+        final JibContainer container = new JibPushActions(retryGuard(RetryService.registryOf(tag))).pushImage(
                 RegularFileUtils.toPath(getImageArchive()),
                 tag,
                 createdAt
@@ -0,0 +1,395 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.ExtractCompressedTar;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Breaks down where the space in an image archive goes, reading the archive and the layers in it as a stream.
+ * <p>
+ * Files that are overwritten or deleted by a later layer are still stored in the archive, these are reported as
+ * wasted. Files with the same content in different places are reported as duplicates. Only files of at least
+ * {@link #MIN_DUPLICATE_SIZE} are hashed to find duplicates since smaller ones don't add up to much.
+ */
+final class ImageAnalyzer {
+
+    static final long MIN_DUPLICATE_SIZE = 4 * 1024;
+    private static final int REPORT_LIMIT = 20;
+    private static final long MAX_METADATA_SIZE = 1024 * 1024;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String WHITEOUT_PREFIX = ".wh.";
+    private static final String OPAQUE_WHITEOUT = ".wh..wh..opq";
+
+    enum EntryType {FILE, DIRECTORY, WHITEOUT, OPAQUE, OTHER}
+
+    record LayerEntry(String path, EntryType type, long size, String digest) {
+    }
+
+    record FileInLayer(String path, int layer, long size) {
+    }
+
+    record LayerSummary(String name, long archiveSize, long fileBytes, int files) {
+    }
+
+    record Duplicate(String digest, long size, List<FileInLayer> files) {
+        long wastedBytes() {
+            return size * (files.size() - 1);
+        }
+    }
+
+    record Analysis(
+            List<LayerSummary> layers,
+            List<FileInLayer> largestFiles,
+            List<FileInLayer> overwritten,
+            List<FileInLayer> deleted,
+            List<Duplicate> duplicates
+    ) {
+        long wastedBytes() {
+            return Stream.of(overwritten, deleted).flatMap(List::stream).mapToLong(FileInLayer::size).sum();
+        }
+
+        long duplicateBytes() {
+            return duplicates.stream().mapToLong(Duplicate::wastedBytes).sum();
+        }
+
+        String format() {
+            final StringBuilder report = new StringBuilder();
+            report.append("Layers:\n");
+            for (int i = 0; i < layers.size(); i++) {
+                final LayerSummary layer = layers.get(i);
+                report.append(String.format(
+                        "  #%-3d %10s in archive, %10s in %d files  %s%n",
+                        i, humanSize(layer.archiveSize()), humanSize(layer.fileBytes()), layer.files(), layer.name()
+                ));
+            }
+            report.append(String.format(
+                    "%nWasted: %s in %d files overwritten or deleted by a later layer%n",
+                    humanSize(wastedBytes()), overwritten.size() + deleted.size()
+            ));
+            appendFiles(report, "Largest overwritten files", overwritten);
+            appendFiles(report, "Largest deleted files", deleted);
+            appendFiles(report, "Largest files", largestFiles);
+            report.append(String.format(
+                    "%nDuplicated content: %s in %d groups of identical files%n",
+                    humanSize(duplicateBytes()), duplicates.size()
+            ));
+            duplicates.stream().limit(REPORT_LIMIT).forEach(duplicate -> {
+                report.append(String.format(
+                        "  %10s x%d %s%n", humanSize(duplicate.size()), duplicate.files().size(), duplicate.digest()
+                ));
+                duplicate.files().forEach(file -> report.append(String.format(
+                        "      layer #%d %s%n", file.layer(), file.path()
+                )));
+            });
+            return report.toString();
+        }
+
+        private static void appendFiles(StringBuilder report, String title, List<FileInLayer> files) {
+            if (files.isEmpty()) {
+                return;
+            }
+            report.append(String.format("%n%s:%n", title));
+            files.stream().limit(REPORT_LIMIT).forEach(file -> report.append(String.format(
+                    "  %10s layer #%d %s%n", humanSize(file.size()), file.layer(), file.path()
+            )));
+        }
+    }
+
+    /**
+     * Keeps the largest files in the layers of an archive while it is being streamed, so these can be reported even
+     * if the archive was not written completely, e.g. because it got too large.
+     */
+    static final class LargestFiles implements ImageArchiveLayers.EntryListener {
+        private final PriorityQueue<FileInLayer> largest = new PriorityQueue<>(
+                Comparator.comparingLong(FileInLayer::size)
+        );
+        private int layers = 0;
+
+        @Override
+        public synchronized void entry(TarArchiveEntry entry, InputStream content) throws IOException {
+            final InputStream layer = layerStream(new BufferedInputStream(content, 64 * 1024));
+            if (layer == null) {
+                return;
+            }
+            final int index = layers++;
+            // Not closed, the content belongs to the archive that is being streamed
+            final TarArchiveInputStream tar = new TarArchiveInputStream(layer);
+            TarArchiveEntry file;
+            while ((file = tar.getNextTarEntry()) != null) {
+                if (file.isFile() && !file.isLink()) {
+                    largest.add(new FileInLayer(normalize(file.getName()), index, file.getSize()));
+                    if (largest.size() > REPORT_LIMIT) {
+                        largest.poll();
+                    }
+                }
+            }
+        }
+
+        synchronized String format() {
+            if (largest.isEmpty()) {
+                return "";
+            }
+            final StringBuilder report = new StringBuilder(String.format("%nLargest files in %d layers:%n", layers));
+            largest.stream()
+                    .sorted(Comparator.comparingLong(FileInLayer::size).reversed().thenComparing(FileInLayer::path))
+                    .forEach(file -> report.append(String.format("  %10s %s%n", humanSize(file.size()), file.path())));
+            return report.toString();
+        }
+    }
+
+    private ImageAnalyzer() {
+    }
+
+    static Analysis analyze(Path archive) throws IOException {
+        final Map<String, List<LayerEntry>> layerContents = new HashMap<>();
+        final Map<String, Long> layerArchiveSizes = new HashMap<>();
+        final Map<String, byte[]> metadata = new HashMap<>();
+        final MessageDigest digest = newSha256();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(ExtractCompressedTar.pipelinedInputStream(archive))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                if (!entry.isFile()) {
+                    continue;
+                }
+                final BufferedInputStream content = new BufferedInputStream(CloseShieldInputStream.wrap(tar), 64 * 1024);
+                final InputStream layer = layerStream(content);
+                if (layer != null) {
+                    layerContents.put(entry.getName(), readLayer(layer, digest));
+                    layerArchiveSizes.put(entry.getName(), entry.getSize());
+                } else if (entry.getSize() <= MAX_METADATA_SIZE) {
+                    metadata.put(entry.getName(), content.readAllBytes());
+                }
+            }
+        }
+
+        final byte[] manifestBytes = metadata.get("manifest.json");
+        if (manifestBytes == null) {
+            throw new IOException("The image archive " + archive + " does not have a manifest.json");
+        }
+        final List<String> layerPaths = new ArrayList<>();
+        MAPPER.readTree(manifestBytes).get(0).get("Layers").forEach(each -> layerPaths.add(each.asText()));
+
+        final List<List<LayerEntry>> layers = new ArrayList<>();
+        final List<LayerSummary> summaries = new ArrayList<>();
+        for (String layerPath : layerPaths) {
+            final List<LayerEntry> entries = layerContents.get(layerPath);
+            if (entries == null) {
+                throw new IOException("The image archive " + archive + " does not have a layer at " + layerPath);
+            }
+            layers.add(entries);
+            summaries.add(new LayerSummary(
+                    layerPath,
+                    layerArchiveSizes.get(layerPath),
+                    entries.stream().filter(each -> each.type() == EntryType.FILE).mapToLong(LayerEntry::size).sum(),
+                    (int) entries.stream().filter(each -> each.type() == EntryType.FILE).count()
+            ));
+        }
+        return analyze(summaries, layers);
+    }
+
+    static Analysis analyze(List<LayerSummary> summaries, List<List<LayerEntry>> layers) {
+        final List<FileInLayer> visible = new ArrayList<>();
+        final List<FileInLayer> overwritten = new ArrayList<>();
+        final List<FileInLayer> deleted = new ArrayList<>();
+        final Map<String, List<FileInLayer>> byDigest = new HashMap<>();
+        final Map<String, Long> digestSizes = new HashMap<>();
+
+        // Walk the layers top down keeping track of what the layers above each one change
+        final Set<String> upperPaths = new HashSet<>();
+        final Set<String> removed = new HashSet<>();
+        final Set<String> opaque = new HashSet<>();
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            final Set<String> layerPaths = new HashSet<>();
+            final Set<String> layerRemoved = new HashSet<>();
+            final Set<String> layerOpaque = new HashSet<>();
+            for (LayerEntry entry : layers.get(i)) {
+                switch (entry.type()) {
+                    case WHITEOUT -> layerRemoved.add(entry.path());
+                    case OPAQUE -> layerOpaque.add(entry.path());
+                    default -> {
+                        layerPaths.add(entry.path());
+                        if (entry.type() != EntryType.DIRECTORY) {
+                            layerRemoved.add(entry.path());
+                        }
+                    }
+                }
+                if (entry.type() != EntryType.FILE || entry.size() == 0) {
+                    continue;
+                }
+                final FileInLayer file = new FileInLayer(entry.path(), i, entry.size());
+                if (upperPaths.contains(entry.path())) {
+                    overwritten.add(file);
+                } else if (isRemoved(entry.path(), removed, opaque)) {
+                    deleted.add(file);
+                } else {
+                    visible.add(file);
+                    if (entry.digest() != null) {
+                        byDigest.computeIfAbsent(entry.digest(), key -> new ArrayList<>()).add(file);
+                        digestSizes.put(entry.digest(), entry.size());
+                    }
+                }
+            }
+            upperPaths.addAll(layerPaths);
+            removed.addAll(layerRemoved);
+            opaque.addAll(layerOpaque);
+        }
+
+        final Comparator<FileInLayer> largestFirst = Comparator.comparingLong(FileInLayer::size).reversed()
+                .thenComparing(FileInLayer::path);
+        overwritten.sort(largestFirst);
+        deleted.sort(largestFirst);
+        return new Analysis(
+                summaries,
+                visible.stream().sorted(largestFirst).limit(REPORT_LIMIT).toList(),
+                overwritten,
+                deleted,
+                byDigest.entrySet().stream()
+                        .filter(entry -> entry.getValue().size() > 1)
+                        .map(entry -> new Duplicate(
+                                entry.getKey(),
+                                digestSizes.get(entry.getKey()),
+                                entry.getValue().stream()
+                                        .sorted(Comparator.comparingInt(FileInLayer::layer).thenComparing(FileInLayer::path))
+                                        .toList()
+                        ))
+                        .sorted(Comparator.comparingLong(Duplicate::wastedBytes).reversed()
+                                .thenComparing(Duplicate::digest))
+                        .toList()
+        );
+    }
+
+    /**
+     * Returns a stream of the uncompressed layer if the entry is a layer, or null if it's not. In that case buffered is
+     * rewound to the start of the entry, unless it's compressed.
+     */
+    private static InputStream layerStream(BufferedInputStream buffered) throws IOException {
+        final InputStream decompressed = ExtractCompressedTar.decompress(buffered);
+        final InputStream uncompressed;
+        if (decompressed != buffered) {
+            uncompressed = new BufferedInputStream(decompressed, 64 * 1024);
+        } else {
+            uncompressed = buffered;
+        }
+        // Layers are tar archives, which have a magic at a fixed offset of the first header
+        uncompressed.mark(512);
+        final byte[] firstHeader = uncompressed.readNBytes(512);
+        uncompressed.reset();
+        if (firstHeader.length == 512 &&
+            new String(firstHeader, 257, 5, StandardCharsets.US_ASCII).equals("ustar")) {
+            return uncompressed;
+        }
+        return null;
+    }
+
+    private static List<LayerEntry> readLayer(InputStream content, MessageDigest digest) throws IOException {
+        final List<LayerEntry> result = new ArrayList<>();
+        final byte[] buffer = new byte[64 * 1024];
+        try (TarArchiveInputStream layer = new TarArchiveInputStream(content)) {
+            TarArchiveEntry entry;
+            while ((entry = layer.getNextTarEntry()) != null) {
+                final String path = normalize(entry.getName());
+                final String fileName = path.substring(path.lastIndexOf('/') + 1);
+                final String parent = path.contains("/") ? path.substring(0, path.lastIndexOf('/')) : "";
+                if (fileName.equals(OPAQUE_WHITEOUT)) {
+                    result.add(new LayerEntry(parent, EntryType.OPAQUE, 0, null));
+                } else if (fileName.startsWith(WHITEOUT_PREFIX)) {
+                    final String target = fileName.substring(WHITEOUT_PREFIX.length());
+                    result.add(new LayerEntry(parent.isEmpty() ? target : parent + "/" + target, EntryType.WHITEOUT, 0, null));
+                } else if (entry.isDirectory()) {
+                    result.add(new LayerEntry(path, EntryType.DIRECTORY, 0, null));
+                } else if (entry.isFile() && !entry.isLink()) {
+                    String fileDigest = null;
+                    if (entry.getSize() >= MIN_DUPLICATE_SIZE) {
+                        digest.reset();
+                        int read;
+                        while ((read = layer.read(buffer)) != -1) {
+                            digest.update(buffer, 0, read);
+                        }
+                        fileDigest = "sha256:" + HexFormat.of().formatHex(digest.digest());
+                    }
+                    result.add(new LayerEntry(path, EntryType.FILE, entry.getSize(), fileDigest));
+                } else {
+                    result.add(new LayerEntry(path, EntryType.OTHER, 0, null));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isRemoved(String path, Set<String> removed, Set<String> opaque) {
+        if (removed.contains(path)) {
+            return true;
+        }
+        for (int separator = path.lastIndexOf('/'); separator > 0; separator = path.lastIndexOf('/', separator - 1)) {
+            final String ancestor = path.substring(0, separator);
+            if (removed.contains(ancestor) || opaque.contains(ancestor)) {
+                return true;
+            }
+        }
+        return opaque.contains("");
+    }
+
+    private static String normalize(String name) {
+        String result = name;
+        while (result.startsWith("./") || result.startsWith("/")) {
+            result = result.substring(result.indexOf('/') + 1);
+        }
+        while (result.endsWith("/")) {
+            result = result.substring(0, result.length() - 1);
+        }
+        return result;
+    }
+
+    static String humanSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        final String[] units = {"KB", "MB", "GB", "TB"};
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format(Locale.ROOT, "%.1f %s", value, units[unit]);
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.ExtractCompressedTar;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * The layers of an image archive as created by `docker save`, in the order they are applied.
+ *
+ * @param paths   path of each layer within the archive
+ * @param diffIds digest of each uncompressed layer, from the image config
+ */
+record ImageArchiveLayers(List<String> paths, List<String> diffIds) {
+
+    /**
+     * Gets to read the entries of an archive that is being copied, other than the metadata.
+     */
+    interface EntryListener {
+        void entry(TarArchiveEntry entry, InputStream content) throws IOException;
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    // The manifest is written at the end of the archive, so we keep the small entries around until we find it
+    private static final long MAX_METADATA_SIZE = 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    static ImageArchiveLayers read(Path archive) throws IOException {
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(ExtractCompressedTar.pipelinedInputStream(archive))) {
+            return read(tar, archive.toString(), null);
+        }
+    }
+
+    /**
+     * Copies an uncompressed archive as it is streamed, e.g. from `docker save`, and reads its layers on the way, so
+     * they are known without decompressing the archive again.
+     */
+    static ImageArchiveLayers copy(
+            InputStream archive,
+            OutputStream out,
+            String source,
+            EntryListener listener
+    ) throws IOException {
+        final InputStream tee = new TeeInputStream(archive, out) {
+            private final byte[] skipBuffer = new byte[COPY_BUFFER_SIZE];
+
+            @Override
+            public long skip(long n) throws IOException {
+                // Skipped entries and padding are part of the archive too, so they need to be read to be copied
+                long skipped = 0;
+                while (skipped < n) {
+                    final int read = read(skipBuffer, 0, (int) Math.min(skipBuffer.length, n - skipped));
+                    if (read < 0) {
+                        break;
+                    }
+                    skipped += read;
+                }
+                return skipped;
+            }
+        };
+        final ImageArchiveLayers layers = read(new TarArchiveInputStream(tee), source, listener);
+        // Reading stops at the end of archive marker, copy the rest of the last record too
+        tee.transferTo(OutputStream.nullOutputStream());
+        return layers;
+    }
+
+    private static ImageArchiveLayers read(
+            TarArchiveInputStream tar,
+            String source,
+            EntryListener listener
+    ) throws IOException {
+        final Map<String, byte[]> metadata = new HashMap<>();
+        TarArchiveEntry entry;
+        while ((entry = tar.getNextTarEntry()) != null) {
+            if (entry.isFile() && entry.getSize() <= MAX_METADATA_SIZE) {
+                metadata.put(entry.getName(), tar.readAllBytes());
+            } else if (entry.isFile() && listener != null) {
+                listener.entry(entry, CloseShieldInputStream.wrap(tar));
+            }
+        }
+        final byte[] manifestBytes = metadata.get("manifest.json");
+        if (manifestBytes == null) {
+            throw new IOException("The image archive " + source + " does not have a manifest.json");
+        }
+        final JsonNode manifest = MAPPER.readTree(manifestBytes);
+        if (manifest.size() != 1) {
+            throw new IOException("Expected a single image in " + source + " but found " + manifest.size());
+        }
+        final String configPath = manifest.get(0).get("Config").asText();
+        final byte[] configBytes = metadata.get(configPath);
+        if (configBytes == null) {
+            throw new IOException("The image archive " + source + " does not have a config at " + configPath);
+        }
+        final List<String> paths = new ArrayList<>();
+        manifest.get(0).get("Layers").forEach(each -> paths.add(each.asText()));
+        final List<String> diffIds = new ArrayList<>();
+        MAPPER.readTree(configBytes).get("rootfs").get("diff_ids").forEach(each -> diffIds.add(each.asText()));
+        if (paths.size() != diffIds.size()) {
+            throw new IOException("The manifest and config of " + source + " don't agree on the number of layers");
+        }
+        return new ImageArchiveLayers(List.copyOf(paths), List.copyOf(diffIds));
+    }
+
+    /**
+     * Reads the layers written next to an image archive by {@link #writeTo(Path)}.
+     */
+    static ImageArchiveLayers readFrom(Path layersFile) throws IOException {
+        final JsonNode layers = MAPPER.readTree(layersFile.toFile());
+        final List<String> paths = new ArrayList<>();
+        layers.get("paths").forEach(each -> paths.add(each.asText()));
+        final List<String> diffIds = new ArrayList<>();
+        layers.get("diffIds").forEach(each -> diffIds.add(each.asText()));
+        if (paths.size() != diffIds.size()) {
+            throw new IOException("The layers in " + layersFile + " don't have a diff id for each path");
+        }
+        return new ImageArchiveLayers(List.copyOf(paths), List.copyOf(diffIds));
+    }
+
+    void writeTo(Path layersFile) throws IOException {
+        final ObjectNode layers = MAPPER.createObjectNode();
+        paths.forEach(layers.putArray("paths")::add);
+        diffIds.forEach(layers.putArray("diffIds")::add);
+        MAPPER.writeValue(layersFile.toFile(), layers);
+    }
+
+    /**
+     * Paths of the layers that the daemon already has. Layers are identified by their chain id since a layer with the
+     * same content on top of different parents is a different layer.
+     */
+    Set<String> pathsPresentIn(Set<String> existingChainIds) {
+        final Set<String> result = new HashSet<>();
+        final List<String> chainIds = chainIds(diffIds);
+        for (int i = 0; i < paths.size(); i++) {
+            if (existingChainIds.contains(chainIds.get(i))) {
+                result.add(paths.get(i));
+            }
+        }
+        // A blob can be referenced more than once, it can only be left out if every reference is present
+        for (int i = 0; i < paths.size(); i++) {
+            if (!existingChainIds.contains(chainIds.get(i))) {
+                result.remove(paths.get(i));
+            }
+        }
+        return result;
+    }
+
+    static List<String> chainIds(List<String> diffIds) {
+        final List<String> result = new ArrayList<>(diffIds.size());
+        String previous = null;
+        for (String diffId : diffIds) {
+            previous = previous == null ? diffId : "sha256:" + sha256(previous + " " + diffId);
+            result.add(previous);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the uncompressed archive to out, leaving out the given entries.
+     */
+    static void writeWithout(Path archive, Set<String> excluded, OutputStream out) throws IOException {
+        try (
+                InputStream in = ExtractCompressedTar.pipelinedInputStream(archive);
+                TarArchiveInputStream tarIn = new TarArchiveInputStream(in);
+                TarArchiveOutputStream tarOut = new TarArchiveOutputStream(out)
+        ) {
+            tarOut.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tarOut.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+            TarArchiveEntry entry;
+            while ((entry = tarIn.getNextTarEntry()) != null) {
+                if (excluded.contains(entry.getName())) {
+                    continue;
+                }
+                tarOut.putArchiveEntry(entry);
+                if (entry.isFile()) {
+                    tarIn.transferTo(tarOut);
+                }
+                tarOut.closeArchiveEntry();
+            }
+            tarOut.finish();
+        }
+    }
+
+    private static String sha256(String value) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
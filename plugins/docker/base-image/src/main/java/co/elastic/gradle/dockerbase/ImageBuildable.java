@@ -19,6 +19,7 @@
 package co.elastic.gradle.dockerbase;
 
 import co.elastic.gradle.utils.Architecture;
+import co.elastic.gradle.utils.docker.DockerDaemonUsingTask;
 import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
 import org.gradle.api.artifacts.Configuration;
 import org.gradle.api.file.DirectoryProperty;
@@ -31,7 +32,7 @@ import org.gradle.api.tasks.*;
 
 import java.util.List;
 
-public interface ImageBuildable {
+public interface ImageBuildable extends DockerDaemonUsingTask {
     RegularFileProperty getImageIdFile();
 
     Property<OSDistribution> getOSDistribution();
@@ -40,6 +41,12 @@ public interface ImageBuildable {
 
     DirectoryProperty getWorkingDirectory();
 
+    @Internal
+    DirectoryProperty getBuildStepReportDirectory();
+
+    @Internal
+    Property<BuildStepReportService> getBuildStepReports();
+
     ListProperty<OsPackageRepository> getMirrorRepositories();
 
     @Internal
@@ -59,6 +66,8 @@ public interface ImageBuildable {
 
     Property<Boolean> getIsolateFromExternalRepos();
 
+    Property<Boolean> getConsolidateInstalls();
+
     @Input
     Property<Architecture> getArchitecture();
 }
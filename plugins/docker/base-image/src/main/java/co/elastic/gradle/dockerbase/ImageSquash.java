@@ -0,0 +1,410 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Flattens the layers above the base image of an archive created by `docker save` into a single layer.
+ * <p>
+ * Files that are changed or removed by a later layer are only kept in their final state, so e.g. package lists that
+ * are cleaned up at the end of an install don't take up space in the archive. The layers of the base image are kept
+ * as they are so they are still shared with other images.
+ */
+final class ImageSquash {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String WHITEOUT_PREFIX = ".wh.";
+    private static final String OPAQUE_WHITEOUT = ".wh..wh..opq";
+    private static final long MAX_METADATA_SIZE = 1024 * 1024;
+
+    private ImageSquash() {
+    }
+
+    /**
+     * Opens the uncompressed content of a layer.
+     */
+    interface LayerSource {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * @param imageId the id of the squashed image
+     * @param layers  the layers of the squashed archive
+     */
+    record Squashed(String imageId, ImageArchiveLayers layers) {
+    }
+
+    /**
+     * Writes the squashed, uncompressed archive to out.
+     *
+     * @param archive     the uncompressed archive as created by `docker save`
+     * @param baseDiffIds the layers of the base image, these must be at the bottom of the image
+     * @param scratchDir  used for temporary files
+     */
+    static Squashed squash(Path archive, List<String> baseDiffIds, Path scratchDir, OutputStream out) throws IOException {
+        final ImageArchiveLayers layers = ImageArchiveLayers.read(archive);
+        if (!layers.diffIds().subList(0, Math.min(baseDiffIds.size(), layers.diffIds().size())).equals(baseDiffIds)) {
+            throw new IOException("The image in " + archive + " is not based on the expected base image layers");
+        }
+        final List<String> basePaths = layers.paths().subList(0, baseDiffIds.size());
+        final List<String> upperPaths = layers.paths().subList(baseDiffIds.size(), layers.paths().size());
+
+        Files.createDirectories(scratchDir);
+        final Path squashedLayer = scratchDir.resolve("squashed.tar");
+        // Layers are read in place from the archive rather than copied out of it, so the only extra disk space needed
+        // is for the squashed layer
+        try (TarFile image = new TarFile(archive)) {
+            final Map<String, TarArchiveEntry> files = new HashMap<>();
+            for (TarArchiveEntry entry : image.getEntries()) {
+                if (entry.isFile()) {
+                    files.putIfAbsent(entry.getName(), entry);
+                }
+            }
+            final List<LayerSource> upperLayers = new ArrayList<>();
+            for (String path : upperPaths) {
+                upperLayers.add(layerSource(image, files, path));
+            }
+            final List<LayerSource> baseLayers = new ArrayList<>();
+            for (String path : basePaths) {
+                baseLayers.add(layerSource(image, files, path));
+            }
+
+            final String squashedDiffId = writeSquashedLayer(baseLayers, upperLayers, squashedLayer);
+
+            final JsonNode manifest = MAPPER.readTree(readMetadata(image, files, "manifest.json")).get(0);
+            final String configPath = manifest.get("Config").asText();
+            final byte[] config = squashedConfig(
+                    (ObjectNode) MAPPER.readTree(readMetadata(image, files, configPath)),
+                    baseDiffIds,
+                    squashedDiffId,
+                    upperLayers.size()
+            );
+            final String configDigest = sha256(config);
+            final String squashedLayerPath = squashedDiffId.substring("sha256:".length()) + "/layer.tar";
+
+            final ObjectNode newManifest = MAPPER.createObjectNode();
+            newManifest.put("Config", configDigest + ".json");
+            newManifest.set("RepoTags", manifest.get("RepoTags"));
+            final ArrayNode newLayers = newManifest.putArray("Layers");
+            basePaths.forEach(newLayers::add);
+            newLayers.add(squashedLayerPath);
+
+            try (TarArchiveOutputStream tarOut = new TarArchiveOutputStream(out)) {
+                tarOut.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+                tarOut.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+                for (String path : new LinkedHashSet<>(basePaths)) {
+                    final TarArchiveEntry entry = files.get(path);
+                    tarOut.putArchiveEntry(entry);
+                    try (InputStream in = image.getInputStream(entry)) {
+                        in.transferTo(tarOut);
+                    }
+                    tarOut.closeArchiveEntry();
+                }
+                writeEntry(tarOut, squashedLayerPath, squashedLayer);
+                writeEntry(tarOut, configDigest + ".json", config);
+                writeEntry(tarOut, "manifest.json", MAPPER.writeValueAsBytes(MAPPER.createArrayNode().add(newManifest)));
+                tarOut.finish();
+            }
+            final List<String> squashedPaths = new ArrayList<>(basePaths);
+            squashedPaths.add(squashedLayerPath);
+            final List<String> squashedDiffIds = new ArrayList<>(baseDiffIds);
+            squashedDiffIds.add(squashedDiffId);
+            return new Squashed(
+                    "sha256:" + configDigest,
+                    new ImageArchiveLayers(List.copyOf(squashedPaths), List.copyOf(squashedDiffIds))
+            );
+        } finally {
+            Files.deleteIfExists(squashedLayer);
+        }
+    }
+
+    private static LayerSource layerSource(TarFile image, Map<String, TarArchiveEntry> files, String path) throws IOException {
+        final TarArchiveEntry entry = files.get(path);
+        if (entry == null) {
+            throw new IOException("The image archive does not have a layer at " + path);
+        }
+        return () -> new BufferedInputStream(image.getInputStream(entry));
+    }
+
+    private static byte[] readMetadata(TarFile image, Map<String, TarArchiveEntry> files, String path) throws IOException {
+        final TarArchiveEntry entry = files.get(path);
+        if (entry == null || entry.getSize() > MAX_METADATA_SIZE) {
+            throw new IOException("The image archive does not have " + path);
+        }
+        try (InputStream in = image.getInputStream(entry)) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Merges the upper layers, applying whiteouts the same way the daemon would when stacking them.
+     *
+     * @param baseLayers  the layers below, only read for the targets of hard links
+     * @param upperLayers the layers to merge, bottom first
+     * @return the diff id of the merged layer
+     */
+    static String writeSquashedLayer(List<LayerSource> baseLayers, List<LayerSource> upperLayers, Path target) throws IOException {
+        // Find out which layer has the final version of each entry, starting from the top
+        final Map<String, Integer> owner = new HashMap<>();
+        final Set<String> removed = new HashSet<>();
+        final Set<String> opaque = new HashSet<>();
+        for (int i = upperLayers.size() - 1; i >= 0; i--) {
+            // Whiteouts only affect the layers below the one they are in
+            final Set<String> layerRemoved = new HashSet<>();
+            final Set<String> layerOpaque = new HashSet<>();
+            try (TarArchiveInputStream tar = new TarArchiveInputStream(upperLayers.get(i).open())) {
+                TarArchiveEntry entry;
+                while ((entry = tar.getNextTarEntry()) != null) {
+                    final String name = normalize(entry.getName());
+                    if (isHidden(name, removed, opaque)) {
+                        continue;
+                    }
+                    final String fileName = fileName(name);
+                    if (fileName.equals(OPAQUE_WHITEOUT)) {
+                        layerOpaque.add(parent(name));
+                        owner.putIfAbsent(name, i);
+                    } else if (fileName.startsWith(WHITEOUT_PREFIX)) {
+                        final String whiteoutTarget = parent(name).isEmpty() ?
+                                fileName.substring(WHITEOUT_PREFIX.length()) :
+                                parent(name) + "/" + fileName.substring(WHITEOUT_PREFIX.length());
+                        // Only needed if the file is not re-created above, it could still remove it from the base
+                        if (!owner.containsKey(whiteoutTarget)) {
+                            owner.putIfAbsent(name, i);
+                        }
+                        layerRemoved.add(whiteoutTarget);
+                    } else {
+                        owner.putIfAbsent(name, i);
+                        if (!entry.isDirectory()) {
+                            // Replacing a directory with a file hides everything that was in it
+                            layerRemoved.add(name);
+                        }
+                    }
+                }
+            }
+            removed.addAll(layerRemoved);
+            opaque.addAll(layerOpaque);
+        }
+
+        // Write the entries bottom up so hard links come after their targets just like in the original layers
+        final MessageDigest digest = newSha256();
+        try (TarArchiveOutputStream tarOut = new TarArchiveOutputStream(
+                new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(target)), digest)
+        )) {
+            tarOut.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tarOut.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+            for (int i = 0; i < upperLayers.size(); i++) {
+                try (TarArchiveInputStream tar = new TarArchiveInputStream(upperLayers.get(i).open())) {
+                    TarArchiveEntry entry;
+                    while ((entry = tar.getNextTarEntry()) != null) {
+                        final String name = normalize(entry.getName());
+                        if (!Integer.valueOf(i).equals(owner.get(name))) {
+                            continue;
+                        }
+                        final Integer targetOwner = entry.isLink() ? owner.get(normalize(entry.getLinkName())) : null;
+                        if (entry.isLink() && (targetOwner == null || targetOwner > i)) {
+                            // The target is in the base image or changed later on, so the link can't point to it in
+                            // the squashed layer and gets a copy of the target as it was when the link was created
+                            final List<LayerSource> below = new ArrayList<>(upperLayers.subList(0, i + 1));
+                            Collections.reverse(below);
+                            final List<LayerSource> baseBelow = new ArrayList<>(baseLayers);
+                            Collections.reverse(baseBelow);
+                            below.addAll(baseBelow);
+                            writeLinkTargetCopy(below, entry, tarOut);
+                            continue;
+                        }
+                        tarOut.putArchiveEntry(entry);
+                        if (entry.isFile()) {
+                            tar.transferTo(tarOut);
+                        }
+                        tarOut.closeArchiveEntry();
+                    }
+                }
+            }
+            tarOut.finish();
+        }
+        return "sha256:" + HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Writes the hard link as a regular file with the content of its target.
+     *
+     * @param below the layers the target could be in, top first
+     */
+    private static void writeLinkTargetCopy(List<LayerSource> below, TarArchiveEntry link, TarArchiveOutputStream tarOut) throws IOException {
+        String targetName = normalize(link.getLinkName());
+        final Set<String> followed = new HashSet<>();
+        int layer = 0;
+        while (layer < below.size()) {
+            final String next = copyLinkTarget(below.get(layer), targetName, link, tarOut);
+            if (next == null) {
+                return;
+            }
+            if (next.equals(targetName) || !followed.add(next)) {
+                layer++;
+            } else {
+                // The target is itself a link, look for the file it points to starting from the same layer
+                targetName = next;
+            }
+        }
+        throw new IOException("Can't squash layers: the target of hard link " + link.getName() + " is not in the image");
+    }
+
+    /**
+     * @return null if the target was copied, otherwise the name of the target to look for next
+     */
+    private static String copyLinkTarget(LayerSource layer, String targetName, TarArchiveEntry link, TarArchiveOutputStream tarOut) throws IOException {
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(layer.open())) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                if (!normalize(entry.getName()).equals(targetName)) {
+                    continue;
+                }
+                if (entry.isLink()) {
+                    return normalize(entry.getLinkName());
+                }
+                if (!entry.isFile()) {
+                    return targetName;
+                }
+                final TarArchiveEntry copy = new TarArchiveEntry(link.getName());
+                copy.setMode(entry.getMode());
+                copy.setModTime(link.getModTime());
+                copy.setUserId(entry.getLongUserId());
+                copy.setGroupId(entry.getLongGroupId());
+                copy.setUserName(entry.getUserName());
+                copy.setGroupName(entry.getGroupName());
+                copy.setSize(entry.getSize());
+                tarOut.putArchiveEntry(copy);
+                tar.transferTo(tarOut);
+                tarOut.closeArchiveEntry();
+                return null;
+            }
+        }
+        return targetName;
+    }
+
+    private static byte[] squashedConfig(ObjectNode config, List<String> baseDiffIds, String squashedDiffId, int squashedLayers) throws IOException {
+        final ArrayNode diffIds = ((ObjectNode) config.get("rootfs")).putArray("diff_ids");
+        baseDiffIds.forEach(diffIds::add);
+        diffIds.add(squashedDiffId);
+
+        // The history has an entry for every layer, so the entries of the squashed layers become empty ones
+        final ArrayNode history = config.withArray("history");
+        int layerCount = 0;
+        for (JsonNode each : history) {
+            if (!each.path("empty_layer").asBoolean(false)) {
+                layerCount++;
+                if (layerCount > baseDiffIds.size()) {
+                    ((ObjectNode) each).put("empty_layer", true);
+                }
+            }
+        }
+        final ObjectNode squashEntry = history.addObject();
+        if (config.hasNonNull("created")) {
+            squashEntry.set("created", config.get("created"));
+        }
+        squashEntry.put("created_by", "squash");
+        squashEntry.put("comment", "Squashed " + squashedLayers + " layers");
+        return MAPPER.writeValueAsBytes(config);
+    }
+
+    private static boolean isHidden(String name, Set<String> removed, Set<String> opaque) {
+        if (removed.contains(name)) {
+            return true;
+        }
+        for (String ancestor = parent(name); !ancestor.isEmpty(); ancestor = parent(ancestor)) {
+            if (removed.contains(ancestor) || opaque.contains(ancestor)) {
+                return true;
+            }
+        }
+        // An opaque root hides everything below
+        return opaque.contains("");
+    }
+
+    private static String normalize(String name) {
+        String result = name;
+        while (result.startsWith("./") || result.startsWith("/")) {
+            result = result.substring(result.indexOf('/') + 1);
+        }
+        while (result.endsWith("/")) {
+            result = result.substring(0, result.length() - 1);
+        }
+        return result;
+    }
+
+    private static String parent(String name) {
+        final int separator = name.lastIndexOf('/');
+        return separator == -1 ? "" : name.substring(0, separator);
+    }
+
+    private static String fileName(String name) {
+        return name.substring(name.lastIndexOf('/') + 1);
+    }
+
+    private static void writeEntry(TarArchiveOutputStream tarOut, String name, Path content) throws IOException {
+        final TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(Files.size(content));
+        entry.setModTime(0);
+        tarOut.putArchiveEntry(entry);
+        try (InputStream in = Files.newInputStream(content)) {
+            in.transferTo(tarOut);
+        }
+        tarOut.closeArchiveEntry();
+    }
+
+    private static void writeEntry(TarArchiveOutputStream tarOut, String name, byte[] content) throws IOException {
+        final TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(content.length);
+        entry.setModTime(0);
+        tarOut.putArchiveEntry(entry);
+        tarOut.write(content);
+        tarOut.closeArchiveEntry();
+    }
+
+    private static String sha256(byte[] content) {
+        return HexFormat.of().formatHex(newSha256().digest(content));
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
+import co.elastic.gradle.utils.docker.instruction.HealthCheck;
+import co.elastic.gradle.utils.docker.instruction.Install;
+import co.elastic.gradle.utils.docker.instruction.SetUser;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Merges install instructions so packages are installed in as few package manager transactions as possible.
+ * <p>
+ * An install is only merged into a previous one if the instructions in between can't affect or be affected by package
+ * installation, e.g. `install("a"); setUser("app"); install("b")` becomes a single transaction, but an install
+ * following a run or copy instruction is kept separate.
+ * <p>
+ * The implicit install that pins the packages of the base image to the lockfile runs after all other instructions. It
+ * is merged into the last install if only instructions that don't interact with packages follow it, so it doesn't add
+ * a transaction of its own at the end of the image.
+ */
+final class InstallConsolidation {
+
+    private InstallConsolidation() {
+    }
+
+    static List<ContainerImageBuildInstruction> consolidate(
+            List<ContainerImageBuildInstruction> instructions,
+            Install implicitInstall
+    ) {
+        final List<ContainerImageBuildInstruction> withImplicit = new ArrayList<>(instructions);
+        final int trailingInstall = indexOfTrailingInstall(instructions);
+        if (trailingInstall >= 0) {
+            final Set<String> packages = new LinkedHashSet<>(((Install) instructions.get(trailingInstall)).getPackages());
+            packages.addAll(implicitInstall.getPackages());
+            withImplicit.set(trailingInstall, new Install(List.copyOf(packages)));
+        } else {
+            withImplicit.add(implicitInstall);
+        }
+        return consolidate(withImplicit);
+    }
+
+    static List<ContainerImageBuildInstruction> consolidate(List<ContainerImageBuildInstruction> instructions) {
+        final List<ContainerImageBuildInstruction> result = new ArrayList<>(instructions.size());
+        int lastInstall = -1;
+        for (ContainerImageBuildInstruction instruction : instructions) {
+            if (instruction instanceof Install install) {
+                if (lastInstall >= 0) {
+                    final Set<String> packages = new LinkedHashSet<>(((Install) result.get(lastInstall)).getPackages());
+                    packages.addAll(install.getPackages());
+                    result.set(lastInstall, new Install(List.copyOf(packages)));
+                } else {
+                    lastInstall = result.size();
+                    result.add(install);
+                }
+            } else {
+                if (!isIndependentOfPackages(instruction)) {
+                    lastInstall = -1;
+                }
+                result.add(instruction);
+            }
+        }
+        return result;
+    }
+
+    private static int indexOfTrailingInstall(List<ContainerImageBuildInstruction> instructions) {
+        for (int i = instructions.size() - 1; i >= 0; i--) {
+            final ContainerImageBuildInstruction instruction = instructions.get(i);
+            if (instruction instanceof Install) {
+                return i;
+            }
+            if (!isIndependentOfPackages(instruction)) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isIndependentOfPackages(ContainerImageBuildInstruction instruction) {
+        // Installs always run as root, and health checks are only image metadata
+        return instruction instanceof SetUser || instruction instanceof HealthCheck;
+    }
+}
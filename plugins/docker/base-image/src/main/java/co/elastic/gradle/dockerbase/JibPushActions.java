@@ -35,6 +35,15 @@ public class JibPushActions {
 
     private Logger logger = LoggerFactory.getLogger(JibPushActions.class);
 
+    private final RetryUtils.RetryGuard retryGuard;
+
+    public JibPushActions() {
+        this(RetryUtils.RetryGuard.NONE);
+    }
+
+    public JibPushActions(RetryUtils.RetryGuard retryGuard) {
+        this.retryGuard = retryGuard;
+    }
 
     private RegistryImage getAuthenticatedRegistryImage(String reference) throws InvalidImageReferenceException {
         final ImageReference imageRef = ImageReference.parse(reference);
@@ -65,7 +74,8 @@ public class JibPushActions {
                     }
                 })
                 .maxAttempt(6)
-                .exponentialBackoff(1000, 30000)
+                .exponentialBackoffWithJitter(1000, 30000)
+                .guard(retryGuard)
                 .onRetryError(error -> logger.warn("Error while pushing image with Jib. Retrying", error))
                 .execute();
         return container;
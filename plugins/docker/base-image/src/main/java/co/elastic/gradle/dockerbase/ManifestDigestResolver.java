@@ -0,0 +1,280 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.Architecture;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.gradle.api.GradleException;
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the per-architecture digests of a manifest list once per build, no matter how many lockfile tasks or
+ * projects refer to the same image. Lookups talk to the registry directly using a shared HTTP client and anonymous
+ * bearer tokens that are reused until they expire. Registries that need credentials fall back to the docker CLI.
+ */
+public abstract class ManifestDigestResolver implements BuildService<BuildServiceParameters.None> {
+
+    public static final String NAME = "co.elastic.manifestDigestResolver";
+
+    private static final Logger logger = Logging.getLogger(ManifestDigestResolver.class);
+
+    private static final String DOCKER_HUB = "registry-1.docker.io";
+    private static final String MANIFEST_LIST_TYPES = String.join(", ",
+            "application/vnd.docker.distribution.manifest.list.v2+json",
+            "application/vnd.oci.image.index.v1+json"
+    );
+    private static final Pattern AUTH_PARAM = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+
+    record RepositoryReference(String registry, String repository, String tag) {
+        URI manifestUri() {
+            return URI.create("https://" + registry + "/v2/" + repository + "/manifests/" + tag);
+        }
+    }
+
+    private record Token(String value, Instant expires) {
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, CompletableFuture<Map<String, String>>> digests = new ConcurrentHashMap<>();
+    private final Map<String, Token> tokens = new ConcurrentHashMap<>();
+    private HttpClient client;
+
+    public static Provider<ManifestDigestResolver> register(Project project) {
+        return project.getGradle().getSharedServices().registerIfAbsent(
+                NAME,
+                ManifestDigestResolver.class,
+                spec -> {
+                }
+        );
+    }
+
+    /**
+     * Returns the digest of the image for the given architecture.
+     *
+     * @param reference an image reference with a tag, e.g. <code>ubuntu:22.04</code>
+     * @param fallback  produces the manifest list through other means, used when the registry can't be queried directly
+     */
+    public String getDigest(String reference, Architecture architecture, Function<String, String> fallback) {
+        final Map<String, String> byArchitecture;
+        final CompletableFuture<Map<String, String>> lookup = new CompletableFuture<>();
+        final CompletableFuture<Map<String, String>> existing = digests.putIfAbsent(reference, lookup);
+        try {
+            if (existing == null) {
+                try {
+                    lookup.complete(resolve(reference, fallback));
+                } catch (RuntimeException e) {
+                    // Don't cache failures, the next task might have better luck
+                    digests.remove(reference, lookup);
+                    lookup.completeExceptionally(e);
+                }
+                byArchitecture = lookup.join();
+            } else {
+                byArchitecture = existing.join();
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+        final String digest = byArchitecture.get(architecture.dockerName());
+        if (digest == null) {
+            // Happens when the tag does not point to a manifest list
+            // We could make this work for a single platform if we really wanted to, for now it's an error
+            throw new GradleException("Can't find manifest digest for " + architecture.dockerName() + " in " +
+                                      reference + ". Does the image have a manifest list? Found: " + byArchitecture);
+        }
+        return digest;
+    }
+
+    private Map<String, String> resolve(String reference, Function<String, String> fallback) {
+        String manifestList;
+        try {
+            manifestList = fetchFromRegistry(parseReference(reference));
+        } catch (IOException | RuntimeException e) {
+            logger.info("Could not read manifest of {} from the registry, falling back to the docker CLI", reference, e);
+            manifestList = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while reading the manifest of " + reference, e);
+        }
+        if (manifestList == null) {
+            manifestList = fallback.apply(reference);
+        }
+        try {
+            return parseManifestList(mapper.readTree(manifestList));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the image manifest of " + reference, e);
+        }
+    }
+
+    private String fetchFromRegistry(RepositoryReference reference) throws IOException, InterruptedException {
+        final String tokenKey = reference.registry() + "/" + reference.repository();
+        final Token token = tokens.get(tokenKey);
+        HttpResponse<String> response = getManifest(reference, token);
+        if (response.statusCode() == 401) {
+            final String challenge = response.headers().firstValue("WWW-Authenticate").orElse("");
+            final Token newToken = requestToken(challenge);
+            if (newToken == null) {
+                return null;
+            }
+            tokens.put(tokenKey, newToken);
+            response = getManifest(reference, newToken);
+        }
+        if (response.statusCode() != 200) {
+            logger.info("Registry returned {} for {}", response.statusCode(), reference.manifestUri());
+            return null;
+        }
+        return response.body();
+    }
+
+    private HttpResponse<String> getManifest(RepositoryReference reference, Token token) throws IOException, InterruptedException {
+        final HttpRequest.Builder request = HttpRequest.newBuilder(reference.manifestUri())
+                .timeout(Duration.ofSeconds(30))
+                .header("Accept", MANIFEST_LIST_TYPES)
+                .GET();
+        if (token != null && token.expires().isAfter(Instant.now())) {
+            request.header("Authorization", "Bearer " + token.value());
+        }
+        return client().send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private Token requestToken(String challenge) throws IOException, InterruptedException {
+        if (!challenge.startsWith("Bearer ")) {
+            return null;
+        }
+        final Map<String, String> params = parseChallenge(challenge);
+        final String realm = params.remove("realm");
+        if (realm == null) {
+            return null;
+        }
+        final StringBuilder uri = new StringBuilder(realm);
+        char separator = realm.contains("?") ? '&' : '?';
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            uri.append(separator)
+                    .append(param.getKey())
+                    .append('=')
+                    .append(URLEncoder.encode(param.getValue(), StandardCharsets.UTF_8));
+            separator = '&';
+        }
+        final HttpResponse<String> response = client().send(
+                HttpRequest.newBuilder(URI.create(uri.toString())).timeout(Duration.ofSeconds(30)).GET().build(),
+                HttpResponse.BodyHandlers.ofString()
+        );
+        if (response.statusCode() != 200) {
+            return null;
+        }
+        final JsonNode body = mapper.readTree(response.body());
+        final String value = body.hasNonNull("token") ? body.get("token").asText() : body.path("access_token").asText(null);
+        if (value == null) {
+            return null;
+        }
+        // Expire a bit early so a token doesn't run out between the check and the request
+        final long expiresIn = Math.max(body.path("expires_in").asLong(60) - 10, 0);
+        return new Token(value, Instant.now().plusSeconds(expiresIn));
+    }
+
+    private synchronized HttpClient client() {
+        if (client == null) {
+            client = HttpClient.newBuilder()
+                    .connectTimeout(Duration.ofSeconds(10))
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .build();
+        }
+        return client;
+    }
+
+    static RepositoryReference parseReference(String reference) {
+        final int digestStart = reference.indexOf('@');
+        final String withoutDigest = digestStart == -1 ? reference : reference.substring(0, digestStart);
+        final int tagStart = withoutDigest.lastIndexOf(':');
+        final String name;
+        final String tag;
+        if (tagStart > withoutDigest.lastIndexOf('/')) {
+            name = withoutDigest.substring(0, tagStart);
+            tag = withoutDigest.substring(tagStart + 1);
+        } else {
+            name = withoutDigest;
+            tag = "latest";
+        }
+        final int firstSlash = name.indexOf('/');
+        final String first = firstSlash == -1 ? "" : name.substring(0, firstSlash);
+        if (first.contains(".") || first.contains(":") || first.equals("localhost")) {
+            final String registry = first.equals("docker.io") ? DOCKER_HUB : first;
+            final String repository = name.substring(firstSlash + 1);
+            return new RepositoryReference(
+                    registry,
+                    registry.equals(DOCKER_HUB) && !repository.contains("/") ? "library/" + repository : repository,
+                    tag
+            );
+        }
+        return new RepositoryReference(DOCKER_HUB, firstSlash == -1 ? "library/" + name : name, tag);
+    }
+
+    static Map<String, String> parseChallenge(String challenge) {
+        final Map<String, String> params = new HashMap<>();
+        final Matcher matcher = AUTH_PARAM.matcher(challenge);
+        while (matcher.find()) {
+            params.put(matcher.group(1), matcher.group(2));
+        }
+        return params;
+    }
+
+    static Map<String, String> parseManifestList(JsonNode root) {
+        final Map<String, String> result = new HashMap<>();
+        final Iterator<JsonNode> manifests = root.path("manifests").elements();
+        while (manifests.hasNext()) {
+            final JsonNode manifest = manifests.next();
+            final String architecture = manifest.path("platform").path("architecture").asText(null);
+            final String digest = manifest.path("digest").asText(null);
+            // Keep the first entry, later ones are e.g. attestations or other variants
+            if (architecture != null && digest != null) {
+                result.putIfAbsent(architecture, digest);
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+}
@@ -38,6 +38,9 @@ public record BaseLockfile(
         @NotNull  Map<Architecture, Packages> packages,
         @Nullable  Map<Architecture, UnchangingContainerReference> image
 ) implements Serializable {
+    // Mappers are thread safe once configured, so we share one instead of creating it on every parse
+    private static final ObjectMapper MAPPER = new ObjectMapper(new YAMLFactory());
+
     @JsonCreator
     public BaseLockfile {
     }
@@ -54,14 +57,12 @@ public record BaseLockfile(
     }
 
     public static BaseLockfile parse(Reader reader) throws IOException {
-        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
-        return mapper.readValue(reader, BaseLockfile.class);
+        return MAPPER.readValue(reader, BaseLockfile.class);
     }
 
     public static void write(BaseLockfile lockfile, Writer writer) throws IOException {
-        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
         writer.write("# THIS IS AN AUTOGENERATED FILE. DO NOT EDIT THIS FILE DIRECTLY.\n");
-        mapper.writeValue(writer, lockfile);
+        MAPPER.writeValue(writer, lockfile);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,110 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase.lockfile;
+
+import org.gradle.api.Project;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches parsed lockfiles for the duration of a build. The same lockfile is read when configuring the project, when
+ * fingerprinting task inputs and when executing tasks, entries are keyed by path and content hash, so a lockfile that is
+ * re-generated during the build is parsed again.
+ */
+public abstract class LockfileCacheService implements BuildService<BuildServiceParameters.None> {
+
+    public static final String NAME = "co.elastic.lockfileCache";
+
+    @FunctionalInterface
+    public interface Parser<T> {
+        T parse(Reader reader) throws IOException;
+    }
+
+    private record Key(Path path, Class<?> type) {
+    }
+
+    private record Entry(String contentHash, Object value) {
+    }
+
+    private final Map<Key, Entry> cache = new ConcurrentHashMap<>();
+
+    public static Provider<LockfileCacheService> register(Project project) {
+        return project.getGradle().getSharedServices().registerIfAbsent(
+                NAME,
+                LockfileCacheService.class,
+                spec -> {
+                }
+        );
+    }
+
+    public BaseLockfile getBaseLockfile(Path path) {
+        return get(path, BaseLockfile.class, BaseLockfile::parse);
+    }
+
+    public <T> T get(Path path, Class<T> type, Parser<T> parser) {
+        final byte[] content;
+        try {
+            content = Files.readAllBytes(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read lockfile " + path, e);
+        }
+        final String contentHash = sha256(content);
+        final Entry entry = cache.compute(
+                new Key(path.toAbsolutePath().normalize(), type),
+                (key, existing) -> {
+                    if (existing != null && existing.contentHash().equals(contentHash)) {
+                        return existing;
+                    }
+                    try (Reader reader = new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8)) {
+                        return new Entry(contentHash, parser.parse(reader));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Could not parse lockfile " + path, e);
+                    }
+                }
+        );
+        return type.cast(entry.value());
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            final StringBuilder result = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
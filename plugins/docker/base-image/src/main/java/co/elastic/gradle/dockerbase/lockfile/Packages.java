@@ -19,48 +19,84 @@
 package co.elastic.gradle.dockerbase.lockfile;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import org.gradle.api.tasks.Nested;
 import org.gradle.util.internal.VersionNumber;
 
 import java.io.Serializable;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Optional;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.*;
 
-public record Packages(
-        List<UnchangingPackage> packages
-) implements Serializable {
+/**
+ * The packages locked for one architecture. Instances are immutable and indexed by package name, so lookups done
+ * while computing the instructions of an image build don't have to scan the whole list.
+ */
+public final class Packages implements Serializable {
+
+    private final List<UnchangingPackage> packages;
+    private final Map<String, UnchangingPackage> packagesByName;
 
     @JsonCreator
-    public Packages {
-        if (packages.size() != getUniquePackagesWithMaxVersion(packages).size()) {
-            throw new IllegalStateException("Multiple packages have the same name");
+    public Packages(@JsonProperty("packages") List<UnchangingPackage> packages) {
+        this.packages = List.copyOf(packages);
+        final Map<String, UnchangingPackage> byName = new HashMap<>(this.packages.size() * 2);
+        for (UnchangingPackage pkg : this.packages) {
+            if (byName.put(pkg.getName(), pkg) != null) {
+                throw new IllegalStateException("Multiple packages have the same name: " + pkg.getName());
+            }
         }
+        this.packagesByName = Collections.unmodifiableMap(byName);
     }
 
     public static List<UnchangingPackage> getUniquePackagesWithMaxVersion(List<UnchangingPackage> packages) {
-        final Set<String> nameSet = packages.stream().map(UnchangingPackage::getName)
-                .collect(Collectors.toSet());
-        return nameSet.stream()
-                .map(name -> packages.stream().filter(pkg -> pkg.name().equals(name)).toList())
-                .map(list -> list.stream()
-                        .max(Comparator.comparing(a -> VersionNumber.parse(a.getVersion())))
-                        .orElseThrow(IllegalStateException::new))
-                .toList();
+        final Map<String, UnchangingPackage> byName = new LinkedHashMap<>(packages.size() * 2);
+        // Versions are only parsed for the rare names that have multiple versions installed
+        final Map<UnchangingPackage, VersionNumber> parsedVersions = new HashMap<>();
+        for (UnchangingPackage pkg : packages) {
+            byName.merge(pkg.getName(), pkg, (current, candidate) -> {
+                final VersionNumber currentVersion = parsedVersions.computeIfAbsent(
+                        current, each -> VersionNumber.parse(each.getVersion())
+                );
+                final VersionNumber candidateVersion = parsedVersions.computeIfAbsent(
+                        candidate, each -> VersionNumber.parse(each.getVersion())
+                );
+                return candidateVersion.compareTo(currentVersion) > 0 ? candidate : current;
+            });
+        }
+        return List.copyOf(byName.values());
     }
 
     @Nested
     public List<UnchangingPackage> getPackages() {
-        return packages();
+        return packages;
+    }
+
+    public List<UnchangingPackage> packages() {
+        return packages;
     }
 
     public Optional<UnchangingPackage> findByName(String name) {
-        return getPackages()
-                .stream()
-                .filter(each -> each.getName().equals(name))
-                .findFirst();
+        return Optional.ofNullable(packagesByName.get(name));
+    }
+
+    public boolean containsName(String name) {
+        return packagesByName.containsKey(name);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return packages.equals(((Packages) o).packages);
+    }
+
+    @Override
+    public int hashCode() {
+        return packages.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "Packages[packages=" + packages + "]";
     }
 
 }
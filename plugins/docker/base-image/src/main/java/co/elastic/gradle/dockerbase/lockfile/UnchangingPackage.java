@@ -66,4 +66,26 @@ public record UnchangingPackage(
             );
         };
     }
+
+    /**
+     * The revision used to look the package up in the OS package repository.
+     * Gradle has trouble dealing with : in the version, so the packages are renamed to have . instead when uploaded.
+     */
+    public String getArtifactRevision(OSDistribution distribution) {
+        return switch (distribution) {
+            case DEBIAN, UBUNTU -> version.replace(":", ".") + "-" + architecture;
+            case CENTOS -> version + "-" + release + "." + architecture;
+        };
+    }
+
+    public String getArtifactExtension(OSDistribution distribution) {
+        return switch (distribution) {
+            case DEBIAN, UBUNTU -> name.startsWith("__META__") ? "gz" : "deb";
+            case CENTOS -> name.startsWith("__META__") ? "tar" : "rpm";
+        };
+    }
+
+    public String getArtifactFileName(OSDistribution distribution) {
+        return name + "-" + getArtifactRevision(distribution) + "." + getArtifactExtension(distribution);
+    }
 }
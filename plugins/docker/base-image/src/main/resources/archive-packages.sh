@@ -3,13 +3,36 @@ set -e
 
 SCRIPT_DIR=$(cd -- "$(dirname -- "${BASH_SOURCE[0]}")" &>/dev/null && pwd)
 
+# Packages from the previous lockfile as name,version,release,arch and the repository metadata generated for them.
+# Packages that did not change are already in the repository, so we only need to download and upload the rest and merge
+# the metadata of the unchanged ones from the previous run.
+PREVIOUS_DIR="/mnt/previous"
+PREVIOUS_PACKAGES="${PREVIOUS_DIR}/packages.csv"
+UNCHANGED="/tmp/unchanged-packages"
+DOWNLOAD="/tmp/packages"
+
+function is_unchanged() {
+  [ -f "$PREVIOUS_PACKAGES" ] && grep -qxF "$1" "$PREVIOUS_PACKAGES"
+}
+
+function report_counts() {
+  local unchanged=0
+  local downloaded=0
+  if [ -f $UNCHANGED ]; then unchanged=$(wc -l < $UNCHANGED); fi
+  if [ -f $DOWNLOAD ]; then downloaded=$(wc -l < $DOWNLOAD); fi
+  echo "Reusing $unchanged unchanged packages, archiving $downloaded new or changed packages" >&2
+}
+
 function archive_yum_packages() {
   mkdir -p /var/rpms
   cd /var/rpms
 
+  PREVIOUS_META=$(ls ${PREVIOUS_DIR}/__META__repodata-*.tar 2>/dev/null | head -n1 || true)
+
   echo "Reading yum packages" >&2
   regex="(\S+)\.(\S+)\s*(\S+)-(\S+)"
-  DOWNLOAD="/tmp/packages"
+  rm -f $DOWNLOAD $UNCHANGED
+  touch $DOWNLOAD $UNCHANGED
   yum list installed 2>/dev/null | xargs -n3 | while read line; do
       if [[ $line =~ $regex ]]; then
         package="${BASH_REMATCH[1]}"
@@ -21,14 +44,30 @@ function archive_yum_packages() {
            version=$(echo "$version" | cut -d: -f2)
         fi
         echo "$package,$version,$release,$arch"
-        echo "${package}-${version}-${release}" >> $DOWNLOAD
+        if [ -n "$PREVIOUS_META" ] && is_unchanged "$package,$version,$release,$arch"; then
+          echo "${package}-${version}-${release}.${arch}.rpm" >> $UNCHANGED
+        else
+          echo "${package}-${version}-${release}" >> $DOWNLOAD
+        fi
       fi
   done
-  yum reinstall --downloadonly "--downloaddir=${PWD}"  $(< $DOWNLOAD) >&2
-  rm $DOWNLOAD
+  report_counts
+  if [ -s $DOWNLOAD ]; then
+    yum reinstall --downloadonly "--downloaddir=${PWD}"  $(< $DOWNLOAD) >&2
+  fi
 
   yum install -y createrepo >&2
-  createrepo . >&2
+  if [ -s $UNCHANGED ]; then
+    # Reuse the metadata of unchanged packages. Placeholders stand in for the packages that are already in the
+    # repository, --skip-stat makes createrepo take their metadata from the previous run based on the name alone.
+    tar -xf "$PREVIOUS_META"
+    xargs touch < $UNCHANGED
+    createrepo --update --skip-stat . >&2
+    xargs rm -f < $UNCHANGED
+  else
+    createrepo . >&2
+  fi
+  rm $DOWNLOAD $UNCHANGED
 
   tar -cf repodata.tar repodata
   rm -Rf repodata
@@ -38,6 +77,7 @@ function archive_yum_packages() {
 
   mv repodata.tar "__META__repodata-${REPODATA_VERSION}-meta.${REPODATA_ARCH}.tar"
 
+  # jfrog-cli uses checksum deploy, so packages already present in the repository are not uploaded again
   # shellcheck disable=SC2086
   CI=TRUE /mnt/jfrog-cli rt upload \
       $JFROG_CLI_ARGS \
@@ -50,8 +90,30 @@ function archive_apt_packages() {
   # We need dpkg-scanpackages
   apt-get install -y dpkg-dev >&2
 
-  # Make sure all installed packages are downloaded
-  dpkg -l | grep "^ii" | awk ' {print $2} ' | xargs apt-get -y install --reinstall --download-only >&2
+  PREVIOUS_META=$(ls ${PREVIOUS_DIR}/__META__Packages-*.gz 2>/dev/null | head -n1 || true)
+
+  rm -f $DOWNLOAD $UNCHANGED
+  touch $DOWNLOAD $UNCHANGED
+  regex="(\S+)\/\S+\s(\S+)\s(\S+)"
+  apt list --installed 2>/dev/null | while read line; do
+    if [[ $line =~ $regex ]]; then
+      package="${BASH_REMATCH[1]}"
+      version="${BASH_REMATCH[2]}"
+      arch="${BASH_REMATCH[3]}"
+      echo "$package,$version,,$arch"
+      if [ -n "$PREVIOUS_META" ] && is_unchanged "$package,$version,,$arch"; then
+        echo "$package" >> $UNCHANGED
+      else
+        echo "$package" >> $DOWNLOAD
+      fi
+    fi
+  done
+  report_counts
+
+  # Make sure all new or changed packages are downloaded
+  if [ -s $DOWNLOAD ]; then
+    xargs apt-get -y install --reinstall --download-only < $DOWNLOAD >&2
+  fi
 
   cd /var/cache/apt/archives/
 
@@ -60,24 +122,48 @@ function archive_apt_packages() {
 
   # We have to rename the packages to match how these will be called in the Gradle configuration so the metadata that we
   # generate below will still work.
-  regex="(\S+)\/\S+\s(\S+)\s(\S+)"
   apt list --installed 2>/dev/null | while read line; do
     if [[ $line =~ $regex ]]; then
       package="${BASH_REMATCH[1]}"
-      version="${BASH_REMATCH[2]}"
+      version="$(echo ${BASH_REMATCH[2]} | sed s/:/./g)"
       arch="${BASH_REMATCH[3]}"
-      echo "$package,$version,,$arch"
-      version="$(echo $version | sed s/:/./g)"
-      mv "${package}_${version}_${arch}.deb" "${package}-${version}-${arch}.deb"
+      if [ -f "${package}_${version}_${arch}.deb" ]; then
+        mv "${package}_${version}_${arch}.deb" "${package}-${version}-${arch}.deb"
+      fi
+      if [ -f "${package}-${version}-${arch}.deb" ]; then
+        # Packages kept from the image build are scanned again, so we don't carry over their entries
+        echo "$package" >> /tmp/scanned-packages
+      fi
     fi
   done
-
-  dpkg-scanpackages . | gzip >Packages.gz
+  touch /tmp/scanned-packages
+  grep -vxFf /tmp/scanned-packages $UNCHANGED > /tmp/reused-packages || true
+  mv /tmp/reused-packages $UNCHANGED
+  rm /tmp/scanned-packages
+
+  dpkg-scanpackages . > /tmp/Packages
+  if [ -s $UNCHANGED ]; then
+    # Carry over the entries of the unchanged packages from the metadata generated by the previous run
+    zcat "$PREVIOUS_META" | awk -v unchanged="$UNCHANGED" '
+      BEGIN { while ((getline name < unchanged) > 0) keep[name] = 1; RS = ""; ORS = "\n\n" }
+      {
+        n = split($0, lines, "\n")
+        for (i = 1; i <= n; i++) {
+          if (lines[i] ~ /^Package: /) {
+            if (substr(lines[i], 10) in keep) print
+            break
+          }
+        }
+      }' >> /tmp/Packages
+  fi
+  gzip < /tmp/Packages > Packages.gz
+  rm /tmp/Packages $DOWNLOAD $UNCHANGED
   PACKAGES_VERSION=$(sha256sum Packages.gz | cut -f1 -d' ')
   PACKAGES_ARCH=$(uname -p)
 
   mv Packages.gz "__META__Packages-${PACKAGES_VERSION}-${PACKAGES_ARCH}.gz"
 
+  # jfrog-cli uses checksum deploy, so packages already present in the repository are not uploaded again
   # shellcheck disable=SC2086
   CI=TRUE /mnt/jfrog-cli rt upload \
     $JFROG_CLI_ARGS \
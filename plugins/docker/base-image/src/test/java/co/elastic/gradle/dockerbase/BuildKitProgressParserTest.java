@@ -0,0 +1,99 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.docker.instruction.Install;
+import co.elastic.gradle.utils.docker.instruction.Run;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BuildKitProgressParserTest {
+
+    private static final String OUTPUT = """
+            #1 [internal] load build definition from Dockerfile
+            #1 transferring dockerfile: 1.25kB done
+            #1 DONE 0.1s
+
+            #4 [internal] load build context
+            #4 transferring context: 12.5MB 0.4s done
+            #4 DONE 0.5s
+
+            #5 [1/3] FROM docker.io/library/ubuntu:20.04@sha256:abc
+            #5 sha256:def 28.57MB / 28.57MB 1.2s done
+            #5 DONE 2.0s
+
+            #6 [2/3] RUN apt-get update && apt-get install -y curl
+            #6 0.512 Reading package lists...
+            #6 DONE 42.3s
+
+            #7 [3/3] RUN false
+            #7 ERROR: process "/bin/sh -c false" did not complete successfully: exit code: 1
+            """;
+
+    @Test
+    void parsesStepDurations() {
+        final BuildKitProgressParser parser = new BuildKitProgressParser();
+        final byte[] bytes = OUTPUT.getBytes(StandardCharsets.UTF_8);
+        // Write in chunks that don't line up with lines
+        for (int i = 0; i < bytes.length; i += 7) {
+            parser.write(bytes, i, Math.min(7, bytes.length - i));
+        }
+        parser.close();
+
+        final List<BuildKitProgressParser.Step> steps = parser.getSteps();
+        assertEquals(5, steps.size());
+        assertEquals("[internal] load build context", steps.get(1).name());
+        assertEquals(12_500_000L, steps.get(1).bytes());
+        assertEquals(1, steps.get(2).step());
+        assertEquals(28_570_000L, steps.get(2).bytes());
+        assertEquals(2, steps.get(3).step());
+        assertEquals(42.3, steps.get(3).seconds(), 0.001);
+        assertTrue(steps.get(4).failed());
+
+        final BuildStepReport.Report report = new BuildStepReport(
+                ":image:dockerBaseImageBuild",
+                30.0,
+                steps,
+                Stream.of(new Install(List.of()), new Install(List.of("curl")), new Run(List.of("false")))
+                        .map(BuildStepReport::describe)
+                        .toList()
+        ).getReport();
+        assertEquals("install curl", report.steps().get(3).instruction());
+        assertNull(report.steps().get(0).instruction());
+        // Steps overlap, so the total is the wall-clock time of the build rather than their sum
+        assertEquals(30.0, report.totalSeconds(), 0.001);
+    }
+
+    @Test
+    void failingToWriteTheReportDoesNotFailTheBuild(@TempDir Path tempDir) throws IOException {
+        final Path notADirectory = Files.createFile(tempDir.resolve("report"));
+        final BuildStepReport report = new BuildStepReport(":image:dockerBaseImageBuild", 1.0, List.of(), List.of());
+
+        assertDoesNotThrow(() -> report.write(notADirectory));
+    }
+}
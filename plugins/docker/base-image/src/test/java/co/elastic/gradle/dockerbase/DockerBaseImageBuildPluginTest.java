@@ -18,13 +18,23 @@
  */
 package co.elastic.gradle.dockerbase;
 
+import co.elastic.gradle.utils.Architecture;
 import org.gradle.api.Project;
+import org.gradle.api.Task;
+import org.gradle.api.tasks.TaskProvider;
 import org.gradle.testfixtures.ProjectBuilder;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import java.io.File;
 import java.nio.file.Path;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class DockerBaseImageBuildPluginTest {
 
@@ -42,4 +52,59 @@ class DockerBaseImageBuildPluginTest {
         testProject.getPluginManager().apply(DockerBaseImageBuildPlugin.class);
         final BaseImageExtension extension = testProject.getExtensions().getByType(BaseImageExtension.class);
     }
-}
\ No newline at end of file
+
+    @Test
+    void registersEmulatedBuildsForOtherArchitectures() {
+        testProject.getPluginManager().apply(DockerBaseImageBuildPlugin.class);
+        for (Architecture architecture : Architecture.values()) {
+            final String taskName = DockerBaseImageBuildPlugin.BUILD_TASK_NAME +
+                                    (architecture == Architecture.current() ? "" : architecture.dockerName());
+            final DockerBaseImageBuildTask task = (DockerBaseImageBuildTask) testProject.getTasks().getByName(taskName);
+            assertEquals(architecture, task.getArchitecture().get());
+            assertTrue(
+                    task.getImageArchive().get().getAsFile().getName()
+                            .contains(architecture.name().toLowerCase(Locale.ROOT))
+            );
+        }
+        assertNotNull(testProject.getTasks().findByName(DockerBaseImageBuildPlugin.BUILD_TASK_NAME + "AllWithEmulation"));
+    }
+
+    @Test
+    void installsAreConsolidatedByDefault() {
+        testProject.getPluginManager().apply(DockerBaseImageBuildPlugin.class);
+        final BaseImageExtension extension = testProject.getExtensions().getByType(BaseImageExtension.class);
+        assertTrue(extension.getConsolidateInstalls().get());
+        final DockerBaseImageBuildTask task = (DockerBaseImageBuildTask) testProject.getTasks()
+                .getByName(DockerBaseImageBuildPlugin.BUILD_TASK_NAME);
+        assertTrue(task.getConsolidateInstalls().get());
+
+        extension.getConsolidateInstalls().set(false);
+        assertFalse(task.getConsolidateInstalls().get());
+    }
+
+    @Test
+    void imagesAreTrackedForTheProject() {
+        testProject.getPluginManager().apply(DockerBaseImageBuildPlugin.class);
+        final DockerLocalImportArchiveTask task = (DockerLocalImportArchiveTask) testProject.getTasks()
+                .getByName(DockerBaseImageBuildPlugin.LOCAL_IMPORT_TASK_NAME);
+        assertTrue(task.getDockerImageRegistry().isPresent());
+        assertEquals(testProject.getPath(), task.getDockerImageOwner().get());
+    }
+
+    @Test
+    void analyzeTaskIsSharedWithOtherPlugins() {
+        testProject.getPluginManager().apply(DockerBaseImageBuildPlugin.class);
+        final TaskProvider<Task> otherBuild = testProject.getTasks().register("otherImageBuild");
+        final File otherArchive = testProject.file("build/otherImageBuild/image.tar.zstd");
+
+        DockerBaseImageBuildPlugin.registerAnalyzeTask(testProject, otherBuild, otherArchive);
+
+        final DockerImageAnalyzeTask task = (DockerImageAnalyzeTask) testProject.getTasks()
+                .getByName(DockerBaseImageBuildPlugin.ANALYZE_TASK_NAME);
+        assertTrue(task.getDependsOn().contains(otherBuild));
+        assertTrue(task.getImageArchives().getFiles().contains(otherArchive));
+        final File baseArchive = ((DockerBaseImageBuildTask) testProject.getTasks()
+                .getByName(DockerBaseImageBuildPlugin.BUILD_TASK_NAME)).getImageArchive().get().getAsFile();
+        assertTrue(task.getImageArchives().getFiles().contains(baseArchive));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImageAnalyzerTest {
+
+    private static final byte[] BIG = new byte[8 * 1024];
+    private static final byte[] OTHER = "other".repeat(2000).getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void reportsWastedAndDuplicatedContent(@TempDir Path tempDir) throws IOException {
+        final Path archive = tempDir.resolve("image.tar");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(Files.newOutputStream(archive))) {
+            addEntry(tar, "base/layer.tar", layer(Map.of(
+                    "usr/lib/libfoo.so", BIG,
+                    "etc/motd", "hello".getBytes(StandardCharsets.UTF_8)
+            ), false));
+            // Layers created by Jib are compressed
+            addEntry(tar, "top.tar.gz", layer(Map.of(
+                    "app/libfoo.so", BIG,
+                    "etc/.wh.motd", new byte[0],
+                    "usr/lib/libfoo.so", OTHER
+            ), true));
+            addEntry(tar, "manifest.json", """
+                    [{"Config": "config.json", "Layers": ["base/layer.tar", "top.tar.gz"]}]
+                    """.getBytes(StandardCharsets.UTF_8));
+        }
+
+        final ImageAnalyzer.Analysis analysis = ImageAnalyzer.analyze(archive);
+
+        assertEquals(2, analysis.layers().size());
+        assertEquals(BIG.length + 5, analysis.layers().get(0).fileBytes());
+        assertEquals(
+                List.of(new ImageAnalyzer.FileInLayer("usr/lib/libfoo.so", 0, BIG.length)),
+                analysis.overwritten()
+        );
+        assertEquals(List.of(new ImageAnalyzer.FileInLayer("etc/motd", 0, 5)), analysis.deleted());
+        assertEquals(BIG.length + 5, analysis.wastedBytes());
+        // The overwritten copy in the base layer doesn't count as a duplicate, it's already wasted
+        assertEquals(List.of(), analysis.duplicates());
+        assertTrue(analysis.format().contains("usr/lib/libfoo.so"));
+    }
+
+    @Test
+    void findsDuplicatesAcrossLayers() {
+        final ImageAnalyzer.Analysis analysis = ImageAnalyzer.analyze(
+                List.of(
+                        new ImageAnalyzer.LayerSummary("a", 0, 0, 0),
+                        new ImageAnalyzer.LayerSummary("b", 0, 0, 0)
+                ),
+                List.of(
+                        List.of(
+                                new ImageAnalyzer.LayerEntry("opt", ImageAnalyzer.EntryType.DIRECTORY, 0, null),
+                                new ImageAnalyzer.LayerEntry("opt/one.jar", ImageAnalyzer.EntryType.FILE, 10000, "sha256:x")
+                        ),
+                        List.of(
+                                new ImageAnalyzer.LayerEntry("opt", ImageAnalyzer.EntryType.OPAQUE, 0, null),
+                                new ImageAnalyzer.LayerEntry("srv/one.jar", ImageAnalyzer.EntryType.FILE, 10000, "sha256:x"),
+                                new ImageAnalyzer.LayerEntry("srv/two.jar", ImageAnalyzer.EntryType.FILE, 10000, "sha256:x")
+                        )
+                )
+        );
+        assertEquals(List.of(new ImageAnalyzer.FileInLayer("opt/one.jar", 0, 10000)), analysis.deleted());
+        assertEquals(1, analysis.duplicates().size());
+        assertEquals(2, analysis.duplicates().get(0).files().size());
+        assertEquals(10000, analysis.duplicateBytes());
+    }
+
+    @Test
+    void reportsLargestFilesOfAPartiallyCopiedArchive() throws IOException {
+        final byte[] large = new byte[3 * 1024 * 1024];
+        final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(archive)) {
+            addEntry(tar, "base/layer.tar", layer(Map.of("opt/large.bin", large, "etc/motd", OTHER), false));
+            addEntry(tar, "top/layer.tar", layer(Map.of("opt/other.bin", large), false));
+        }
+
+        final ImageAnalyzer.LargestFiles largestFiles = new ImageAnalyzer.LargestFiles();
+        // Stop copying in the middle of the first layer
+        final OutputStream limited = new OutputStream() {
+            private long written = 0;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                written += len;
+                if (written > 1024 * 1024) {
+                    throw new IOException("full");
+                }
+            }
+        };
+        assertThrows(IOException.class, () -> ImageArchiveLayers.copy(
+                new ByteArrayInputStream(archive.toByteArray()), limited, "test", largestFiles
+        ));
+
+        final String report = largestFiles.format();
+        assertTrue(report.contains("3.0 MB opt/large.bin"), report);
+        assertTrue(report.contains("etc/motd"), report);
+        assertFalse(report.contains("opt/other.bin"), report);
+    }
+
+    @Test
+    void formatsSizes() {
+        assertEquals("512 B", ImageAnalyzer.humanSize(512));
+        assertEquals("1.5 KB", ImageAnalyzer.humanSize(1536));
+        assertEquals("2.0 GB", ImageAnalyzer.humanSize(2L * 1024 * 1024 * 1024));
+    }
+
+    private static byte[] layer(Map<String, byte[]> files, boolean compressed) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(compressed ? new GzipCompressorOutputStream(out) : out)) {
+            for (Map.Entry<String, byte[]> file : new TreeMap<>(files).entrySet()) {
+                addEntry(tar, file.getKey(), file.getValue());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void addEntry(TarArchiveOutputStream tar, String name, byte[] content) throws IOException {
+        final TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(content.length);
+        tar.putArchiveEntry(entry);
+        tar.write(content);
+        tar.closeArchiveEntry();
+    }
+}
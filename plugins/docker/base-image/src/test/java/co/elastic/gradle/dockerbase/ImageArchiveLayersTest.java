@@ -0,0 +1,109 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ImageArchiveLayersTest {
+
+    @Test
+    void skipsLayersPresentInDaemon(@TempDir Path tempDir) throws IOException {
+        final Path archive = tempDir.resolve("image.tar");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(Files.newOutputStream(archive))) {
+            addEntry(tar, "base/layer.tar", "base");
+            addEntry(tar, "top/layer.tar", "top");
+            addEntry(tar, "config.json", "{\"rootfs\":{\"diff_ids\":[\"sha256:aa\",\"sha256:bb\"]}}");
+            addEntry(tar, "manifest.json", "[{\"Config\":\"config.json\",\"Layers\":[\"base/layer.tar\",\"top/layer.tar\"]}]");
+        }
+
+        final ImageArchiveLayers layers = ImageArchiveLayers.read(archive);
+        assertEquals(List.of("base/layer.tar", "top/layer.tar"), layers.paths());
+        assertEquals(List.of("sha256:aa", "sha256:bb"), layers.diffIds());
+
+        final List<String> chainIds = ImageArchiveLayers.chainIds(layers.diffIds());
+        assertEquals("sha256:aa", chainIds.get(0));
+        assertEquals(Set.of("base/layer.tar"), layers.pathsPresentIn(Set.of(chainIds.get(0))));
+        // The same top layer on a different base is not the same layer
+        assertEquals(Set.of(), layers.pathsPresentIn(Set.of(ImageArchiveLayers.chainIds(List.of("sha256:bb")).get(0))));
+
+        final ByteArrayOutputStream reduced = new ByteArrayOutputStream();
+        ImageArchiveLayers.writeWithout(archive, Set.of("base/layer.tar"), reduced);
+        final List<String> names = new ArrayList<>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new ByteArrayInputStream(reduced.toByteArray()))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                names.add(entry.getName());
+            }
+        }
+        assertEquals(List.of("top/layer.tar", "config.json", "manifest.json"), names);
+    }
+
+    @Test
+    void recordsLayersWhileCopying(@TempDir Path tempDir) throws IOException {
+        final byte[] large = new byte[3 * 1024 * 1024];
+        Arrays.fill(large, (byte) 'x');
+        final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(archive)) {
+            addEntry(tar, "base/layer.tar", large);
+            addEntry(tar, "config.json", "{\"rootfs\":{\"diff_ids\":[\"sha256:aa\"]}}".getBytes(StandardCharsets.UTF_8));
+            addEntry(tar, "manifest.json", "[{\"Config\":\"config.json\",\"Layers\":[\"base/layer.tar\"]}]".getBytes(StandardCharsets.UTF_8));
+        }
+
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        final ImageArchiveLayers layers = ImageArchiveLayers.copy(
+                new ByteArrayInputStream(archive.toByteArray()), copy, "test", null
+        );
+        assertArrayEquals(archive.toByteArray(), copy.toByteArray());
+        assertEquals(new ImageArchiveLayers(List.of("base/layer.tar"), List.of("sha256:aa")), layers);
+
+        final Path layersFile = tempDir.resolve("image.layers.json");
+        layers.writeTo(layersFile);
+        assertEquals(layers, ImageArchiveLayers.readFrom(layersFile));
+    }
+
+    private static void addEntry(TarArchiveOutputStream tar, String name, String content) throws IOException {
+        addEntry(tar, name, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void addEntry(TarArchiveOutputStream tar, String name, byte[] bytes) throws IOException {
+        final TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(bytes.length);
+        tar.putArchiveEntry(entry);
+        tar.write(bytes);
+        tar.closeArchiveEntry();
+    }
+}
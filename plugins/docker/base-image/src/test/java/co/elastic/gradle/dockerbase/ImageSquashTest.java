@@ -0,0 +1,226 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImageSquashTest {
+
+    @Test
+    void squashesLayersAboveTheBase(@TempDir Path tempDir) throws IOException {
+        final Path archive = tempDir.resolve("image.tar");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(Files.newOutputStream(archive))) {
+            addEntry(tar, "base/layer.tar", layer(Map.of("etc/passwd", "root")));
+            addEntry(tar, "one/layer.tar", layer(Map.of(
+                    "var/lib/apt/lists/", "",
+                    "var/lib/apt/lists/index", "big",
+                    "opt/app/old", "old",
+                    "usr/bin/tool", "v1"
+            )));
+            addEntry(tar, "two/layer.tar", layer(Map.of(
+                    "var/lib/apt/.wh.lists", "",
+                    "usr/bin/tool", "v2",
+                    "opt/app/.wh..wh..opq", "",
+                    "opt/app/new", "new",
+                    "etc/.wh.motd", ""
+            )));
+            addEntry(tar, "config.json", """
+                    {"created": "2022-01-01T00:00:00Z",
+                     "rootfs": {"type": "layers", "diff_ids": ["sha256:base", "sha256:one", "sha256:two"]},
+                     "history": [
+                       {"created_by": "base"},
+                       {"created_by": "USER root", "empty_layer": true},
+                       {"created_by": "RUN one"},
+                       {"created_by": "RUN two"}
+                     ]}
+                    """.getBytes(StandardCharsets.UTF_8));
+            addEntry(tar, "manifest.json", """
+                    [{"Config": "config.json", "RepoTags": ["test:latest"],
+                      "Layers": ["base/layer.tar", "one/layer.tar", "two/layer.tar"]}]
+                    """.getBytes(StandardCharsets.UTF_8));
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ImageSquash.Squashed result = ImageSquash.squash(
+                archive, List.of("sha256:base"), tempDir.resolve("scratch"), out
+        );
+        final String imageId = result.imageId();
+
+        final Map<String, byte[]> entries = readTar(out.toByteArray());
+        final ObjectMapper mapper = new ObjectMapper();
+        final JsonNode manifest = mapper.readTree(entries.get("manifest.json")).get(0);
+        final String squashedPath = manifest.get("Layers").get(1).asText();
+        assertEquals("base/layer.tar", manifest.get("Layers").get(0).asText());
+        assertEquals(2, manifest.get("Layers").size());
+        assertEquals("test:latest", manifest.get("RepoTags").get(0).asText());
+        assertEquals(imageId.substring("sha256:".length()) + ".json", manifest.get("Config").asText());
+
+        final JsonNode config = mapper.readTree(entries.get(manifest.get("Config").asText()));
+        assertEquals("sha256:base", config.get("rootfs").get("diff_ids").get(0).asText());
+        assertEquals(
+                "sha256:" + squashedPath.substring(0, squashedPath.indexOf('/')),
+                config.get("rootfs").get("diff_ids").get(1).asText()
+        );
+        // The layers are known without reading the squashed archive again
+        assertEquals(List.of("base/layer.tar", squashedPath), result.layers().paths());
+        assertEquals(
+                List.of("sha256:base", config.get("rootfs").get("diff_ids").get(1).asText()),
+                result.layers().diffIds()
+        );
+        int historyLayers = 0;
+        for (JsonNode each : config.get("history")) {
+            if (!each.path("empty_layer").asBoolean(false)) {
+                historyLayers++;
+            }
+        }
+        assertEquals(2, historyLayers);
+
+        final Map<String, byte[]> squashed = readTar(entries.get(squashedPath));
+        // Removed files are gone, whiteouts are kept as they might remove files from the base
+        assertEquals(
+                Set.of("var/lib/apt/.wh.lists", "usr/bin/tool", "opt/app/.wh..wh..opq", "opt/app/new", "etc/.wh.motd"),
+                squashed.keySet()
+        );
+        assertEquals("v2", new String(squashed.get("usr/bin/tool"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void refusesImagesNotBasedOnTheBase(@TempDir Path tempDir) throws IOException {
+        final Path archive = tempDir.resolve("image.tar");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(Files.newOutputStream(archive))) {
+            addEntry(tar, "one/layer.tar", layer(Map.of("a", "a")));
+            addEntry(tar, "config.json", "{\"rootfs\":{\"diff_ids\":[\"sha256:one\"]}}".getBytes(StandardCharsets.UTF_8));
+            addEntry(tar, "manifest.json", "[{\"Config\":\"config.json\",\"Layers\":[\"one/layer.tar\"]}]".getBytes(StandardCharsets.UTF_8));
+        }
+        assertThrows(
+                IOException.class,
+                () -> ImageSquash.squash(archive, List.of("sha256:other"), tempDir.resolve("scratch"), new ByteArrayOutputStream())
+        );
+    }
+
+    @Test
+    void copiesHardLinkTargetsThatAreNotInTheSquashedLayer(@TempDir Path tempDir) throws IOException {
+        final Path archive = tempDir.resolve("image.tar");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(Files.newOutputStream(archive))) {
+            addEntry(tar, "base/layer.tar", layer(Map.of("usr/bin/python3.9", "python")));
+            final ByteArrayOutputStream one = new ByteArrayOutputStream();
+            try (TarArchiveOutputStream layer = new TarArchiveOutputStream(one)) {
+                addLink(layer, "usr/bin/python3", "usr/bin/python3.9");
+                addEntry(layer, "etc/config", "v1".getBytes(StandardCharsets.UTF_8));
+                addLink(layer, "etc/config.orig", "etc/config");
+                addEntry(layer, "etc/same", "same".getBytes(StandardCharsets.UTF_8));
+                addLink(layer, "etc/same.link", "etc/same");
+            }
+            addEntry(tar, "one/layer.tar", one.toByteArray());
+            addEntry(tar, "two/layer.tar", layer(Map.of("etc/config", "v2")));
+            addEntry(tar, "config.json", """
+                    {"rootfs": {"type": "layers", "diff_ids": ["sha256:base", "sha256:one", "sha256:two"]}}
+                    """.getBytes(StandardCharsets.UTF_8));
+            addEntry(tar, "manifest.json", """
+                    [{"Config": "config.json", "Layers": ["base/layer.tar", "one/layer.tar", "two/layer.tar"]}]
+                    """.getBytes(StandardCharsets.UTF_8));
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Path scratchDir = tempDir.resolve("scratch");
+        ImageSquash.squash(archive, List.of("sha256:base"), scratchDir, out);
+
+        final Map<String, byte[]> entries = readTar(out.toByteArray());
+        final JsonNode manifest = new ObjectMapper().readTree(entries.get("manifest.json")).get(0);
+        final Map<String, TarArchiveEntry> squashedEntries = new LinkedHashMap<>();
+        final Map<String, byte[]> squashed = new LinkedHashMap<>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(
+                new ByteArrayInputStream(entries.get(manifest.get("Layers").get(1).asText()))
+        )) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                squashedEntries.put(entry.getName(), entry);
+                squashed.put(entry.getName(), tar.readAllBytes());
+            }
+        }
+        // Targets in the base image or changed by a later layer are copied, the link keeps the original content
+        assertEquals("python", new String(squashed.get("usr/bin/python3"), StandardCharsets.UTF_8));
+        assertEquals("v1", new String(squashed.get("etc/config.orig"), StandardCharsets.UTF_8));
+        assertEquals("v2", new String(squashed.get("etc/config"), StandardCharsets.UTF_8));
+        // Links to files that are in the squashed layer are kept
+        assertTrue(squashedEntries.get("etc/same.link").isLink());
+        // Nothing is left behind in the scratch directory
+        try (var files = Files.list(scratchDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private static byte[] layer(Map<String, String> files) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(out)) {
+            for (Map.Entry<String, String> file : new TreeMap<>(files).entrySet()) {
+                addEntry(tar, file.getKey(), file.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, byte[]> readTar(byte[] content) throws IOException {
+        final Map<String, byte[]> result = new LinkedHashMap<>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new ByteArrayInputStream(content))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                result.put(entry.getName(), tar.readAllBytes());
+            }
+        }
+        return result;
+    }
+
+    private static void addLink(TarArchiveOutputStream tar, String name, String target) throws IOException {
+        final TarArchiveEntry entry = new TarArchiveEntry(name, TarArchiveEntry.LF_LINK);
+        entry.setLinkName(target);
+        tar.putArchiveEntry(entry);
+        tar.closeArchiveEntry();
+    }
+
+    private static void addEntry(TarArchiveOutputStream tar, String name, byte[] content) throws IOException {
+        final TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(content.length);
+        tar.putArchiveEntry(entry);
+        tar.write(content);
+        tar.closeArchiveEntry();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
+import co.elastic.gradle.utils.docker.instruction.HealthCheck;
+import co.elastic.gradle.utils.docker.instruction.Install;
+import co.elastic.gradle.utils.docker.instruction.Run;
+import co.elastic.gradle.utils.docker.instruction.SetUser;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class InstallConsolidationTest {
+
+    @Test
+    void mergesAdjacentInstalls() {
+        final List<ContainerImageBuildInstruction> result = InstallConsolidation.consolidate(List.of(
+                new Install(List.of("a", "b")),
+                new SetUser("app"),
+                new Install(List.of("b", "c")),
+                new Install(List.of("d"))
+        ));
+        assertEquals(
+                List.of(new Install(List.of("a", "b", "c", "d")), new SetUser("app")),
+                result
+        );
+    }
+
+    @Test
+    void keepsInstallsSeparatedByRun() {
+        final List<ContainerImageBuildInstruction> instructions = List.of(
+                new Install(List.of("a")),
+                new Run(List.of("echo")),
+                new Install(List.of("b"))
+        );
+        assertEquals(instructions, InstallConsolidation.consolidate(instructions));
+    }
+
+    @Test
+    void mergesImplicitInstallIntoTrailingInstall() {
+        final List<ContainerImageBuildInstruction> result = InstallConsolidation.consolidate(
+                List.of(
+                        new Install(List.of("a")),
+                        new Run(List.of("echo")),
+                        new Install(List.of("b")),
+                        new SetUser("app"),
+                        new Install(List.of("c")),
+                        new SetUser("other")
+                ),
+                new Install(List.of("base1", "base2"))
+        );
+        assertEquals(
+                List.of(
+                        new Install(List.of("a")),
+                        new Run(List.of("echo")),
+                        new Install(List.of("b", "c", "base1", "base2")),
+                        new SetUser("app"),
+                        new SetUser("other")
+                ),
+                result
+        );
+    }
+
+    @Test
+    void appendsImplicitInstallAfterRun() {
+        // Packages installed by the run instruction still need to be pinned to the lockfile
+        final List<ContainerImageBuildInstruction> result = InstallConsolidation.consolidate(
+                List.of(new Install(List.of("a")), new Run(List.of("echo"))),
+                new Install(List.of("base1"))
+        );
+        assertEquals(
+                List.of(new Install(List.of("a")), new Run(List.of("echo")), new Install(List.of("base1"))),
+                result
+        );
+    }
+
+    @Test
+    void appendsImplicitInstallWithoutExplicitInstalls() {
+        final List<ContainerImageBuildInstruction> result = InstallConsolidation.consolidate(
+                List.of(new Run(List.of("echo"))),
+                new Install(List.of("base1"))
+        );
+        assertEquals(List.of(new Run(List.of("echo")), new Install(List.of("base1"))), result);
+    }
+
+    @Test
+    void implicitPackagesAlreadyInstalledExplicitlyAreNotDuplicated() {
+        final List<ContainerImageBuildInstruction> result = InstallConsolidation.consolidate(
+                List.of(new Install(List.of("a", "b"))),
+                new Install(List.of("b", "c"))
+        );
+        assertEquals(List.of(new Install(List.of("a", "b", "c"))), result);
+    }
+
+    @Test
+    void keepsTheOrderOfOtherInstructions() {
+        final List<ContainerImageBuildInstruction> result = InstallConsolidation.consolidate(List.of(
+                new Run(List.of("first")),
+                new Install(List.of("a")),
+                new HealthCheck("true", null, null, null, null),
+                new Install(List.of("b")),
+                new Run(List.of("last"))
+        ));
+        assertEquals(
+                List.of(
+                        new Run(List.of("first")),
+                        new Install(List.of("a", "b")),
+                        new HealthCheck("true", null, null, null, null),
+                        new Run(List.of("last"))
+                ),
+                result
+        );
+    }
+
+    @Test
+    void consolidationIsReflectedInTheCacheKey() {
+        // The consolidated instructions are the task's nested input, so they need to be stable and differ from the
+        // unconsolidated ones
+        final List<ContainerImageBuildInstruction> instructions = List.of(
+                new Install(List.of("a")),
+                new Install(List.of("b"))
+        );
+        final Install implicit = new Install(List.of("base"));
+        assertEquals(
+                InstallConsolidation.consolidate(instructions, implicit),
+                InstallConsolidation.consolidate(instructions, implicit)
+        );
+        assertNotEquals(
+                List.of(new Install(List.of("a")), new Install(List.of("b")), implicit),
+                InstallConsolidation.consolidate(instructions, implicit)
+        );
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ManifestDigestResolverTest {
+
+    @Test
+    void parsesReferences() {
+        assertEquals(
+                new ManifestDigestResolver.RepositoryReference("registry-1.docker.io", "library/ubuntu", "22.04"),
+                ManifestDigestResolver.parseReference("ubuntu:22.04")
+        );
+        assertEquals(
+                new ManifestDigestResolver.RepositoryReference("registry-1.docker.io", "grafana/grafana", "latest"),
+                ManifestDigestResolver.parseReference("grafana/grafana")
+        );
+        assertEquals(
+                new ManifestDigestResolver.RepositoryReference("registry-1.docker.io", "library/centos", "7"),
+                ManifestDigestResolver.parseReference("docker.io/centos:7")
+        );
+        assertEquals(
+                new ManifestDigestResolver.RepositoryReference("localhost:5000", "team/base", "1.0"),
+                ManifestDigestResolver.parseReference("localhost:5000/team/base:1.0@sha256:abc")
+        );
+    }
+
+    @Test
+    void parsesBearerChallenge() {
+        assertEquals(
+                Map.of(
+                        "realm", "https://auth.docker.io/token",
+                        "service", "registry.docker.io",
+                        "scope", "repository:library/ubuntu:pull"
+                ),
+                ManifestDigestResolver.parseChallenge(
+                        "Bearer realm=\"https://auth.docker.io/token\",service=\"registry.docker.io\"," +
+                        "scope=\"repository:library/ubuntu:pull\""
+                )
+        );
+    }
+
+    @Test
+    void keepsFirstDigestPerArchitecture() throws IOException {
+        final String manifestList = """
+                {"manifests": [
+                  {"digest": "sha256:amd", "platform": {"architecture": "amd64", "os": "linux"}},
+                  {"digest": "sha256:arm", "platform": {"architecture": "arm64", "os": "linux", "variant": "v8"}},
+                  {"digest": "sha256:other", "platform": {"architecture": "amd64", "os": "linux"}},
+                  {"digest": "sha256:attestation", "platform": {"architecture": "unknown", "os": "unknown"}}
+                ]}
+                """;
+        final Map<String, String> digests = ManifestDigestResolver.parseManifestList(new ObjectMapper().readTree(manifestList));
+        assertEquals("sha256:amd", digests.get("amd64"));
+        assertEquals("sha256:arm", digests.get("arm64"));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase.lockfile;
+
+import org.gradle.api.services.BuildServiceParameters;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class LockfileCacheServiceTest {
+
+    @Test
+    public void shouldParseOnlyWhenContentChanges(@TempDir Path tempDir) throws IOException {
+        final LockfileCacheService service = new TestLockfileCacheService();
+        final Path lockfile = tempDir.resolve("test.lock");
+        final AtomicInteger parseCount = new AtomicInteger();
+        final LockfileCacheService.Parser<String> parser = reader -> {
+            parseCount.incrementAndGet();
+            return new BufferedReader(reader).readLine();
+        };
+
+        Files.writeString(lockfile, "first");
+        final String first = service.get(lockfile, String.class, parser);
+        assertEquals("first", first);
+        assertSame(first, service.get(lockfile, String.class, parser));
+        assertEquals(1, parseCount.get());
+
+        Files.writeString(lockfile, "second");
+        assertEquals("second", service.get(lockfile, String.class, parser));
+        assertEquals(2, parseCount.get());
+    }
+
+    private static class TestLockfileCacheService extends LockfileCacheService {
+        @Override
+        public BuildServiceParameters.None getParameters() {
+            return null;
+        }
+    }
+}
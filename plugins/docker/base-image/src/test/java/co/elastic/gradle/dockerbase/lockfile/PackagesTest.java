@@ -0,0 +1,79 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockerbase.lockfile;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PackagesTest {
+
+    @Test
+    public void shouldFindByName() {
+        final Packages packages = new Packages(centosPackages());
+        assertEquals(3000, packages.getPackages().size());
+        assertEquals("1.1499", packages.findByName("package-1499").orElseThrow().getVersion());
+        assertTrue(packages.containsName("package-0"));
+        assertFalse(packages.containsName("package-3000"));
+        assertTrue(packages.findByName("package-3000").isEmpty());
+    }
+
+    @Test
+    public void shouldRejectDuplicateNames() {
+        assertThrows(IllegalStateException.class, () -> new Packages(List.of(
+                new UnchangingPackage("kernel-core", "4.18.0", "348.el8", "x86_64"),
+                new UnchangingPackage("kernel-core", "4.18.1", "348.el8", "x86_64")
+        )));
+    }
+
+    @Test
+    public void shouldKeepMaxVersion() {
+        final List<UnchangingPackage> unique = Packages.getUniquePackagesWithMaxVersion(
+                Stream.concat(
+                        centosPackages().stream(),
+                        Stream.of(
+                                new UnchangingPackage("package-7", "1.10", "1.el8", "x86_64"),
+                                new UnchangingPackage("package-7", "1.2", "1.el8", "x86_64")
+                        )
+                ).toList()
+        );
+        assertEquals(3000, unique.size());
+        assertEquals("1.10", new Packages(unique).findByName("package-7").orElseThrow().getVersion());
+    }
+
+    @Test
+    public void shouldBeImmutable() {
+        final Packages packages = new Packages(centosPackages());
+        assertThrows(
+                UnsupportedOperationException.class,
+                () -> packages.getPackages().add(new UnchangingPackage("jq", "1.5", "12.el8", "x86_64"))
+        );
+        assertEquals(new Packages(centosPackages()), packages);
+    }
+
+    private List<UnchangingPackage> centosPackages() {
+        return IntStream.range(0, 3000)
+                .mapToObj(i -> new UnchangingPackage("package-" + i, "1." + i, "1.el8", "x86_64"))
+                .toList();
+    }
+}
@@ -16,7 +16,7 @@
 
 package com.google.cloud.tools.jib.tar;
 
-import co.elastic.gradle.docker.base.ExtractCompressedTar;
+import co.elastic.gradle.utils.ExtractCompressedTar;
 
 import java.io.IOException;
 import java.nio.file.Path;
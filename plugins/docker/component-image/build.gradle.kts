@@ -26,6 +26,7 @@ dependencies {
     implementation("com.google.cloud.tools:jib-core:0.25.0")
     implementation("com.google.jimfs:jimfs:1.2")
     runtimeOnly("com.github.luben:zstd-jni:1.5.0-4")
+    runtimeOnly("org.tukaani:xz:1.8")
     implementation("org.apache.commons:commons-compress:1.21")
     implementation("commons-io:commons-io:2.11.0")
     implementation("org.jetbrains:annotations:23.0.0")
@@ -196,6 +196,23 @@ public class DockerComponentPluginIT extends TestkitIntegrationTest {
     }
 
 
+    @Test
+    public void analyzeImagesOfBothPlugins() {
+        helper.buildScript("""
+                plugins {
+                       id("co.elastic.docker-base")
+                       id("co.elastic.docker-component")
+                }
+                """);
+
+        final BuildResult result = gradleRunner.withArguments("--warning-mode", "fail", "-s", "dockerImageAnalyze", "--dry-run")
+                .build();
+
+        assertContains(result.getOutput(), ":dockerBaseImageBuild SKIPPED");
+        assertContains(result.getOutput(), ":dockerComponentImageBuild SKIPPED");
+        assertContains(result.getOutput(), ":dockerImageAnalyze SKIPPED");
+    }
+
     @Test
     public void testDynamicallyGenerated() throws IOException {
         helper.buildScript("""
@@ -18,16 +18,19 @@
  */
 package co.elastic.gradle.dockercomponent;
 
+import co.elastic.gradle.dockerbase.lockfile.LockfileCacheService;
 import co.elastic.gradle.dockercomponent.lockfile.ComponentLockfile;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.RegularFileUtils;
 import co.elastic.gradle.utils.docker.DockerPluginConventions;
-import co.elastic.gradle.utils.docker.GradleCacheUtilities;
+import co.elastic.gradle.utils.docker.OutputSizeGuard;
+import co.elastic.gradle.utils.docker.RegistryUsingTask;
 import co.elastic.gradle.utils.docker.instruction.ContainerImageBuildInstruction;
 import co.elastic.gradle.utils.docker.instruction.From;
 import co.elastic.gradle.utils.docker.instruction.FromLocalArchive;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.GradleException;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.ProjectLayout;
 import org.gradle.api.file.RegularFile;
 import org.gradle.api.file.RegularFileProperty;
@@ -39,9 +42,7 @@ import org.gradle.api.provider.ProviderFactory;
 import org.gradle.api.tasks.*;
 
 import javax.inject.Inject;
-import java.io.File;
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
@@ -52,7 +53,7 @@ import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @CacheableTask
-abstract public class ComponentBuildTask extends DefaultTask {
+abstract public class ComponentBuildTask extends DefaultTask implements RegistryUsingTask {
 
     public static final String LAYERS_DIR = "context";
 
@@ -118,7 +119,7 @@ abstract public class ComponentBuildTask extends DefaultTask {
 
     @Input
     public List<String> getBaseImageIds() {
-        final JibActions jibActions = new JibActions();
+        final JibActions jibActions = new JibActions(this::retryGuard);
 
         if (!isStaticFrom()) {
             // In case we have a FromLocalArchive instruction, we are building from dynamically pushed base images,
@@ -147,6 +148,9 @@ abstract public class ComponentBuildTask extends DefaultTask {
     @PathSensitive(PathSensitivity.RELATIVE)
     public abstract RegularFileProperty getLockFileLocation();
 
+    @Internal
+    public abstract Property<LockfileCacheService> getLockfileCache();
+
     @Inject
     abstract protected ProjectLayout getProjectLayout();
 
@@ -172,13 +176,15 @@ abstract public class ComponentBuildTask extends DefaultTask {
     @Inject
     protected abstract ProviderFactory getProviderFactory();
 
+    /**
+     * Maintained by {@link ComponentContextSyncTask}, the files in it are tracked as inputs through the copy specs.
+     */
+    @Internal
+    public abstract DirectoryProperty getContextDirectory();
+
     @TaskAction
     protected void buildComponentImages() throws IOException {
-        getProject().sync(spec -> {
-                    spec.into(getProjectLayout().getBuildDirectory().file(getName() + "/" + LAYERS_DIR).get().getAsFile());
-                    spec.with(rootCopySpec);
-                }
-        );
+        final Path contextRoot = getContextDirectory().get().getAsFile().toPath();
         JibActions actions = new JibActions();
 
         final ComponentLockfile lockFile;
@@ -189,13 +195,13 @@ abstract public class ComponentBuildTask extends DefaultTask {
                                           DockerComponentPlugin.LOCK_FILE_TASK_NAME + "` task to generate it."
                 );
             }
-            lockFile = ComponentLockfile.parse(
-                    Files.newBufferedReader(lockfilePath)
-            );
+            lockFile = getLockfileCache().get().get(lockfilePath, ComponentLockfile.class, ComponentLockfile::parse);
         } else {
             lockFile = null;
         }
 
+        // The limit applies to the archives of all architectures together
+        final OutputSizeGuard sizeGuard = new OutputSizeGuard(getPath(), getMaxOutputSizeMB().get());
         for (Map.Entry<Architecture, List<ContainerImageBuildInstruction>> entry : getInstructions().get().entrySet()) {
             final Architecture architecture = entry.getKey();
             actions.buildArchive(
@@ -217,26 +223,9 @@ abstract public class ComponentBuildTask extends DefaultTask {
                                     return instruction;
                                 }
                             })
-                            .toList()
-            );
-        }
-
-        if (getMaxOutputSizeMB().get() > 0) {
-            GradleCacheUtilities.assertOutputSize(
-                    getPath(),
-                    getImageArchive().get().values().stream()
-                            .map(RegularFile::getAsFile)
-                            .map(File::toPath)
-                            .filter(Files::exists) // Not all of them will exist locally
-                            .map(path -> {
-                                try {
-                                    return Files.size(path);
-                                } catch (IOException e) {
-                                    throw new UncheckedIOException(e);
-                                }
-                            })
-                            .reduce(0L, Long::sum),
-                    getMaxOutputSizeMB().get()
+                            .toList(),
+                    contextRoot,
+                    sizeGuard
             );
         }
     }
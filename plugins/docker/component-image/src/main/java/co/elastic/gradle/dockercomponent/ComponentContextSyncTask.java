@@ -0,0 +1,149 @@
+/*
+ * Copyright Elasticsearch B.V. and/or licensed to Elasticsearch B.V. under one
+ * or more contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.gradle.dockercomponent;
+
+import co.elastic.gradle.utils.HardlinkSync;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.file.FileTree;
+import org.gradle.api.file.FileType;
+import org.gradle.api.file.ProjectLayout;
+import org.gradle.api.internal.file.copy.CopySpecResolver;
+import org.gradle.api.internal.file.copy.DefaultCopySpec;
+import org.gradle.api.tasks.*;
+import org.gradle.work.ChangeType;
+import org.gradle.work.DisableCachingByDefault;
+import org.gradle.work.FileChange;
+import org.gradle.work.Incremental;
+import org.gradle.work.InputChanges;
+
+import javax.inject.Inject;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Maintains the directory with the layers of the component images, shared by the build and the local import.
+ * Only the files that changed since the last run are linked or removed, other layers are left alone.
+ */
+@DisableCachingByDefault(because = "The context links to the source files, restoring it from the cache gains nothing")
+public abstract class ComponentContextSyncTask extends DefaultTask {
+
+    final DefaultCopySpec rootCopySpec;
+
+    private List<ContextSource> sources;
+
+    public ComponentContextSyncTask() {
+        rootCopySpec = getProject().getObjects().newInstance(DefaultCopySpec.class);
+        getContextDirectory().convention(
+                getProjectLayout().getBuildDirectory().dir(getName() + "/" + ComponentBuildTask.LAYERS_DIR)
+        );
+    }
+
+    @OutputDirectory
+    public abstract DirectoryProperty getContextDirectory();
+
+    @Nested
+    public List<ContextSource> getSources() {
+        // Input changes are looked up by the file collection, so we need to hand out the same instances every time
+        if (sources == null) {
+            final List<ContextSource> result = new ArrayList<>();
+            rootCopySpec.buildRootResolver().walk(resolver -> result.add(new ContextSource(resolver)));
+            sources = result;
+        }
+        return sources;
+    }
+
+    @Inject
+    protected abstract ProjectLayout getProjectLayout();
+
+    @Inject
+    protected abstract FileSystemOperations getFileSystemOperations();
+
+    @TaskAction
+    public void syncContext(InputChanges inputChanges) {
+        final Path contextDir = getContextDirectory().get().getAsFile().toPath();
+        if (!inputChanges.isIncremental() || !getSources().stream().allMatch(ContextSource::isLinkable)) {
+            final HardlinkSync.Result result = new HardlinkSync(getFileSystemOperations())
+                    .syncCopySpec(rootCopySpec, contextDir);
+            getLogger().info("Synchronized the full context in {}: {}", contextDir, result);
+            return;
+        }
+
+        final Map<String, Path> changed = new LinkedHashMap<>();
+        final List<String> removed = new ArrayList<>();
+        final Set<String> changedLayers = new TreeSet<>();
+        for (ContextSource source : getSources()) {
+            for (FileChange change : inputChanges.getFileChanges(source.getFiles())) {
+                if (change.getFileType() == FileType.DIRECTORY) {
+                    continue;
+                }
+                final String destination = source.getDestination().isEmpty() ?
+                        change.getNormalizedPath() :
+                        source.getDestination() + "/" + change.getNormalizedPath();
+                if (change.getChangeType() == ChangeType.REMOVED) {
+                    removed.add(destination);
+                } else {
+                    changed.putIfAbsent(destination, change.getFile().toPath());
+                }
+                changedLayers.add(destination.substring(0, Math.max(destination.indexOf('/'), 0)));
+            }
+        }
+        final HardlinkSync.Result result = HardlinkSync.applyChanges(changed, removed, contextDir);
+        getLogger().info("Updated layers {} in {}: {}", changedLayers, contextDir, result);
+    }
+
+    /**
+     * The files of one (child) copy spec and where they end up in the context.
+     */
+    public static class ContextSource {
+        private final String destination;
+        private final FileTree files;
+        private final boolean linkable;
+
+        ContextSource(CopySpecResolver resolver) {
+            destination = resolver.getDestPath().getPathString();
+            files = resolver.getSource();
+            linkable = HardlinkSync.canLink(resolver);
+        }
+
+        @Input
+        public String getDestination() {
+            return destination;
+        }
+
+        @Input
+        public boolean isLinkable() {
+            return linkable;
+        }
+
+        @Incremental
+        @InputFiles
+        @IgnoreEmptyDirectories
+        @PathSensitive(PathSensitivity.RELATIVE)
+        public FileTree getFiles() {
+            return files;
+        }
+    }
+}
@@ -18,16 +18,17 @@
  */
 package co.elastic.gradle.dockercomponent;
 
+import co.elastic.gradle.dockerbase.lockfile.LockfileCacheService;
 import co.elastic.gradle.dockercomponent.lockfile.ComponentLockfile;
 import co.elastic.gradle.utils.RegularFileUtils;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.SkipWhenEmpty;
 import org.gradle.api.tasks.TaskAction;
 
-import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 
 public abstract class ComponentPullTask extends DefaultTask {
@@ -36,10 +37,14 @@ public abstract class ComponentPullTask extends DefaultTask {
     @SkipWhenEmpty
     public abstract RegularFileProperty getLockfileLocation();
 
+    @Internal
+    public abstract Property<LockfileCacheService> getLockfileCache();
+
     @TaskAction
-    public void pullImages() throws IOException {
+    public void pullImages() {
         final Path lockfileLocation = RegularFileUtils.toPath(getLockfileLocation());
-        final ComponentLockfile lockFile = ComponentLockfile.parse(Files.newBufferedReader(lockfileLocation));
+        final ComponentLockfile lockFile = getLockfileCache().get()
+                .get(lockfileLocation, ComponentLockfile.class, ComponentLockfile::parse);
         final JibActions actions = new JibActions();
         lockFile.images().values().forEach(ref -> {
             final String format = String.format("%s:%s@%s", ref.getRepository(), ref.getTag(), ref.getDigest());
@@ -22,6 +22,7 @@ package co.elastic.gradle.dockercomponent;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.GradleUtils;
 import co.elastic.gradle.utils.RegularFileUtils;
+import co.elastic.gradle.utils.docker.RegistryUsingTask;
 import com.google.cloud.tools.jib.api.JibContainer;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.Project;
@@ -42,7 +43,7 @@ import java.util.Optional;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
-abstract public class ComponentPushTask extends DefaultTask {
+abstract public class ComponentPushTask extends DefaultTask implements RegistryUsingTask {
 
     public ComponentPushTask() {
         getDigestFiles().convention(
@@ -114,7 +115,7 @@ abstract public class ComponentPushTask extends DefaultTask {
 
     @TaskAction
     public void pushImage() {
-        final JibActions jibActions = new JibActions();
+        final JibActions jibActions = new JibActions(this::retryGuard);
         getImageArchive().get().forEach((architecture, imageArchive) -> {
             final String tag = getTags().get().get(architecture);
             final RegularFile createdAtFile = getCreatedAtFiles().get().get(architecture);
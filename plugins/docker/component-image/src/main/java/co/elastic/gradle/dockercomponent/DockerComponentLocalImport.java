@@ -18,10 +18,13 @@
  */
 package co.elastic.gradle.dockercomponent;
 
+import co.elastic.gradle.dockerbase.lockfile.LockfileCacheService;
 import co.elastic.gradle.dockercomponent.lockfile.ComponentLockfile;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.RegularFileUtils;
 import co.elastic.gradle.utils.docker.ContainerImageProviderTask;
+import co.elastic.gradle.utils.docker.DockerDaemonLimiter;
+import co.elastic.gradle.utils.docker.DockerDaemonUsingTask;
 import co.elastic.gradle.utils.docker.DockerPluginConventions;
 import co.elastic.gradle.utils.docker.DockerUtils;
 import co.elastic.gradle.utils.docker.instruction.ChangingLabel;
@@ -30,7 +33,7 @@ import co.elastic.gradle.utils.docker.instruction.From;
 import co.elastic.gradle.utils.docker.instruction.FromLocalArchive;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.GradleException;
-import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.ProjectLayout;
 import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.internal.file.copy.DefaultCopySpec;
@@ -44,7 +47,6 @@ import org.gradle.process.ExecOperations;
 import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
@@ -52,7 +54,7 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 
-abstract public class DockerComponentLocalImport extends DefaultTask implements ContainerImageProviderTask {
+abstract public class DockerComponentLocalImport extends DefaultTask implements ContainerImageProviderTask, DockerDaemonUsingTask {
 
     final DefaultCopySpec rootCopySpec;
 
@@ -64,6 +66,15 @@ abstract public class DockerComponentLocalImport extends DefaultTask implements
                         .get()
         );
 
+        // The marker stays around when the image is removed from the daemon, e.g. when the images of the build are
+        // pruned
+        getOutputs().upToDateWhen(task -> {
+            final Path imageIdFile = RegularFileUtils.toPath(getImageIdFile());
+            return Files.exists(imageIdFile) && new DockerUtils(getExecOperations()).isTagOf(
+                    getTag().get(), RegularFileUtils.readString(getImageIdFile().get())
+            );
+        });
+
         rootCopySpec = getProject().getObjects().newInstance(DefaultCopySpec.class);
         rootCopySpec.addChildSpecListener(DockerPluginConventions.mapCopySpecToTaskInputs(this));
     }
@@ -95,9 +106,6 @@ abstract public class DockerComponentLocalImport extends DefaultTask implements
     @Inject
     protected abstract ExecOperations getExecOperations();
 
-    @Inject
-    protected abstract FileSystemOperations getFilesystemOperations();
-
     @InputFiles
     @Optional
     @PathSensitive(PathSensitivity.RELATIVE)
@@ -106,50 +114,49 @@ abstract public class DockerComponentLocalImport extends DefaultTask implements
     @Inject
     protected abstract ProviderFactory getProviderFactory();
 
+    @Internal
+    public abstract Property<LockfileCacheService> getLockfileCache();
+
+    /**
+     * Maintained by {@link ComponentContextSyncTask}, the files in it are tracked as inputs through the copy specs.
+     */
+    @Internal
+    public abstract DirectoryProperty getContextDirectory();
+
     @TaskAction
     public void localImport() throws IOException {
-        final Path contextRoot = getProject().getBuildDir().toPath()
-                .resolve(getName())
-                .resolve("context");
-        getFilesystemOperations().sync(spec -> {
-                    spec.into(contextRoot);
-                    spec.with(rootCopySpec);
-                }
-        );
-
-        final JibActions actions = new JibActions();
-        actions.buildToDaemon(
-                getTag().get(),
-                getImageIdFile().get(),
-                getInstructions().get().get(Architecture.current())
-                        .stream()
-                        .filter(jibInstruction -> !(jibInstruction instanceof ChangingLabel))
-                        .map(instruction -> {
-                            if (isStaticFrom() && instruction instanceof From from) {
-                                final Path lockfilePath = RegularFileUtils.toPath(getLockFileLocation());
-                                if (!Files.exists(lockfilePath)) {
-                                    throw new GradleException("A lockfile does not exist, run the `" +
-                                                              DockerComponentPlugin.LOCK_FILE_TASK_NAME + "` task to generate it."
-                                    );
-                                }
-                                final ComponentLockfile lockFile;
-                                try {
-                                    lockFile = ComponentLockfile.parse(
-                                            Files.newBufferedReader(lockfilePath)
+        final Path contextRoot = getContextDirectory().get().getAsFile().toPath();
+
+        try (DockerDaemonLimiter.Permit ignored = acquireDockerDaemon(DockerDaemonLimiter.Operation.LOAD)) {
+            trackDockerImage(getTag().get());
+            final JibActions actions = new JibActions();
+            actions.buildToDaemon(
+                    getTag().get(),
+                    getImageIdFile().get(),
+                    getInstructions().get().get(Architecture.current())
+                            .stream()
+                            .filter(jibInstruction -> !(jibInstruction instanceof ChangingLabel))
+                            .map(instruction -> {
+                                if (isStaticFrom() && instruction instanceof From from) {
+                                    final Path lockfilePath = RegularFileUtils.toPath(getLockFileLocation());
+                                    if (!Files.exists(lockfilePath)) {
+                                        throw new GradleException("A lockfile does not exist, run the `" +
+                                                                  DockerComponentPlugin.LOCK_FILE_TASK_NAME + "` task to generate it."
+                                        );
+                                    }
+                                    final ComponentLockfile lockFile = getLockfileCache().get()
+                                            .get(lockfilePath, ComponentLockfile.class, ComponentLockfile::parse);
+                                    return actions.addDigestFromLockfile(
+                                            lockFile.images().get(Architecture.current()), from, getProviderFactory()
                                     );
-                                } catch (IOException e) {
-                                    throw new UncheckedIOException(e);
+                                } else {
+                                    return instruction;
                                 }
-                                return actions.addDigestFromLockfile(
-                                        lockFile.images().get(Architecture.current()), from, getProviderFactory()
-                                );
-                            } else {
-                                return instruction;
-                            }
-                        })
-                        .collect(Collectors.toList()),
-                contextRoot
-        );
+                            })
+                            .collect(Collectors.toList()),
+                    contextRoot
+            );
+        }
         Files.writeString(getMarker().toPath(), getTag().get());
         getLogger().lifecycle("Image with Id {} tagged as {}",
                 RegularFileUtils.readString(getImageIdFile().get()).trim(),
@@ -19,7 +19,11 @@
 package co.elastic.gradle.dockercomponent;
 
 import co.elastic.gradle.cli.manifest.ManifestToolPlugin;
+import co.elastic.gradle.dockerbase.DockerBaseImageBuildPlugin;
 import co.elastic.gradle.dockerbase.DockerLocalCleanTask;
+import co.elastic.gradle.dockerbase.lockfile.LockfileCacheService;
+import co.elastic.gradle.utils.docker.DockerDaemonLimiter;
+import co.elastic.gradle.utils.docker.RetryService;
 import co.elastic.gradle.lifecycle.LifecyclePlugin;
 import co.elastic.gradle.lifecycle.MultiArchLifecyclePlugin;
 import co.elastic.gradle.snyk.SnykCLIExecTask;
@@ -29,9 +33,11 @@ import co.elastic.gradle.utils.GradleUtils;
 import co.elastic.gradle.utils.docker.InstructionCopySpecMapper;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
+import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.TaskProvider;
 
 import java.util.Arrays;
+import java.util.Map;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -46,12 +52,18 @@ public class DockerComponentPlugin implements Plugin<Project> {
 
         final ComponentImageBuildExtension extension = target.getExtensions()
                 .create("dockerComponentImage", ComponentImageBuildExtension.class);
+        final Provider<LockfileCacheService> lockfileCache = LockfileCacheService.register(target);
+        DockerDaemonLimiter.register(target);
+        RetryService.register(target);
+        DockerBaseImageBuildPlugin.registerPruneTask(target);
 
         final TaskProvider<ComponentPullTask> dockerComponentPull = target.getTasks().register(
                 "dockerComponentPull",
                 ComponentPullTask.class,
                 task -> {
                     task.getLockfileLocation().set(extension.getLockFileLocation());
+                    task.getLockfileCache().set(lockfileCache);
+                    task.usesService(lockfileCache);
                 }
         );
         LifecyclePlugin.resolveAllDependencies(target, dockerComponentPull);
@@ -65,16 +77,31 @@ public class DockerComponentPlugin implements Plugin<Project> {
                 }
         );
 
+        final TaskProvider<ComponentContextSyncTask> contextSync = target.getTasks().register(
+                "dockerComponentContext",
+                ComponentContextSyncTask.class
+        );
+
         TaskProvider<ComponentBuildTask> dockerComponentImageBuild = target.getTasks().register(
                 "dockerComponentImageBuild",
                 ComponentBuildTask.class,
                 task -> {
+                    task.dependsOn(contextSync);
+                    task.getContextDirectory().set(contextSync.flatMap(ComponentContextSyncTask::getContextDirectory));
                     task.getInstructions().set(extension.getInstructions());
                     task.getLockFileLocation().set(extension.getLockFileLocation());
                     task.getMaxOutputSizeMB().set(extension.getMaxOutputSizeMB());
+                    task.getLockfileCache().set(lockfileCache);
+                    task.usesService(lockfileCache);
                 }
         );
 
+        DockerBaseImageBuildPlugin.registerAnalyzeTask(
+                target,
+                dockerComponentImageBuild,
+                dockerComponentImageBuild.flatMap(ComponentBuildTask::getImageArchive).map(Map::values)
+        );
+
         final TaskProvider<DockerComponentLocalImport> localImport = target.getTasks().register(
                 "dockerComponentImageLocalImport",
                 DockerComponentLocalImport.class,
@@ -85,6 +112,10 @@ public class DockerComponentPlugin implements Plugin<Project> {
                     );
                     task.getInstructions().set(extension.getInstructions());
                     task.getLockFileLocation().set(extension.getLockFileLocation());
+                    task.getLockfileCache().set(lockfileCache);
+                    task.usesService(lockfileCache);
+                    task.dependsOn(contextSync);
+                    task.getContextDirectory().set(contextSync.flatMap(ComponentContextSyncTask::getContextDirectory));
                 }
         );
 
@@ -187,12 +218,20 @@ public class DockerComponentPlugin implements Plugin<Project> {
 
         target.afterEvaluate(p -> {
             // assign copy specs to the build tasks to correctly evaluate build avoidance
+            extension.getInstructions().get().forEach((arch, instructions) ->
+                    InstructionCopySpecMapper.registerContentManifests(target, instructions)
+            );
             dockerComponentImageBuild.configure(task ->
                     extension.getInstructions().get().forEach((arch, instructions) ->
-                            InstructionCopySpecMapper.assignCopySpecs(instructions, task.rootCopySpec)
+                            InstructionCopySpecMapper.assignCopySpecs(instructions, task.rootCopySpec, task)
                     )
             );
             localImport.configure(task ->
+                    extension.getInstructions().get().forEach((arch, instructions) ->
+                            InstructionCopySpecMapper.assignCopySpecs(instructions, task.rootCopySpec, task)
+                    )
+            );
+            contextSync.configure(task ->
                     extension.getInstructions().get().forEach((arch, instructions) ->
                             InstructionCopySpecMapper.assignCopySpecs(instructions, task.rootCopySpec)
                     )
@@ -21,6 +21,8 @@ package co.elastic.gradle.dockercomponent;
 
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.RetryUtils;
+import co.elastic.gradle.utils.docker.OutputSizeGuard;
+import co.elastic.gradle.utils.docker.RetryService;
 import co.elastic.gradle.utils.docker.UnchangingContainerReference;
 import co.elastic.gradle.utils.docker.instruction.*;
 import com.google.cloud.tools.jib.api.CacheDirectoryCreationException;
@@ -39,6 +41,8 @@ import com.google.cloud.tools.jib.api.buildplan.*;
 import com.google.cloud.tools.jib.frontend.CredentialRetrieverFactory;
 import com.google.common.jimfs.Configuration;
 import com.google.common.jimfs.Jimfs;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
 import org.apache.commons.io.IOUtils;
 import org.gradle.api.GradleException;
@@ -57,12 +61,26 @@ import java.nio.file.attribute.PosixFilePermission;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 public class JibActions {
 
     private Logger logger = LoggerFactory.getLogger(JibActions.class);
 
+    private final Function<String, RetryUtils.RetryGuard> retryGuards;
+
+    public JibActions() {
+        this(registry -> RetryUtils.RetryGuard.NONE);
+    }
+
+    /**
+     * @param retryGuards guard for retries of calls to a registry, by registry host
+     */
+    public JibActions(Function<String, RetryUtils.RetryGuard> retryGuards) {
+        this.retryGuards = retryGuards;
+    }
+
     public String getImageId(String reference) {
         return RetryUtils.retry(() -> {
                     try {
@@ -76,7 +94,8 @@ public class JibActions {
                         throw new GradleException("Failed to get Image IDs of remote images", e);
                     }
                 }).maxAttempt(6)
-                .exponentialBackoff(1000, 30000)
+                .exponentialBackoffWithJitter(1000, 30000)
+                .guard(retryGuards.apply(RetryService.registryOf(reference)))
                 .onRetryError(error -> logger.warn("Error while pushing image with Jib. Retrying", error))
                 .execute();
     }
@@ -110,7 +129,8 @@ public class JibActions {
                         throw new GradleException("Error pushing image archive in registry (" + tag + ").", e);
                     }
                 }).maxAttempt(6)
-                .exponentialBackoff(1000, 30000)
+                .exponentialBackoffWithJitter(1000, 30000)
+                .guard(retryGuards.apply(RetryService.registryOf(tag)))
                 .onRetryError(error -> logger.warn("Error while pushing image with Jib. Retrying", error))
                 .execute();
     }
@@ -224,7 +244,9 @@ public class JibActions {
             RegularFile imageArchive,
             RegularFile imageId,
             RegularFile createdAtFile,
-            List<ContainerImageBuildInstruction> instructions
+            List<ContainerImageBuildInstruction> instructions,
+            Path contextRoot,
+            OutputSizeGuard sizeGuard
     ) {
         try {
             final Optional<From> fromImageRef = instructions.stream()
@@ -250,7 +272,7 @@ public class JibActions {
             jibBuilder.setPlatforms(Set.of(new Platform(architecture.dockerName(), "linux")));
             processInstructions(
                     jibBuilder,
-                    imageArchive.getAsFile().toPath().getParent().resolve("context"),
+                    contextRoot,
                     instructions
             );
 
@@ -264,8 +286,13 @@ public class JibActions {
                         getContainerizer(TarImage.at(imagePath).named("detached"))
                 );
                 try (InputStream image = Files.newInputStream(imagePath); ZstdCompressorOutputStream compressedOut = new ZstdCompressorOutputStream(
-                        new BufferedOutputStream(Files.newOutputStream(imageArchive.getAsFile().toPath())))) {
-                    IOUtils.copy(image, compressedOut);
+                        new BufferedOutputStream(sizeGuard.counting(Files.newOutputStream(imageArchive.getAsFile().toPath()))))) {
+                    // Stop compressing as soon as the output is too large
+                    IOUtils.copy(image, sizeGuard.gate(compressedOut));
+                }
+                if (sizeGuard.isExceeded()) {
+                    final String report = sizeReport(imagePath, contextRoot);
+                    sizeGuard.check(() -> report);
                 }
             }
             Files.writeString(
@@ -282,6 +309,40 @@ public class JibActions {
         }
     }
 
+    private static String sizeReport(Path imageTar, Path contextRoot) throws IOException {
+        final List<String> report = new ArrayList<>();
+        report.add("Largest layers (compressed):");
+        final Map<String, Long> layers = new HashMap<>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(Files.newInputStream(imageTar))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                if (entry.isFile() && !entry.getName().endsWith(".json")) {
+                    layers.put(entry.getName(), entry.getSize());
+                }
+            }
+        }
+        largest(layers).forEach(report::add);
+        if (Files.exists(contextRoot)) {
+            report.add("Largest files in the image context:");
+            final Map<String, Long> files = new HashMap<>();
+            try (Stream<Path> paths = Files.walk(contextRoot)) {
+                for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+                    files.put(contextRoot.relativize(path).toString(), Files.size(path));
+                }
+            }
+            largest(files).forEach(report::add);
+        }
+        return String.join("\n", report);
+    }
+
+    private static List<String> largest(Map<String, Long> sizes) {
+        return sizes.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(5)
+                .map(entry -> String.format("  %6dMb %s", entry.getValue() / (1024 * 1024), entry.getKey()))
+                .toList();
+    }
+
     private void processInstructions(JibContainerBuilder jibBuilder, Path contextRoot, List<ContainerImageBuildInstruction> instructions) {
         instructions.stream()
                 .filter(t -> !(t instanceof FromLocalArchive))
@@ -22,6 +22,8 @@ import co.elastic.gradle.cli.manifest.ManifestToolExecTask;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.RegularFileUtils;
 import co.elastic.gradle.utils.RetryUtils;
+import co.elastic.gradle.utils.docker.RegistryUsingTask;
+import co.elastic.gradle.utils.docker.RetryService;
 import org.gradle.api.GradleException;
 import org.gradle.api.file.ProjectLayout;
 import org.gradle.api.file.RegularFileProperty;
@@ -46,7 +48,7 @@ import java.util.*;
 import java.util.stream.Collectors;
 
 
-abstract public class PushManifestListTask extends ManifestToolExecTask {
+abstract public class PushManifestListTask extends ManifestToolExecTask implements RegistryUsingTask {
 
 
     public PushManifestListTask() {
@@ -94,10 +96,10 @@ abstract public class PushManifestListTask extends ManifestToolExecTask {
             throw new GradleException("Can't derive template from manifest list: " + templates);
         }
 
-        final Random random = new Random();
         final String output = RetryUtils.retry(() -> pushManifestList(templates))
                 .maxAttempt(6)
-                .exponentialBackoff(random.nextInt(5) * 1000, 30000)
+                .exponentialBackoffWithJitter(1000, 30000)
+                .guard(retryGuard(RetryService.registryOf(getTag().get())))
                 .onRetryError(error -> getLogger().warn("Error while pushing manifest. Retrying", error))
                 .execute();
 
@@ -32,20 +32,21 @@ import java.util.Map;
 
 public record ComponentLockfile(Map<Architecture, UnchangingContainerReference> images) {
 
+    // Mappers are thread safe once configured, so we share one instead of creating it on every parse
+    private static final ObjectMapper MAPPER = new ObjectMapper(new YAMLFactory());
+
     @Input
     public Map<Architecture, UnchangingContainerReference> getImages() {
         return images();
     }
 
     public static ComponentLockfile parse(Reader reader) throws IOException {
-        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
-        return mapper.readValue(reader, ComponentLockfile.class);
+        return MAPPER.readValue(reader, ComponentLockfile.class);
     }
 
     public static void write(ComponentLockfile lockfile, Writer writer) throws IOException {
-        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
         writer.write("# THIS IS AN AUTOGENERATED FILE. DO NOT EDIT THIS FILE DIRECTLY.\n");
-        mapper.writeValue(writer, lockfile);
+        MAPPER.writeValue(writer, lockfile);
     }
 
 
@@ -20,6 +20,8 @@ package co.elastic.gradle.sandbox;
 
 import co.elastic.gradle.utils.RegularFileUtils;
 import co.elastic.gradle.utils.docker.DockerUtils;
+import co.elastic.gradle.utils.docker.RegistryUsingTask;
+import co.elastic.gradle.utils.docker.RetryService;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.file.ProjectLayout;
 import org.gradle.api.file.RegularFileProperty;
@@ -33,7 +35,7 @@ import javax.inject.Inject;
 import java.io.IOException;
 import java.nio.file.Files;
 
-public abstract class DockerImagePull extends DefaultTask {
+public abstract class DockerImagePull extends DefaultTask implements RegistryUsingTask {
 
     public DockerImagePull() {
         getMarkerFile().convention(
@@ -58,7 +60,7 @@ public abstract class DockerImagePull extends DefaultTask {
         final DockerUtils dockerUtils = new DockerUtils(getExecOperations());
         getTags().get().forEach(tag -> {
             getLogger().lifecycle("Pulling docker image: {}", tag);
-            dockerUtils.pull(tag);
+            dockerUtils.pull(tag, retryGuard(RetryService.registryOf(tag)));
         });
         Files.writeString(
                 RegularFileUtils.toPath(getMarkerFile()),
@@ -21,6 +21,8 @@ package co.elastic.gradle.sandbox;
 import co.elastic.gradle.utils.Architecture;
 import co.elastic.gradle.utils.SystemUtil;
 import co.elastic.gradle.utils.docker.ContainerImageProviderTask;
+import co.elastic.gradle.utils.docker.DockerDaemonLimiter;
+import co.elastic.gradle.utils.docker.DockerDaemonUsingTask;
 import co.elastic.gradle.utils.docker.DockerUtils;
 import org.gradle.api.GradleException;
 import org.gradle.api.Project;
@@ -35,7 +37,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 @CacheableTask
-abstract public class SandboxDockerExecTask extends SandboxExecBaseTask {
+abstract public class SandboxDockerExecTask extends SandboxExecBaseTask implements DockerDaemonUsingTask {
 
     public SandboxDockerExecTask() {
        super();
@@ -53,15 +55,14 @@ abstract public class SandboxDockerExecTask extends SandboxExecBaseTask {
     abstract Property<Boolean> getNeedsPull();
 
 
-    private String getUserString() {
-        SystemUtil unixSystem = new SystemUtil();
-        long uid = unixSystem.getUid();
-        long gid = unixSystem.getGid();
-        return String.format("%d:%d", uid, gid);
-    }
-
     @Override
     protected ExecResult doExec() {
+        try (DockerDaemonLimiter.Permit ignored = acquireDockerDaemon(DockerDaemonLimiter.Operation.RUN)) {
+            return runInDocker();
+        }
+    }
+
+    private ExecResult runInDocker() {
         return new DockerUtils(getExecOperations()).exec(spec -> {
             // bind mount the sandbox to /sandbox and set the working dir within
             // We need to pass --platform explicitly here to make sure hat Docker Desktop on the M1 does not start
@@ -69,7 +70,7 @@ abstract public class SandboxDockerExecTask extends SandboxExecBaseTask {
             List<String> dockerCmdLine = new ArrayList<>(Arrays.asList(
                     "docker", "run", "--platform", "linux/" + Architecture.current().dockerName(),
                     "--rm", "-w", "/sandbox/" + sandbox.relativize(workingDirectory),
-                    "-v", sandbox + ":/sandbox/", "--user", getUserString()
+                    "-v", sandbox + ":/sandbox/", "--user", SystemUtil.currentUser().dockerUserString()
             ));
             // Pass the environment to the docker process and only add their names to the CLI
             environment.keySet().stream()
@@ -19,6 +19,8 @@
 package co.elastic.gradle.sandbox;
 
 import co.elastic.gradle.lifecycle.LifecyclePlugin;
+import co.elastic.gradle.utils.docker.DockerDaemonLimiter;
+import co.elastic.gradle.utils.docker.RetryService;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.provider.ProviderFactory;
@@ -34,6 +36,9 @@ public abstract class SandboxPlugin implements Plugin<Project> {
 
     @Override
     public void apply(Project target) {
+        DockerDaemonLimiter.register(target);
+        RetryService.register(target);
+
         final TaskProvider<DockerImagePull> resolveSandboxDockerDependencies = target.getTasks().register(
                 "resolveSandboxDockerDependencies", DockerImagePull.class,
                 t -> t.getTags().set(